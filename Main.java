@@ -1,14 +1,54 @@
+import index.BoilerplateFilter;
+import index.DuplicateIndex;
 import index.IndexManager;
+import index.IndexSink;
+import index.LuceneSink;
+import index.PageRank;
+import index.RemoteSolrSink;
 import index.SolrManager;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.common.SolrInputDocument;
+import org.jsoup.nodes.Document;
+import search.LuceneSearchBackend;
+import search.SearchBackend;
+import search.SearchService;
+import search.SolrSearchBackend;
+import urls.Cluster;
+import urls.ContentFilter;
 import urls.CurlStore;
+import urls.DnsCache;
+import urls.FingerprintTable;
+import urls.HostScheduler;
+import urls.LinkGraph;
+import urls.PageArchive;
+import urls.RecrawlScheduler;
+import urls.RecrawlStore;
+import urls.RobotsStore;
+import urls.SitemapReader;
+import urls.UrlCanonicalizer;
 import urls.UrlStore;
+import utils.Metrics;
 import utils.Sleeper;
+import utils.Stage;
 
 import java.io.*;
+import java.net.http.HttpResponse;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 /**
@@ -30,97 +70,411 @@ import java.util.stream.Stream;
 public class Main {
 
     private static UrlStore urlStore;
+    private static HostScheduler hostScheduler;
     private static SolrManager solrManager;
+    private static DuplicateIndex duplicateIndex;
     private static CurlStore curlStore;
     private static Runtime runtime;
     private static Thread.UncaughtExceptionHandler handler;
-    private static int indexCounter = 0;
+    private static final LongAdder PAGES_INDEXED = Metrics.counter("pages_indexed");
+
+    private static final long SHUTDOWN_TIMEOUT = 30_000;
+    private static final String DEFAULT_SOLR_URL = "http://localhost:8983/solr/www";
 
     public static void main(String[] args) throws IOException {
         final PrintWriter error;
+        final File store = new File(option(args, "store", "store"));
+        final String reindex = option(args, "reindex");
+        if (reindex != null) {
+            reindex(args, new File(reindex), store);
+            return;
+        }
+        final String pageRank = option(args, "pagerank");
+        if (pageRank != null) {
+            pageRank(args, Integer.parseInt(pageRank), store);
+            return;
+        }
+        final String search = option(args, "search");
+        if (search != null) {
+            search(args, Integer.parseInt(search));
+            return;
+        }
+
+        canonicalizer(args);
+        boilerplate(args);
+
+        final String skipExtensions = option(args, "skip-extensions");
+        ContentFilter.init(intOption(args, "max-body-bytes", 2_000_000),
+                skipExtensions == null ? null : Arrays.asList(skipExtensions.split(",")));
+
+        System.out.println("Initializing DNS Cache");
+        final String hostsFile = option(args, "hosts-file");
+        DnsCache.init(100_000, TimeUnit.SECONDS.toMillis(intOption(args, "dns-ttl", 300)), TimeUnit.MINUTES.toMillis(1),
+                hostsFile == null ? null : new File(hostsFile));
+
         try {
             error = new PrintWriter(new FileWriter("errlog.txt"));
             System.out.println("Initializing URL Store");
-            UrlStore.init(getSeed(), new File("store"), 4_000_000_000L, 1_000_000_000, TimeUnit.DAYS.toMillis(7));
+            UrlStore.init(getSeed(), store, 100_000_000L, TimeUnit.DAYS.toMillis(7));
+            RecrawlStore.init(store, 25_000_000L);
+            RecrawlScheduler.init(store, 25_000_000L, TimeUnit.HOURS.toMillis(intOption(args, "recrawl-min-hours", 1)),
+                    TimeUnit.DAYS.toMillis(intOption(args, "recrawl-max-days", 30)), TimeUnit.DAYS.toMillis(1));
+            RobotsStore.init(store, 100_000, TimeUnit.DAYS.toMillis(1), 10_000_000L);
+            if (Boolean.parseBoolean(option(args, "sitemaps", "true"))) SitemapReader.init();
+            if (Boolean.parseBoolean(option(args, "link-graph", "true")))
+                LinkGraph.init(new File(store, "graph"), 200_000_000L);
+
+            final String archive = option(args, "archive");
+            if (archive != null) {
+                System.out.println("Archiving Pages to " + archive);
+                PageArchive.init(new File(archive), 1L << 30);
+            }
+
+            final String node = option(args, "node");
+            if (node != null) {
+                System.out.println("Joining Cluster as " + node);
+                final String peers = option(args, "peers", "");
+                Cluster.init(node, peers.isEmpty() ? Collections.emptyList() : Arrays.asList(peers.split(",")));
+            }
         } catch (IOException e) {
             throw new ExceptionInInitializerError(e);
         }
         urlStore = UrlStore.getInstance();
 
+        System.out.println("Initializing Host Scheduler");
+        HostScheduler.init(urlStore, 2, intOption(args, "crawl-delay-ms", 1000), 100_000, 100);
+        hostScheduler = HostScheduler.getInstance();
+
         System.out.println("Initializing Solr Manager");
-        SolrManager.init("http://localhost:8983/solr/www", 1000, 2, TimeUnit.MINUTES.toMillis(3));
+        final IndexSink sink = sink(args);
+        SolrManager.init(sink, 5000, 2, TimeUnit.MINUTES.toMillis(3), new File(store, "solr-spill.bin"));
         solrManager = SolrManager.getInstance();
 
+        final String searchPort = option(args, "search-port");
+        if (searchPort != null) {
+            System.out.println("Initializing Search Service");
+            SearchService.init(searchBackend(args, sink), Integer.parseInt(searchPort), intOption(args, "search-cache", 10_000),
+                    intOption(args, "search-rows", 10), 1000, intOption(args, "search-threads", 16));
+        }
+
+        System.out.println("Initializing Duplicate Index");
+        duplicates(args);
+        duplicateIndex = DuplicateIndex.getInstance();
+
         System.out.println("Initializing CURL Store");
         curlStore = CurlStore.getInstance(250, TimeUnit.SECONDS.toMillis(30));
 
         System.out.println("Initializing Runtime");
         runtime = Runtime.getRuntime();
 
+        System.out.println("Initializing Metrics");
+        Metrics.gauge("memory_used_bytes", () -> runtime.totalMemory() - runtime.freeMemory());
+        Metrics.registerMBean();
+        Metrics.serve(intOption(args, "metrics-port", 9400));
+
         System.out.println("Initializing UncaughtExceptionHandler");
-        handler = (t, e) -> {
-            synchronized (error) {
-                error.println("Thread: " + t.getName());
-                error.println(e.getMessage());
-                e.printStackTrace(error);
+        handler = handler(error);
 
-                error.println();
-                error.println();
-                error.println();
+        final int cores = runtime.availableProcessors();
+        final boolean virtual = Boolean.parseBoolean(option(args, "virtual-threads", "true"));
 
-                error.flush();
-            }
-        };
+        final Stage<Triple<String, Collection<String>, Boolean>> admit = new Stage<>("Link Admission",
+                intOption(args, "admit-queue", 10_000), intOption(args, "admit-threads", 2), false, handler, page -> {
+            urlStore.mark(page.getLeft(), UrlStore.FLAG_FETCHED);
+            if (page.getRight()) urlStore.acceptAll(page.getMiddle());
+            PAGES_INDEXED.increment();
+        });
+
+        final Stage<Triple<SolrInputDocument, Collection<String>, Collection<String>>> index = new Stage<>("Index",
+                intOption(args, "index-queue", 1000), intOption(args, "index-threads", 2), false, handler, triple -> {
+            final String url = triple.getLeft().getFieldValue("id").toString();
+            final boolean duplicate = index(triple.getLeft()) != null;
+            LinkGraph.getInstance().addPage(url, triple.getMiddle(), !duplicate || duplicateIndex.getMode() == DuplicateIndex.Mode.MERGE);
+            admit.accept(Triple.of(url, triple.getMiddle(), !duplicate || duplicateIndex.followsDuplicateLinks()));
+        });
 
-        final Thread urlThread = new Thread(() -> {
-            Stream.generate(urlStore)
-                    .filter(s -> s != null)
-                    .map(url -> Pair.of(url, curlStore.curl(url)))
-                    .filter(pair -> pair != null && pair.getRight() != null)
-                    .forEach(curlStore);
+        final Stage<Document> extract = new Stage<>("Extract",
+                intOption(args, "extract-queue", 1000), intOption(args, "extract-threads", cores), false, handler,
+                document -> index.accept(IndexManager.index(document)));
+
+        final Stage<Pair<String, InputStream>> parse = new Stage<>("Parse",
+                intOption(args, "parse-queue", 1000), intOption(args, "parse-threads", cores), false, handler, page -> {
+            final Document document = IndexManager.parse(page.getLeft(), page.getRight());
+            if (document != null) extract.accept(document);
+        });
+
+        final Stage<Pair<String, InputStream>> download = new Stage<>("Download",
+                curlStore::take, intOption(args, "download-threads", 64), virtual, handler, parse);
+
+        final Stage<String> fetch = new Stage<>("Fetch",
+                hostScheduler::take, intOption(args, "fetch-threads", 4), false, handler, url -> {
+            final CompletableFuture<HttpResponse<InputStream>> future = fetch(url);
+            if (future != null) curlStore.accept(Pair.of(url, future));
         });
-        urlThread.setPriority(Thread.MAX_PRIORITY);
-        urlThread.setName("URL Thread");
-        urlThread.setUncaughtExceptionHandler(handler);
-        urlThread.start();
-
-        final Thread indexThread = new Thread(() ->
-                Stream.generate(curlStore).parallel()
-                        .filter(pair -> pair != null)
-                        .map(pair -> IndexManager.parse(pair.getLeft(), pair.getRight()))
-                        .filter(document -> document != null)
-                        .map(IndexManager::index)
-                        .forEach(triple -> {
-                            solrManager.accept(triple.getLeft());
-                            triple.getMiddle().forEach(urlStore);
-                            incrementIndexCounter();
-                        })
-        );
-        indexThread.setPriority(Thread.MAX_PRIORITY);
-        indexThread.setName("Index Thread");
-        indexThread.setUncaughtExceptionHandler(handler);
-        indexThread.start();
 
+        final List<Stage<?>> stages = Arrays.asList(fetch, download, parse, extract, index, admit);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                for (Stage<?> stage : stages) stage.close(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SolrManager.shutdown();
+            PageArchive.close();
+            RecrawlStore.getInstance().force();
+            LinkGraph.getInstance().force();
+            UrlStore.checkpoint();
+        }));
+
+        long lastIndexed = 0;
+        Map<String, Long> lastStatus = new TreeMap<>();
         while (true) {
             final int usedMemory = (int) ((runtime.totalMemory() - runtime.freeMemory()) / 1000000);
             final int curlsRunning = curlStore.size();
+            final int hostsQueued = hostScheduler.hosts();
             final Date lastSolrCommit = Date.from(Instant.ofEpochMilli(solrManager.getLastCommitTime()));
-            final String exitVals = curlStore.getExitValues();
-            final int indexesPerSecond = indexCounter;
-            indexCounter = 0;
+            final Map<String, Long> status = curlStore.getStatusCounts();
+            final StringBuilder statusCounts = new StringBuilder();
+            for (Map.Entry<String, Long> entry : status.entrySet()) {
+                final long count = entry.getValue() - lastStatus.getOrDefault(entry.getKey(), 0L);
+                if (count > 0) statusCounts.append(entry.getKey()).append('=').append(count).append(' ');
+            }
+            lastStatus = status;
+            final int solrQueueDepth = solrManager.getQueueDepth();
+            final long solrBatchLatency = solrManager.getLastBatchLatency();
+            final long solrBatchSize = solrManager.getLastBatchSize();
+            final long solrSpilled = solrManager.getSpilled();
+            final long indexed = PAGES_INDEXED.sum();
+            final long indexesPerSecond = indexed - lastIndexed;
+            lastIndexed = indexed;
+            final StringBuilder stageDepths = new StringBuilder();
+            for (Stage<?> stage : stages) stageDepths.append(stage.getName()).append('=').append(stage.size()).append(' ');
 
             System.out.print("\nUsed Memory: " + usedMemory + " MB\n" +
                     "Curls Running: " + curlsRunning + "\n" +
-                    "Curl Exit Values: " + exitVals + "\n" +
+                    "Hosts Queued: " + hostsQueued + "\n" +
+                    "Fetch Status Codes: " + statusCounts + "\n" +
                     "Indexes Per Second: " + indexesPerSecond + "\n" +
+                    "Stage Queues: " + stageDepths + "\n" +
+                    "Solr Queue Depth: " + solrQueueDepth + "\n" +
+                    "Last Solr Batch: " + solrBatchSize + " docs in " + solrBatchLatency + " ms\n" +
+                    "Solr Documents Spilled: " + solrSpilled + "\n" +
                     "Last Solr Commit: " + lastSolrCommit + "\n");
 
             Sleeper.sleep(1000);
         }
     }
 
-    private static void incrementIndexCounter() {
-        indexCounter++;
+    /**
+     * Rebuilds the index from a {@link PageArchive} instead of the web: every archived page goes
+     * through Parse, Extract and Index again, several segments at a time, without a frontier or
+     * any network access. Returns once everything has been committed.
+     */
+    private static void reindex(final String[] args, final File archive, final File store) throws IOException {
+        final List<File> segments = PageArchive.segments(archive);
+        System.out.println("Re-indexing " + segments.size() + " archive segments from " + archive);
+        final long start = System.currentTimeMillis();
+
+        handler = handler(new PrintWriter(new FileWriter("errlog.txt")));
+        boilerplate(args);
+        SolrManager.init(sink(args), 5000, 2, TimeUnit.MINUTES.toMillis(3), new File(store, "solr-spill.bin"));
+        solrManager = SolrManager.getInstance();
+        duplicates(args);
+        duplicateIndex = DuplicateIndex.getInstance();
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final Stage<Triple<SolrInputDocument, Collection<String>, Collection<String>>> index = new Stage<>("Index",
+                intOption(args, "index-queue", 1000), intOption(args, "index-threads", 2), false, handler, triple -> {
+            index(triple.getLeft());
+            PAGES_INDEXED.increment();
+        });
+
+        final Stage<Document> extract = new Stage<>("Extract",
+                intOption(args, "extract-queue", 1000), intOption(args, "extract-threads", cores), false, handler,
+                document -> index.accept(IndexManager.index(document)));
+
+        final Stage<Pair<String, InputStream>> parse = new Stage<>("Parse",
+                intOption(args, "parse-queue", 1000), intOption(args, "parse-threads", cores), false, handler, page -> {
+            final Document document = IndexManager.parse(page.getLeft(), page.getRight());
+            if (document != null) extract.accept(document);
+        });
+
+        // a page that changed was archived again; only its newest copy is indexed
+        final FingerprintTable latest = PageArchive.latest(archive, new File(store, "reindex.tbl"));
+        final Stage<File> read = new Stage<>("Archive Reader", Math.max(1, segments.size()),
+                intOption(args, "read-threads", Math.max(1, Math.min(segments.size(), cores / 2))), false, handler, segment -> {
+            final int id = PageArchive.id(segment) + 1;
+            try (PageArchive.Reader reader = new PageArchive.Reader(segment)) {
+                for (PageArchive.Record record = reader.next(); record != null; record = reader.next()) {
+                    final long slot = latest.find(UrlCanonicalizer.key(record.getUrl()));
+                    if (slot != -1 && latest.get(slot, 0) != id) continue;
+                    parse.accept(Pair.of(record.getUrl(), new ByteArrayInputStream(record.getBody())));
+                }
+            } catch (IOException e) {
+                System.err.print("\nCould not read " + segment + ": " + e.getMessage() + "\n");
+            }
+        });
+        segments.forEach(read);
+
+        final Thread progress = new Thread(() -> {
+            while (true) {
+                Sleeper.sleep(10_000);
+                System.out.print("\nPages Re-indexed: " + PAGES_INDEXED.sum() + "\n");
+            }
+        });
+        progress.setName("Re-index Progress");
+        progress.setDaemon(true);
+        progress.start();
+
+        try {
+            for (Stage<?> stage : Arrays.asList(read, parse, extract, index)) stage.close(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        SolrManager.shutdown();
+        latest.close();
+        System.out.println("Re-indexed " + PAGES_INDEXED.sum() + " pages in " + (System.currentTimeMillis() - start) / 1000 + " s");
+    }
+
+    /**
+     * Ranks the link graph recorded so far and overwrites the pagerank boost of every indexed
+     * page. Can run next to a crawler: it reads only what had been logged when it started.
+     */
+    private static void pageRank(final String[] args, final int maxIterations, final File store) throws IOException {
+        final long start = System.currentTimeMillis();
+        canonicalizer(args);
+        LinkGraph.init(new File(store, "graph"), 200_000_000L);
+        final LinkGraph linkGraph = LinkGraph.getInstance();
+
+        final File work = new File(store, "graph/pagerank");
+        System.out.println("Transposing Link Graph of " + linkGraph.size() + " pages");
+        try (LinkGraph.InLinks graph = linkGraph.transpose(work); IndexSink sink = sink(args)) {
+            System.out.println("Ranking " + graph.size() + " pages with " + graph.edges() + " links");
+            final ForkJoinPool pool = new ForkJoinPool(intOption(args, "rank-threads", Runtime.getRuntime().availableProcessors()));
+            final PageRank pageRank = new PageRank(graph, work, pool);
+            final int iterations = pageRank.compute(0.85, 1e-6, maxIterations);
+            pool.shutdown();
+
+            final long pushed = pageRank.push(linkGraph, sink);
+            sink.commit(false);
+            pageRank.close();
+            System.out.println("Ranked in " + iterations + " iterations and updated " + pushed + " pages in "
+                    + (System.currentTimeMillis() - start) / 1000 + " s");
+        }
+    }
+
+    /**
+     * Serves searches of an index that another process is filling, or has filled. A Lucene
+     * index is only seen as of its latest hard commit.
+     */
+    private static void search(final String[] args, final int port) throws IOException {
+        final String luceneDir = option(args, "lucene");
+        final SearchBackend backend = luceneDir == null
+                ? new SolrSearchBackend(option(args, "solr-url", DEFAULT_SOLR_URL))
+                : new LuceneSearchBackend(new SearcherManager(FSDirectory.open(new File(luceneDir).toPath()), null),
+                new File("config/stopwords.txt"), new File("config/synonyms.txt"));
+        SearchService.init(backend, port, intOption(args, "search-cache", 10_000), intOption(args, "search-rows", 10), 1000,
+                intOption(args, "search-threads", 16));
+        Metrics.serve(intOption(args, "metrics-port", 9400));
+        System.out.println("Serving Searches on http://localhost:" + port + "/search?q=");
+
+        while (true) Sleeper.sleep(60_000);
+    }
+
+    /**
+     * Sends the document to the index unless it duplicates one already there, and returns the
+     * url of the original if it does.
+     */
+    private static String index(final SolrInputDocument document) {
+        final String original = duplicateIndex.findOriginal(document);
+        if (original == null) solrManager.accept(document);
+        else if (duplicateIndex.getMode() == DuplicateIndex.Mode.MERGE)
+            solrManager.accept(duplicateIndex.merge(original, document));
+        return original;
+    }
+
+    private static void canonicalizer(final String[] args) {
+        final String keepParams = option(args, "keep-params", "");
+        final String sessionParams = option(args, "session-params");
+        UrlCanonicalizer.init(keepParams.isEmpty() ? Collections.emptyList() : Arrays.asList(keepParams.split(",")),
+                sessionParams == null ? null : Arrays.asList(sessionParams.split(",")));
+    }
+
+    /**
+     * Only main content is indexed unless {@code --boilerplate=false}; {@code --templates=N} sets
+     * how many hosts' templates are learnt at once, 0 for none.
+     */
+    private static void boilerplate(final String[] args) {
+        if (Boolean.parseBoolean(option(args, "boilerplate", "true")))
+            BoilerplateFilter.init(intOption(args, "templates", 2000));
+    }
+
+    /**
+     * Pages within {@code --dup-distance=N} bits (default 3) of an earlier page's SimHash are
+     * duplicates: dropped, or indexed as a stub pointing at the original with
+     * {@code --dup-mode=merge}. Their links are followed only with
+     * {@code --follow-duplicate-links=true}.
+     */
+    private static void duplicates(final String[] args) {
+        DuplicateIndex.init(1_000_000, intOption(args, "dup-distance", 3),
+                DuplicateIndex.Mode.valueOf(option(args, "dup-mode", "drop").toUpperCase(Locale.ROOT)),
+                Boolean.parseBoolean(option(args, "follow-duplicate-links", "false")));
+    }
+
+    private static IndexSink sink(final String[] args) throws IOException {
+        final String luceneDir = option(args, "lucene");
+        return luceneDir == null
+                ? new RemoteSolrSink(option(args, "solr-url", DEFAULT_SOLR_URL))
+                : new LuceneSink(new File(luceneDir), new File("config/stopwords.txt"), 256);
+    }
+
+    /**
+     * Searches whatever the crawler is writing to, refreshed as it commits.
+     */
+    private static SearchBackend searchBackend(final String[] args, final IndexSink sink) throws IOException {
+        return sink instanceof LuceneSink
+                ? new LuceneSearchBackend(((LuceneSink) sink).getSearcherManager(), new File("config/stopwords.txt"), new File("config/synonyms.txt"))
+                : new SolrSearchBackend(option(args, "solr-url", DEFAULT_SOLR_URL));
+    }
+
+    private static Thread.UncaughtExceptionHandler handler(final PrintWriter error) {
+        return (t, e) -> {
+            synchronized (error) {
+                error.println("Thread: " + t.getName());
+                error.println(e.getMessage());
+                e.printStackTrace(error);
+
+                error.println();
+                error.println();
+                error.println();
+
+                error.flush();
+            }
+        };
+    }
+
+    private static CompletableFuture<HttpResponse<InputStream>> fetch(final String url) {
+        final CompletableFuture<HttpResponse<InputStream>> future = curlStore.curl(url);
+        if (future == null) hostScheduler.release(url);
+        else future.whenComplete((response, throwable) -> hostScheduler.release(url));
+        return future;
+    }
+
+    /**
+     * The value of a {@code --name=value} argument, or null if it was not given.
+     */
+    private static String option(final String[] args, final String name) {
+        return option(args, name, null);
+    }
+
+    private static String option(final String[] args, final String name, final String defaultValue) {
+        for (String arg : args) if (arg.startsWith("--" + name + "=")) return arg.substring(name.length() + 3);
+        return defaultValue;
+    }
+
+    private static int intOption(final String[] args, final String name, final int defaultValue) {
+        final String value = option(args, name);
+        return value == null ? defaultValue : Integer.parseInt(value);
     }
 
     private static Stream<String> getSeed() {
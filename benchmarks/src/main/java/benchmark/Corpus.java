@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The checked-in HTML pages under {@code corpus/}, listed in {@code corpus/pages.txt}.
+ */
+public class Corpus {
+
+    public static final String BASE_URL = "http://corpus.example.com/";
+
+    public static List<String> names() {
+        final List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open("pages.txt"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) if (!line.trim().isEmpty()) names.add(line.trim());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return names;
+    }
+
+    public static byte[] page(final String name) {
+        try (InputStream input = open(name)) {
+            return input.readAllBytes();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Map<String, byte[]> pages() {
+        final Map<String, byte[]> pages = new LinkedHashMap<>();
+        for (String name : names()) pages.put(name, page(name));
+        return pages;
+    }
+
+    private static InputStream open(final String name) {
+        final InputStream input = Corpus.class.getClassLoader().getResourceAsStream("corpus/" + name);
+        if (input == null) throw new IllegalStateException("Missing corpus file: " + name);
+        return input;
+    }
+}
@@ -0,0 +1,66 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A deterministic stream of outlinks shaped like a real crawl: a skewed host distribution, a
+ * fraction of links pointing at pages seen before, and the usual query strings and fragments.
+ */
+public class UrlStream {
+
+    private static final String[] PATHS = {"news", "blog", "wiki", "products", "2016/03", "tag", "user", "static"};
+
+    private final Random random;
+    private final Random hostRandom = new Random();
+    private final long seed;
+    private final int hosts;
+    private final double repeatRatio;
+    private long next = 0;
+
+    public UrlStream(final long seed, final int hosts, final double repeatRatio) {
+        this.random = new Random(seed);
+        this.seed = seed;
+        this.hosts = hosts;
+        this.repeatRatio = repeatRatio;
+    }
+
+    public String next() {
+        final long page = next > 0 && random.nextDouble() < repeatRatio ? (long) (random.nextDouble() * next) : next++;
+        // drawn from the page id, so a repeated page keeps its host and really is the same url
+        hostRandom.setSeed(seed * 31 + page);
+        final int host = (int) Math.min(hosts - 1, Math.abs(hostRandom.nextGaussian()) * hosts / 4);
+        final String path = PATHS[(int) (page % PATHS.length)];
+
+        final StringBuilder url = new StringBuilder(64)
+                .append(page % 3 == 0 ? "https://" : "http://")
+                .append("www.host").append(host).append(".example.com/")
+                .append(path).append('/').append(page);
+        if (page % 5 == 0) url.append("?ref=").append(page % 17);
+        if (page % 7 == 0) url.append("#section-").append(page % 4);
+        return url.toString();
+    }
+
+    public List<String> next(final int count) {
+        final List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) urls.add(next());
+        return urls;
+    }
+}
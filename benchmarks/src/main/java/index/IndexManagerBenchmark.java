@@ -0,0 +1,75 @@
+package index;
+
+import benchmark.Corpus;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexManagerBenchmark {
+
+    @Param({"small-blog-post.html", "news-front-page.html", "large-reference-manual.html", "messy-legacy-page.html"})
+    public String page;
+
+    /**
+     * Main content only, by density; templates would learn the one page and drop all of it.
+     */
+    @Param({"true", "false"})
+    public boolean boilerplate;
+
+    private byte[] html;
+    private Document document;
+    private String text;
+
+    @Setup
+    public void setup() {
+        if (boilerplate) BoilerplateFilter.init(0);
+        html = Corpus.page(page);
+        document = IndexManager.parse(Corpus.BASE_URL + page, new ByteArrayInputStream(html));
+        text = document.text();
+    }
+
+    @Benchmark
+    public Document parse() {
+        return IndexManager.parse(Corpus.BASE_URL + page, new ByteArrayInputStream(html));
+    }
+
+    @Benchmark
+    public Object index() {
+        return IndexManager.index(document);
+    }
+
+    @Benchmark
+    public Object parseAndIndex() {
+        return IndexManager.index(IndexManager.parse(Corpus.BASE_URL + page, new ByteArrayInputStream(html)));
+    }
+
+    @Benchmark
+    public List<String> chunkToLength() {
+        return IndexManager.chunkToLength(text);
+    }
+}
@@ -0,0 +1,73 @@
+package index;
+
+import benchmark.Corpus;
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Indexing cost on its own: the corpus pages, already extracted, written to an embedded Lucene
+ * index by several threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LuceneSinkBenchmark {
+
+    private final List<SolrInputDocument> documents = new ArrayList<>();
+    private File dir;
+    private LuceneSink sink;
+
+    @Setup
+    public void setup() throws IOException {
+        for (String page : Corpus.names()) {
+            final String url = Corpus.BASE_URL + page;
+            documents.add(IndexManager.index(IndexManager.parse(url, new ByteArrayInputStream(Corpus.page(page)))).getLeft());
+        }
+
+        // run from either the repository root or the benchmarks module
+        final File stopwords = new File("config/stopwords.txt").exists() ? new File("config/stopwords.txt") : new File("../config/stopwords.txt");
+        dir = Files.createTempDirectory("lucene-sink").toFile();
+        sink = new LuceneSink(dir, stopwords, 64);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+        Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Benchmark
+    public void add() throws IOException {
+        sink.add(documents, 1000);
+    }
+}
@@ -0,0 +1,214 @@
+package load;
+
+import utils.Histogram;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Crawls a {@link SyntheticWeb} into a {@link StubSolr} and reports how the crawler kept up:
+ * pages indexed per second, the time from a page being served to it arriving at Solr, and the
+ * crawler's heap over time.
+ * <p>
+ * The crawler runs as a separate JVM, exactly as {@code java Main} would, in a fresh working
+ * directory, with the synthetic host names resolved through a hosts file. Nothing leaves the
+ * machine, and the same arguments give the same web on every run.
+ * <p>
+ * {@code java -cp target/benchmarks.jar load.LoadDriver --duration=120 --pages=50000 --hosts=500}
+ */
+public class LoadDriver {
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final int pages = intOption(args, "pages", 20_000);
+        final int hosts = intOption(args, "hosts", 200);
+        final int duration = intOption(args, "duration", 120);
+        final File work = new File(option(args, "work", "load-run"));
+
+        final SyntheticWeb web = new SyntheticWeb(0, Long.parseLong(option(args, "seed", "42")), pages, hosts,
+                intOption(args, "fanout", 10), doubleOption(args, "same-host", 0.5), intOption(args, "page-bytes", 20_000),
+                doubleOption(args, "latency-ms", 20), doubleOption(args, "p99-latency-ms", 200),
+                doubleOption(args, "error-rate", 0.01), doubleOption(args, "timeout-rate", 0.002),
+                doubleOption(args, "not-found-rate", 0.01), intOption(args, "hang-ms", 35_000));
+
+        final Histogram latency = new Histogram();
+        final AtomicLongArray indexed = new AtomicLongArray(pages);
+        final StubSolr solr = new StubSolr(0, id -> {
+            final int page = SyntheticWeb.page(id);
+            final long served = web.firstServed(page);
+            // a page indexed again after a recrawl says nothing about end-to-end latency
+            if (served != 0 && indexed.compareAndSet(page, 0, 1)) latency.recordSince(served);
+        });
+
+        prepare(work, web, hosts, pages);
+        final int metricsPort = freePort();
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + option(args, "heap", "2g"),
+                "-cp", classPath(),
+                "Main",
+                "--store=store",
+                "--solr-url=" + solr.getUrl(),
+                "--hosts-file=hosts",
+                "--metrics-port=" + metricsPort,
+                "--crawl-delay-ms=" + intOption(args, "crawl-delay-ms", 100)));
+        final String crawlerArgs = option(args, "crawler-args", "");
+        if (!crawlerArgs.isEmpty()) command.addAll(Arrays.asList(crawlerArgs.split(" ")));
+
+        System.out.println("Serving " + pages + " pages on " + hosts + " hosts at port " + web.getPort()
+                + ", Solr stub at " + solr.getUrl() + ", crawling for " + duration + " s");
+        final Process crawler = new ProcessBuilder(command)
+                .directory(work)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(work, "crawler.log"))
+                .start();
+
+        final HttpClient client = HttpClient.newHttpClient();
+        final long[] documents = new long[duration + 1];
+        final long[] heap = new long[duration + 1];
+        final long start = System.nanoTime();
+        int recorded = 0;
+        try (PrintWriter csv = new PrintWriter(new FileWriter(new File(work, "load-report.csv")))) {
+            csv.println("second,pages_served,documents_indexed,documents_per_second,heap_mb");
+            for (int second = 1; second <= duration && crawler.isAlive(); second++) {
+                Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1_000_000);
+                documents[second] = solr.documents();
+                heap[second] = scrape(client, metricsPort, "memory_used_bytes") / 1_000_000;
+                recorded = second;
+                final long rate = documents[second] - documents[second - 1];
+                csv.println(second + "," + web.served() + "," + documents[second] + "," + rate + "," + heap[second]);
+                if (second % 10 == 0)
+                    System.out.println(second + " s: " + web.served() + " pages served, " + documents[second]
+                            + " indexed (" + rate + "/s), heap " + heap[second] + " MB");
+            }
+        }
+
+        if (!crawler.isAlive())
+            System.err.print("\nThe crawler exited early with status " + crawler.exitValue() + ", see " + new File(work, "crawler.log") + "\n");
+        crawler.destroy();
+        if (!crawler.waitFor(60, TimeUnit.SECONDS)) crawler.destroyForcibly();
+        web.close();
+        solr.close();
+        report(recorded, documents, heap, latency, web, solr);
+    }
+
+    /**
+     * Summarizes seconds 1 to {@code recorded}, the ones the crawler was sampled for.
+     */
+    private static void report(final int recorded, final long[] documents, final long[] heap, final Histogram latency,
+                               final SyntheticWeb web, final StubSolr solr) {
+        long peak = 0, heapMax = 0, heapSum = 0;
+        for (int second = 1; second <= recorded; second++) {
+            peak = Math.max(peak, documents[second] - documents[second - 1]);
+            heapMax = Math.max(heapMax, heap[second]);
+            heapSum += heap[second];
+        }
+        final int samples = recorded;
+        final long last = documents[recorded];
+        final long half = documents[recorded / 2];
+
+        System.out.println();
+        System.out.println("Pages served:        " + web.served() + " (" + web.errors() + " errors and timeouts, "
+                + web.bytes() / 1_000_000 + " MB)");
+        System.out.println("Documents indexed:   " + solr.documents() + " in " + solr.requests() + " requests, "
+                + solr.commits() + " commits");
+        System.out.println("Pages per second:    " + String.format("%.1f", last / (double) Math.max(1, samples)) + " overall, "
+                + String.format("%.1f", (last - half) / (double) Math.max(1, samples - samples / 2)) + " over the second half, "
+                + peak + " peak");
+        System.out.println("Served to indexed:   p50 " + latency.percentile(0.5) / 1000 + " ms, p90 "
+                + latency.percentile(0.9) / 1000 + " ms, p99 " + latency.percentile(0.99) / 1000 + " ms, max "
+                + latency.max() / 1000 + " ms");
+        System.out.println("Crawler heap:        " + heapSum / Math.max(1, samples) + " MB mean, " + heapMax + " MB max");
+    }
+
+    /**
+     * A fresh working directory with the seed list and a hosts file naming every synthetic host.
+     */
+    private static void prepare(final File work, final SyntheticWeb web, final int hosts, final int pages) throws IOException {
+        if (work.exists()) {
+            try (Stream<Path> files = Files.walk(work.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        work.mkdirs();
+
+        try (PrintWriter seed = new PrintWriter(new FileWriter(new File(work, "seed.txt")));
+             PrintWriter hostsFile = new PrintWriter(new FileWriter(new File(work, "hosts")))) {
+            for (int page = 0; page < Math.min(hosts, pages); page++) seed.println(web.url(page));
+            for (int host = 0; host < hosts; host++) hostsFile.println("127.0.0.1 " + web.host(host));
+        }
+    }
+
+    /**
+     * Our own class path with every entry made absolute, since the crawler runs elsewhere.
+     */
+    private static String classPath() {
+        return Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> new File(entry).getAbsolutePath())
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private static long scrape(final HttpClient client, final int port, final String metric) {
+        try {
+            final HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/metrics"))
+                    .timeout(Duration.ofSeconds(2)).build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            for (String line : response.body().split("\n"))
+                if (line.startsWith(metric + " ")) return (long) Double.parseDouble(line.substring(metric.length() + 1));
+        } catch (IOException | RuntimeException e) {
+            // not up yet, or already shutting down
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String option(final String[] args, final String name, final String defaultValue) {
+        for (String arg : args) if (arg.startsWith("--" + name + "=")) return arg.substring(name.length() + 3);
+        return defaultValue;
+    }
+
+    private static int intOption(final String[] args, final String name, final int defaultValue) {
+        return Integer.parseInt(option(args, name, String.valueOf(defaultValue)));
+    }
+
+    private static double doubleOption(final String[] args, final String name, final double defaultValue) {
+        return Double.parseDouble(option(args, name, String.valueOf(defaultValue)));
+    }
+}
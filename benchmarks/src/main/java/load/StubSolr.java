@@ -0,0 +1,144 @@
+package load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Stands in for the {@code www} core: accepts the javabin update requests SolrJ sends, hands the
+ * id of every document to a listener, counts documents and commits, and answers like Solr would,
+ * without indexing anything. Whatever the crawler's throughput is measured against it is
+ * therefore the crawler's own.
+ */
+public class StubSolr implements Closeable {
+
+    private final HttpServer server;
+    private final Consumer<String> listener;
+    private final LongAdder documents = new LongAdder(), requests = new LongAdder(), commits = new LongAdder(), bytes = new LongAdder();
+
+    public StubSolr(final int port, final Consumer<String> listener) throws IOException {
+        this.listener = listener;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        server.setExecutor(Executors.newFixedThreadPool(8, runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Stub Solr");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/solr/www/update", this::update);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/solr/www";
+    }
+
+    public long documents() {
+        return documents.sum();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long commits() {
+        return commits.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    private void update(final HttpExchange exchange) throws IOException {
+        try {
+            requests.increment();
+            String params = exchange.getRequestURI().getRawQuery();
+            final String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            try (InputStream body = new CountingInput(exchange.getRequestBody())) {
+                if (type != null && type.contains("javabin")) {
+                    new JavaBinUpdateRequestCodec().unmarshal(body, (document, update, commitWithin, overwrite) -> {
+                        documents.increment();
+                        listener.accept(String.valueOf(document.getFieldValue("id")));
+                    });
+                } else {
+                    // requests without documents, such as commits, send their parameters as a form
+                    final String form = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                    if (type != null && type.contains("form")) params = params == null ? form : params + "&" + form;
+                }
+            }
+            if (params != null && params.matches("(^|.*&)(commit|softCommit)=true(&.*|$)")) commits.increment();
+
+            final NamedList<Object> header = new SimpleOrderedMap<>();
+            header.add("status", 0);
+            header.add("QTime", 0);
+            final NamedList<Object> response = new NamedList<>();
+            response.add("responseHeader", header);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, out);
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, out.size());
+            try (OutputStream output = exchange.getResponseBody()) {
+                out.writeTo(output);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private class CountingInput extends FilterInputStream {
+        private CountingInput(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) bytes.increment();
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) bytes.add(n);
+            return n;
+        }
+    }
+}
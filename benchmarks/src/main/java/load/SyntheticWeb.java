@@ -0,0 +1,237 @@
+package load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A local web of {@code pages} generated pages spread over {@code hosts} host names, all served
+ * from one port (the crawler resolves the names to 127.0.0.1 through a hosts file).
+ * <p>
+ * Everything about a page is derived from the seed and its number alone: its outcome (served,
+ * 404, 500 or a hang past the crawler's timeout), its latency, its size, its words and its
+ * links. Two runs with the same parameters therefore serve the same web. Link targets are skewed
+ * towards low page numbers, so some pages are far more linked to than others, and a share of
+ * them stay on the page's own host.
+ * <p>
+ * The first time each page is served is recorded, so {@link LoadDriver} can tell how long it
+ * took to reach the index.
+ */
+public class SyntheticWeb implements Closeable {
+
+    private static final String ROBOTS = "User-agent: *\nAllow: /\n";
+
+    private final int pages, hosts, fanout, meanBytes;
+    private final double sameHost, medianLatency, latencySigma, errorRate, timeoutRate, notFoundRate;
+    private final long seed, hangMillis;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final AtomicLongArray firstServed;
+    private final LongAdder served = new LongAdder(), bytes = new LongAdder(), errors = new LongAdder();
+
+    /**
+     * @param p99Latency    the latency 99% of pages are served under; latencies are log-normal
+     * @param hangMillis    how long pages picked to time out hang before the connection is closed
+     */
+    public SyntheticWeb(final int port, final long seed, final int pages, final int hosts, final int fanout, final double sameHost,
+                        final int meanBytes, final double medianLatency, final double p99Latency, final double errorRate,
+                        final double timeoutRate, final double notFoundRate, final long hangMillis) throws IOException {
+        this.seed = seed;
+        this.pages = pages;
+        this.hosts = hosts;
+        this.fanout = fanout;
+        this.sameHost = sameHost;
+        this.meanBytes = meanBytes;
+        this.medianLatency = medianLatency;
+        this.latencySigma = medianLatency > 0 && p99Latency > medianLatency ? Math.log(p99Latency / medianLatency) / 2.326 : 0;
+        this.errorRate = errorRate;
+        this.timeoutRate = timeoutRate;
+        this.notFoundRate = notFoundRate;
+        this.hangMillis = hangMillis;
+        firstServed = new AtomicLongArray(pages);
+
+        // latencies are slept through, so every request in flight needs a thread
+        workers = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Synthetic Web");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String host(final int page) {
+        return "h" + (page % hosts) + ".web.test";
+    }
+
+    public String url(final int page) {
+        return "http://" + host(page) + ":" + getPort() + "/p/" + page;
+    }
+
+    /**
+     * The page a url of this web points to, or -1.
+     */
+    public static int page(final String url) {
+        final int path = url.lastIndexOf("/p/");
+        if (path == -1) return -1;
+        try {
+            return Integer.parseInt(url.substring(path + 3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * When the page was first served, as a {@link System#nanoTime()} reading, or 0.
+     */
+    public long firstServed(final int page) {
+        return page >= 0 && page < pages ? firstServed.get(page) : 0;
+    }
+
+    public long served() {
+        return served.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String path = exchange.getRequestURI().getPath();
+            if (path.equals("/robots.txt")) {
+                respond(exchange, 200, "text/plain", ROBOTS.getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+
+            final int page = path.startsWith("/p/") ? page(path) : -1;
+            if (page < 0 || page >= pages) {
+                respond(exchange, 404, "text/plain", new byte[0]);
+                return;
+            }
+
+            final SplittableRandom random = new SplittableRandom(seed * 0x9e3779b97f4a7c15L + page);
+            final double outcome = random.nextDouble();
+            sleep(latencySigma == 0 ? (long) medianLatency : (long) (medianLatency * Math.exp(latencySigma * gaussian(random))));
+
+            if (outcome < timeoutRate) {
+                sleep(hangMillis);
+                errors.increment();
+            } else if (outcome < timeoutRate + errorRate) {
+                errors.increment();
+                respond(exchange, 500, "text/plain", new byte[0]);
+            } else if (outcome < timeoutRate + errorRate + notFoundRate) {
+                errors.increment();
+                respond(exchange, 404, "text/plain", new byte[0]);
+            } else {
+                firstServed.compareAndSet(page, 0, System.nanoTime());
+                served.increment();
+                respond(exchange, 200, "text/html; charset=utf-8", render(page, random));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] render(final int page, final SplittableRandom random) {
+        final int size = (int) Math.min(meanBytes * 8L, Math.max(256, meanBytes * Math.exp(0.5 * gaussian(random) - 0.125)));
+        final StringBuilder html = new StringBuilder(size + 256);
+        html.append("<!DOCTYPE html><html><head><title>Page ").append(page).append("</title></head><body><h1>Page ")
+                .append(page).append(" ").append(word(random)).append("</h1>");
+        for (int i = 0; i < fanout; i++) {
+            final int target;
+            if (random.nextDouble() < sameHost) {
+                final int onHost = Math.max(1, pages / hosts);
+                target = (page % hosts) + hosts * random.nextInt(onHost);
+            } else {
+                final double u = random.nextDouble();
+                target = (int) (pages * u * u * u);
+            }
+            if (target < pages) html.append("<a href=\"").append(url(target)).append("\">").append(word(random)).append("</a> ");
+        }
+
+        while (html.length() < size) {
+            html.append("<p>");
+            for (int i = 0; i < 40; i++) {
+                if (i % 13 == 12) html.append("<b>").append(word(random)).append("</b> ");
+                else html.append(word(random)).append(' ');
+            }
+            html.append("</p>");
+        }
+        return html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A word from a vocabulary of 50000 with roughly Zipfian frequencies.
+     */
+    private static String word(final SplittableRandom random) {
+        return "w" + (int) Math.exp(random.nextDouble() * Math.log(50_000));
+    }
+
+    private static double gaussian(final SplittableRandom random) {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    private void respond(final HttpExchange exchange, final int status, final String type, final byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+        bytes.add(body.length);
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+}
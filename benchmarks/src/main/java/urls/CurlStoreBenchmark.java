@@ -0,0 +1,107 @@
+package urls;
+
+import benchmark.Corpus;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Fetches the corpus from a server on the loopback interface, so what is measured is the
+ * fetcher's own overhead (request setup, connection reuse, hand-off through take()) and not the
+ * internet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CurlStoreBenchmark {
+
+    private HttpServer server;
+    private CurlStore curlStore;
+    private List<String> urls;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final Map<String, byte[]> pages = Corpus.pages();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/", exchange -> {
+            final byte[] body = pages.get(exchange.getRequestURI().getPath().substring(1));
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        final String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        urls = new ArrayList<>();
+        for (String name : pages.keySet()) urls.add(base + name);
+
+        curlStore = CurlStore.getInstance(250, TimeUnit.SECONDS.toMillis(30));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+    }
+
+    @Benchmark
+    public long fetch(final Cursor cursor) throws IOException, InterruptedException {
+        final String url = urls.get(cursor.next++ % urls.size());
+        final CompletableFuture<HttpResponse<InputStream>> future = curlStore.curl(url);
+        curlStore.accept(Pair.of(url, future));
+        final Pair<String, InputStream> page = curlStore.take();
+
+        long read = 0;
+        try (InputStream input = page.getRight()) {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) read += n;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,99 @@
+package urls;
+
+import benchmark.UrlStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlStoreBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        private File dir;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = Files.createTempDirectory("url-store-benchmark").toFile();
+            UrlStore.init(Stream.empty(), dir, 50_000_000L, TimeUnit.DAYS.toMillis(7));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Links {
+        private static final int PAGES = 20_000, LINKS_PER_PAGE = 50;
+
+        private List<List<String>> pages;
+        private int page = 0, link = 0;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            final UrlStream stream = new UrlStream(Thread.currentThread().getId(), 10_000, 0.3);
+            pages = new ArrayList<>(PAGES);
+            for (int i = 0; i < PAGES; i++) pages.add(stream.next(LINKS_PER_PAGE));
+        }
+
+        private String nextUrl() {
+            if (++link == LINKS_PER_PAGE) {
+                link = 0;
+                nextPage();
+            }
+            return pages.get(page).get(link);
+        }
+
+        private List<String> nextPage() {
+            if (++page == PAGES) page = 0;
+            return pages.get(page);
+        }
+    }
+
+    @Benchmark
+    public void accept(final Store store, final Links links) {
+        UrlStore.getInstance().accept(links.nextUrl());
+    }
+
+    @Benchmark
+    public String canonicalize(final Links links) {
+        return UrlCanonicalizer.canonicalize(links.nextUrl());
+    }
+
+    @Benchmark
+    public void acceptAll(final Store store, final Links links) {
+        UrlStore.getInstance().acceptAll(links.nextPage());
+    }
+}
@@ -0,0 +1,324 @@
+package index;
+
+import urls.HostScheduler;
+import utils.Fingerprint;
+import utils.Metrics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Picks the main content out of a page's text blocks, so navigation, footers, cookie banners and
+ * sidebars are not indexed with every page of a site.
+ * <p>
+ * {@link IndexManager} cuts the body text into {@link Blocks} at block-level elements, counting
+ * how much of each is link text and how much lies inside elements that mark page furniture
+ * ({@code nav}, {@code footer}, {@code aside}, ids and classes like "cookie" or "sidebar"). A
+ * block is content if it is mostly not marked and passes the text- and link-density rules of
+ * Kohlsch&uuml;tter et al. (WSDM 2010): link density at most 1/3, and dense enough text compared to
+ * its neighbours, density being words per 80-character line. Unlike boilerpipe, which pads the
+ * page with empty blocks, a block at either end of the page stands in for its missing neighbour,
+ * so an article's last paragraph is not lost for having nothing after it.
+ * <p>
+ * With templates on, each host also keeps a small table of how many of its recent pages every
+ * block (by fingerprint) appeared on, and a block already seen on {@link #MIN_TEMPLATE_PAGES}
+ * pages and a tenth of the host's pages is dropped whatever its density. Only the first and last
+ * {@link #LEARNED_BLOCKS} blocks of a page are counted, which is where templates are, so one long
+ * page cannot flood the table (24 KB a host). Counts are halved when a table fills up, so a
+ * template that changes is learnt again, and the least recently seen hosts beyond
+ * {@code maxHosts} are forgotten. The first pages of a host are filtered by density alone. If
+ * nothing would be left, the largest block that is not template is kept.
+ */
+public class BoilerplateFilter {
+
+    private static final int LINE_LENGTH = 80;
+    private static final int MIN_TEMPLATE_PAGES = 3;
+    private static final int TEMPLATE_SLOTS = 2048;
+    private static final int LEARNED_BLOCKS = 256;
+
+    private static final LongAdder MAIN_CHARS = Metrics.counter("extract_text_chars", "part", "main");
+    private static final LongAdder BOILERPLATE_CHARS = Metrics.counter("extract_text_chars", "part", "boilerplate");
+    private static final LongAdder MARKED = Metrics.counter("boilerplate_blocks", "reason", "marked");
+    private static final LongAdder DENSITY = Metrics.counter("boilerplate_blocks", "reason", "density");
+    private static final LongAdder TEMPLATE = Metrics.counter("boilerplate_blocks", "reason", "template");
+    private static final LongAdder KEPT = Metrics.counter("boilerplate_blocks", "reason", "kept");
+
+    private static BoilerplateFilter ourInstance = new BoilerplateFilter();
+
+    private static boolean enabled;
+    private static int maxHosts;
+    private static Map<String, Template> templates;
+
+    private BoilerplateFilter() {
+    }
+
+    /**
+     * @param maxHosts hosts to learn templates for at once, or 0 to filter by density alone
+     */
+    public static synchronized void init(final int maxHosts) {
+        BoilerplateFilter.maxHosts = maxHosts;
+        if (maxHosts > 0) {
+            templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Template> eldest) {
+                    return size() > BoilerplateFilter.maxHosts;
+                }
+            };
+            Metrics.gauge("boilerplate_template_hosts", () -> {
+                synchronized (templates) {
+                    return templates.size();
+                }
+            });
+        }
+        enabled = true;
+    }
+
+    public static BoilerplateFilter getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Appends the main content blocks of the page's text to {@code out}, separated by spaces.
+     */
+    public void mainText(final String url, final CharSequence text, final Blocks blocks, final StringBuilder out) {
+        final int n = blocks.size;
+        final int[] words = new int[n];
+        final boolean[] keep = new boolean[n];
+        for (int b = 0; b < n; b++) words[b] = words(text, blocks.start(b), blocks.end(b));
+
+        for (int b = 0; b < n; b++) {
+            final int length = blocks.end(b) - blocks.start(b);
+            if (blocks.marked(b) * 2 > length) {
+                MARKED.increment();
+            } else if (!isContent(blocks.anchor(b) / (double) length, density(words, blocks, b),
+                    b == 0 ? 0 : blocks.anchor(b - 1) / (double) (blocks.end(b - 1) - blocks.start(b - 1)),
+                    density(words, blocks, b == 0 ? b : b - 1), density(words, blocks, b == n - 1 ? b : b + 1))) {
+                DENSITY.increment();
+            } else {
+                keep[b] = true;
+            }
+        }
+
+        final Template template = template(url);
+        int largest = -1;
+        if (template != null) {
+            final long[] fingerprints = new long[n];
+            for (int b = 0; b < n; b++) fingerprints[b] = Fingerprint.of(text, blocks.start(b), blocks.end(b));
+            synchronized (template) {
+                for (int b = 0; b < n; b++) {
+                    final boolean repeated = template.isRepeated(fingerprints[b]);
+                    if (keep[b] && repeated) {
+                        keep[b] = false;
+                        TEMPLATE.increment();
+                    }
+                    if (!repeated && (largest == -1 || words[b] > words[largest])) largest = b;
+                }
+                template.learn(fingerprints);
+            }
+        } else {
+            for (int b = 0; b < n; b++) if (largest == -1 || words[b] > words[largest]) largest = b;
+        }
+
+        boolean any = false;
+        for (int b = 0; b < n; b++) any |= keep[b];
+        if (!any && largest != -1) keep[largest] = true;
+
+        final int before = out.length();
+        int total = 0;
+        for (int b = 0; b < n; b++) {
+            total += blocks.end(b) - blocks.start(b);
+            if (!keep[b]) continue;
+            KEPT.increment();
+            if (out.length() > 0) out.append(' ');
+            out.append(text, blocks.start(b), blocks.end(b));
+        }
+        MAIN_CHARS.add(out.length() - before);
+        BOILERPLATE_CHARS.add(Math.max(0, total - (out.length() - before)));
+    }
+
+    /**
+     * The density rules classifier of boilerpipe's {@code DensityRulesClassifier}.
+     */
+    private static boolean isContent(final double linkDensity, final double density, final double previousLinkDensity,
+                                     final double previousDensity, final double nextDensity) {
+        if (linkDensity > 1 / 3.0) return false;
+        if (previousLinkDensity > 0.555556) return nextDensity > 11;
+        if (density > 9) return nextDensity != 0;
+        return nextDensity > 10 || previousDensity > 4;
+    }
+
+    /**
+     * Words per line of the block wrapped at {@link #LINE_LENGTH}, leaving out the last line
+     * unless it is the only one.
+     */
+    private static double density(final int[] words, final Blocks blocks, final int block) {
+        return density(words[block], blocks.end(block) - blocks.start(block));
+    }
+
+    private static double density(final int words, final int length) {
+        final int lines = length / LINE_LENGTH;
+        if (lines == 0) return words;
+        return words * (lines * LINE_LENGTH) / (double) length / lines;
+    }
+
+    private static int words(final CharSequence text, final int start, final int end) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = start; i < end; i++) {
+            final boolean letter = Character.isLetterOrDigit(text.charAt(i));
+            if (letter && !inWord) words++;
+            inWord = letter;
+        }
+        return words;
+    }
+
+    private static Template template(final String url) {
+        if (templates == null) return null;
+        final String host = HostScheduler.hostOf(url);
+        synchronized (templates) {
+            return templates.computeIfAbsent(host, ignored -> new Template());
+        }
+    }
+
+    /**
+     * The blocks of a page's text, as ranges into it with the number of link and marked characters
+     * in each. One instance is reused from page to page.
+     */
+    public static class Blocks {
+        private int[] values = new int[4 * 64];
+        private int size;
+
+        public void reset() {
+            size = 0;
+        }
+
+        public void add(final int start, final int end, final int anchor, final int marked) {
+            if (size * 4 == values.length) values = Arrays.copyOf(values, values.length * 2);
+            values[size * 4] = start;
+            values[size * 4 + 1] = end;
+            values[size * 4 + 2] = anchor;
+            values[size * 4 + 3] = marked;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Counts more of the block's characters as marked, once it is known they are.
+         */
+        public void mark(final int block, final int chars) {
+            values[block * 4 + 3] = Math.min(values[block * 4 + 3] + chars, values[block * 4 + 1] - values[block * 4]);
+        }
+
+        private int start(final int block) {
+            return values[block * 4];
+        }
+
+        private int end(final int block) {
+            return values[block * 4 + 1];
+        }
+
+        private int anchor(final int block) {
+            return values[block * 4 + 2];
+        }
+
+        private int marked(final int block) {
+            return values[block * 4 + 3];
+        }
+    }
+
+    /**
+     * On how many of a host's recent pages each block appeared, in an open-addressed table of
+     * fingerprints and counts.
+     */
+    private static class Template {
+        private final long[] keys = new long[TEMPLATE_SLOTS];
+        private final int[] counts = new int[TEMPLATE_SLOTS];
+        private int used, pages;
+
+        private boolean isRepeated(final long key) {
+            final int slot = find(key);
+            if (slot == -1) return false;
+            return counts[slot] >= MIN_TEMPLATE_PAGES && counts[slot] * 10 >= pages;
+        }
+
+        /**
+         * Counts the page's first and last blocks, each once however often it appears on the page:
+         * a sorted copy puts repeats next to each other.
+         */
+        private void learn(final long[] fingerprints) {
+            pages++;
+            final long[] learned;
+            if (fingerprints.length > 2 * LEARNED_BLOCKS) {
+                learned = new long[2 * LEARNED_BLOCKS];
+                System.arraycopy(fingerprints, 0, learned, 0, LEARNED_BLOCKS);
+                System.arraycopy(fingerprints, fingerprints.length - LEARNED_BLOCKS, learned, LEARNED_BLOCKS, LEARNED_BLOCKS);
+            } else {
+                learned = fingerprints.clone();
+            }
+            Arrays.sort(learned);
+
+            for (int b = 0; b < learned.length; b++) {
+                if (b > 0 && learned[b] == learned[b - 1]) continue;
+                if (used * 4 >= TEMPLATE_SLOTS * 3) decay();
+                int slot = (int) (learned[b] & (TEMPLATE_SLOTS - 1));
+                while (keys[slot] != 0 && keys[slot] != learned[b]) slot = (slot + 1) & (TEMPLATE_SLOTS - 1);
+                if (keys[slot] == 0) {
+                    keys[slot] = learned[b];
+                    used++;
+                }
+                counts[slot]++;
+            }
+        }
+
+        private int find(final long key) {
+            for (int slot = (int) (key & (TEMPLATE_SLOTS - 1)); keys[slot] != 0; slot = (slot + 1) & (TEMPLATE_SLOTS - 1))
+                if (keys[slot] == key) return slot;
+            return -1;
+        }
+
+        /**
+         * Halves every count and the page count, dropping blocks that fall to zero.
+         */
+        private void decay() {
+            final long[] oldKeys = keys.clone();
+            final int[] oldCounts = counts.clone();
+            Arrays.fill(keys, 0);
+            Arrays.fill(counts, 0);
+            used = 0;
+            pages /= 2;
+            for (int slot = 0; slot < TEMPLATE_SLOTS; slot++) {
+                if (oldKeys[slot] == 0 || oldCounts[slot] / 2 == 0) continue;
+                int to = (int) (oldKeys[slot] & (TEMPLATE_SLOTS - 1));
+                while (keys[to] != 0) to = (to + 1) & (TEMPLATE_SLOTS - 1);
+                keys[to] = oldKeys[slot];
+                counts[to] = oldCounts[slot] / 2;
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package index;
+
+import org.apache.solr.common.SolrInputDocument;
+import utils.Fingerprint;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Remembers the SimHash of the most recently indexed pages and finds the ones a new page is a
+ * near-duplicate of.
+ * <p>
+ * The 64 bits are cut into {@code maxDistance + 1} bands; two hashes within {@code maxDistance}
+ * bits of each other must agree exactly on at least one band, so only pages sharing a band are
+ * compared. Pages live in a ring buffer, and each band chains them by bucket through plain int
+ * arrays, so the whole index is a few flat arrays no matter how many pages pass through it.
+ * <p>
+ * Each band has its own read-write lock. Lookups only take the read lock of the band they are
+ * walking, so index threads search in parallel; an insert takes every band's write lock, in
+ * order, just long enough to link the page in. Two near-duplicates looked up at the same moment
+ * may therefore both be let through.
+ */
+public class DuplicateIndex {
+
+    public enum Mode {
+        /**
+         * Duplicates are not sent to Solr at all.
+         */
+        DROP,
+        /**
+         * Duplicates are sent as a stub (id, title and the url of the original) instead of the full page.
+         */
+        MERGE
+    }
+
+    private static final int MIN_WORDS = 20;
+
+    private static DuplicateIndex ourInstance = new DuplicateIndex();
+
+    private static int maxDistance = 3;
+    private static Mode mode = Mode.DROP;
+    private static boolean followDuplicateLinks = false;
+
+    private static int bands, bandBits;
+    private static long[] hashes;
+    private static long[] sequence;
+    private static String[] urls;
+    private static int[][] buckets;
+    private static int[][] chains;
+    private static ReadWriteLock[] locks;
+    private static int bucketMask;
+    private static long inserted = 0;
+
+    private DuplicateIndex() {
+    }
+
+    public static synchronized void init(final int capacity, final int maxDistance, final Mode mode, final boolean followDuplicateLinks) {
+        DuplicateIndex.maxDistance = maxDistance;
+        DuplicateIndex.mode = mode;
+        DuplicateIndex.followDuplicateLinks = followDuplicateLinks;
+
+        bands = maxDistance + 1;
+        bandBits = 64 / bands;
+
+        hashes = new long[capacity];
+        sequence = new long[capacity];
+        urls = new String[capacity];
+
+        final int bucketCount = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        bucketMask = bucketCount - 1;
+        buckets = new int[bands][bucketCount];
+        chains = new int[bands][capacity];
+        for (int[] band : buckets) Arrays.fill(band, -1);
+        locks = new ReadWriteLock[bands];
+        for (int band = 0; band < bands; band++) locks[band] = new ReentrantReadWriteLock();
+        inserted = 0;
+    }
+
+    public static DuplicateIndex getInstance() {
+        return ourInstance;
+    }
+
+    public static SimHash simHash(final SolrInputDocument document) {
+        final SimHash simHash = new SimHash();
+        for (int i = 1; document.containsKey(i + "_text"); i++)
+            simHash.add(document.getFieldValue(i + "_text").toString());
+        return simHash;
+    }
+
+    /**
+     * Returns the url of an earlier page within {@code maxDistance} bits of this one, or records
+     * this page and returns null if there is none.
+     */
+    public String findOriginal(final SolrInputDocument document) {
+        if (hashes == null) return null;
+
+        final SimHash simHash = simHash(document);
+        if (simHash.words() < MIN_WORDS) return null;
+
+        final long hash = simHash.value();
+        final String url = document.getFieldValue("id").toString();
+
+        for (int band = 0; band < bands; band++) {
+            final Lock lock = locks[band].readLock();
+            lock.lock();
+            try {
+                final long key = band(hash, band);
+                int slot = buckets[band][bucket(key, band)];
+                long previous = Long.MAX_VALUE;
+                while (slot != -1 && sequence[slot] < previous) {
+                    if (band(hashes[slot], band) == key && SimHash.distance(hashes[slot], hash) <= maxDistance && !urls[slot].equals(url))
+                        return urls[slot];
+                    previous = sequence[slot];
+                    slot = chains[band][slot];
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        insert(hash, url);
+        return null;
+    }
+
+    public SolrInputDocument merge(final String original, final SolrInputDocument duplicate) {
+        final SolrInputDocument stub = new SolrInputDocument();
+        stub.setField("id", duplicate.getFieldValue("id"));
+        stub.setField("time", duplicate.getFieldValue("time"));
+        stub.setField("title", duplicate.getFieldValue("title"));
+        stub.setField("duplicate_of", original);
+        return stub;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean followsDuplicateLinks() {
+        return followDuplicateLinks;
+    }
+
+    /**
+     * Claims the oldest slot of the ring for the page. The slot's fields are read under any band's
+     * lock, so every band is locked while they change.
+     */
+    private static void insert(final long hash, final String url) {
+        for (ReadWriteLock lock : locks) lock.writeLock().lock();
+        try {
+            final int slot = (int) (inserted % hashes.length);
+            hashes[slot] = hash;
+            sequence[slot] = inserted++;
+            urls[slot] = url;
+
+            for (int band = 0; band < bands; band++) {
+                final int bucket = bucket(band(hash, band), band);
+                chains[band][slot] = buckets[band][bucket];
+                buckets[band][bucket] = slot;
+            }
+        } finally {
+            for (int band = bands - 1; band >= 0; band--) locks[band].writeLock().unlock();
+        }
+    }
+
+    private static long band(final long hash, final int band) {
+        final int shift = band * bandBits;
+        final int width = band == bands - 1 ? 64 - shift : bandBits;
+        return (hash >>> shift) & (width == 64 ? -1L : (1L << width) - 1);
+    }
+
+    private static int bucket(final long key, final int band) {
+        return (int) Fingerprint.mix(key * 31 + band) & bucketMask;
+    }
+}
@@ -5,11 +5,18 @@ import org.apache.solr.common.SolrInputDocument;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeVisitor;
+import urls.UrlCanonicalizer;
+import utils.Histogram;
+import utils.LimitedInputStream;
+import utils.Metrics;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Copyright 2016 Kunal Sheth
@@ -30,94 +37,352 @@ import java.util.stream.Collectors;
 public class IndexManager {
 
     private static final int fieldLength = 5000;
+    private static final int maxPageBytes = 2_000_000;
+
+    private static final String[] TAGS = {"h1", "h2", "h3", "strong", "em", "b", "u", "i"};
+    private static final String[] FURNITURE = {"cookie", "consent", "footer", "sidebar", "breadcrumb", "navbar", "menu", "share", "social", "newsletter", "related"};
+    private static final ThreadLocal<Extractor> EXTRACTOR = ThreadLocal.withInitial(Extractor::new);
+    private static final Histogram PARSE_TIME = Metrics.histogram("parse_micros");
+    private static final Histogram EXTRACT_TIME = Metrics.histogram("extract_micros");
+    private static final LongAdder TRUNCATED = Metrics.counter("parse_truncated");
 
     public static Document parse(String url, InputStream input) {
         try {
-            return Jsoup.parse(input, null, url);
+            final long start = System.nanoTime();
+            final LimitedInputStream limited = new LimitedInputStream(input, maxPageBytes);
+            final Document document = Jsoup.parse(limited, null, url);
+            PARSE_TIME.recordSince(start);
+            // pages archived before the fetch-time cap, or a cap above this one, are cut here
+            if (limited.isTruncated()) TRUNCATED.increment();
+            return document;
         } catch (IOException | IllegalArgumentException e) {
             System.err.print("\n" + e.getMessage() + "\n");
             return null;
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     public static Triple<SolrInputDocument, Collection<String>, Collection<String>> index(Document document) {
+        final long start = System.nanoTime();
         final SolrInputDocument index = new SolrInputDocument();
-        index.setField("id", document.location());
+        // the form every url is stored in, so the link graph and the index agree on a page's id
+        final String canonical = UrlCanonicalizer.canonicalize(document.location());
+        index.setField("id", canonical == null ? document.location() : canonical);
         index.setField("time", String.valueOf(System.currentTimeMillis()));
         index.setField("title", document.title());
 
-        final Set<String> links =
-                document.select("a[href]").stream()
-                        .map(e -> e.attr("abs:href"))
-                        .collect(Collectors.toSet());
-        final Set<String> media =
-                document.select("[src]").stream()
-                        .map(e -> e.attr("abs:src"))
-                        .collect(Collectors.toSet());
+        final Extractor extractor = EXTRACTOR.get();
+        extractor.reset();
+        document.traverse(extractor);
+        extractor.finish();
+
+        final Set<String> links = extractor.links;
+        final Set<String> media = extractor.media;
+        extractor.links = new HashSet<>();
+        extractor.media = new HashSet<>();
 
         links.forEach(link -> index.addField("link", link));
         media.forEach(link -> index.addField("media", link));
 
-        formatText(document.getElementsByTag("h1").stream())
-                .forEach(e -> index.addField("h1", e));
-
-        formatText(document.getElementsByTag("h2").stream())
-                .forEach(e -> index.addField("h2", e));
-
-        formatText(document.getElementsByTag("h3").stream())
-                .forEach(e -> index.addField("h3", e));
-
-        formatText(document.getElementsByTag("strong").stream())
-                .forEach(e -> index.addField("strong", e));
-
-        formatText(document.getElementsByTag("em").stream())
-                .forEach(e -> index.addField("em", e));
-
-        formatText(document.getElementsByTag("b").stream())
-                .forEach(e -> index.addField("b", e));
-
-        formatText(document.getElementsByTag("u").stream())
-                .forEach(e -> index.addField("u", e));
-
-        formatText(document.getElementsByTag("i").stream())
-                .forEach(e -> index.addField("i", e));
+        for (int tag = 0; tag < TAGS.length; tag++)
+            for (String text : extractor.fields.get(tag)) index.addField(TAGS[tag], text);
 
         int i = 0;
-        Collection<String> text = chunkToLength(document.text());
+        final BoilerplateFilter boilerplate = BoilerplateFilter.getInstance();
+        if (boilerplate.isEnabled()) {
+            extractor.main.setLength(0);
+            boilerplate.mainText(document.location(), extractor.text, extractor.blocks, extractor.main);
+        }
+        Collection<String> text = chunkToLength(boilerplate.isEnabled() ? extractor.main : extractor.text);
         for (String chunk : text) index.addField(++i + "_text", chunk);
 
+        EXTRACT_TIME.recordSince(start);
         return Triple.of(index, links, media);
     }
 
-    private static Stream<String> formatText(final Stream<Element> elements) {
-        return elements.map(Element::text)
-                .map(string -> string.replaceAll("\\s+", " "))
-                .map(String::trim)
-                .filter(string -> !(string.length() < 3))
-                .map(IndexManager::truncateToLength);
-    }
+    static List<String> chunkToLength(CharSequence text) {
+        int start = 0, end = text.length();
+        while (start < end && text.charAt(start) == ' ') start++;
+        while (end > start && text.charAt(end - 1) == ' ') end--;
+        if (end - start < fieldLength) return Collections.singletonList(text.subSequence(start, end).toString());
 
-    private static List<String> chunkToLength(String text) {
-        text = text.replaceAll("\\s+", " ").trim();
-        if (text.length() < fieldLength) return Collections.singletonList(text);
-
-        int i = 0;
-        List<String> chunks = new LinkedList<>();
+        int i = start;
+        final List<String> chunks = new ArrayList<>((end - start) / fieldLength + 1);
         while (true) {
-            int hardCutPoint = Math.min(text.length(), i + fieldLength);
-            int softCutPoint = text.lastIndexOf(' ', hardCutPoint);
-            int endIndex = (softCutPoint > i && hardCutPoint != text.length()) ? softCutPoint : hardCutPoint;
+            int hardCutPoint = Math.min(end, i + fieldLength);
+            int softCutPoint = lastSpace(text, i, hardCutPoint);
+            int endIndex = (softCutPoint > i && hardCutPoint != end) ? softCutPoint : hardCutPoint;
 
-            chunks.add(truncateToLength(text.substring(i, endIndex)).trim());
+            int from = i, to = endIndex;
+            while (from < to && text.charAt(from) == ' ') from++;
+            while (to > from && text.charAt(to - 1) == ' ') to--;
+            chunks.add(text.subSequence(from, to).toString());
 
-            if (endIndex == text.length()) break;
+            if (endIndex == end) break;
             i = endIndex;
         }
         return chunks;
     }
 
+    private static int lastSpace(final CharSequence text, final int from, final int to) {
+        for (int i = Math.min(to, text.length() - 1); i >= from; i--) if (text.charAt(i) == ' ') return i;
+        return -1;
+    }
+
     private static String truncateToLength(String text) {
         if (text.length() <= fieldLength) return text;
         return text.substring(0, fieldLength);
     }
+
+    private static void appendNormalized(final StringBuilder builder, final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) appendSpace(builder);
+            else builder.append(c);
+        }
+    }
+
+    private static void appendSpace(final StringBuilder builder) {
+        if (builder.length() > 0 && builder.charAt(builder.length() - 1) != ' ') builder.append(' ');
+    }
+
+    /**
+     * Collects everything {@link #index(Document)} needs in a single walk of the document: links,
+     * media, the heading and emphasis fields and the whitespace-normalized body text, cut into
+     * {@link BoilerplateFilter.Blocks} at block-level elements. One instance is kept per thread so
+     * its buffers are reused from page to page.
+     */
+    private static class Extractor implements NodeVisitor {
+        private static final byte LINK = 1, MAIN = 2, MARKED = 4, CANDIDATE = 8;
+
+        private final StringBuilder text = new StringBuilder();
+        private final List<List<String>> fields = new ArrayList<>(TAGS.length);
+        private final StringBuilder[][] open = new StringBuilder[TAGS.length][4];
+        private final int[] depth = new int[TAGS.length];
+        private final BoilerplateFilter.Blocks blocks = new BoilerplateFilter.Blocks();
+        private final StringBuilder main = new StringBuilder();
+        private int blockStart, anchorChars, markedChars;
+        private int linkDepth, markedDepth, mainDepth;
+        // a top-level element named like furniture is only marked once the walk shows it is not the wrapper
+        private boolean inCandidate;
+        private int candidateStart, tentativeChars, candidateCount;
+        private int[] candidates = new int[16];
+        private int[] tentative = new int[64];
+        private byte[] roles = new byte[64];
+        private Set<String> links = new HashSet<>();
+        private Set<String> media = new HashSet<>();
+
+        private Extractor() {
+            for (int tag = 0; tag < TAGS.length; tag++) {
+                fields.add(new ArrayList<>());
+                for (int d = 0; d < open[tag].length; d++) open[tag][d] = new StringBuilder();
+            }
+        }
+
+        private void reset() {
+            text.setLength(0);
+            Arrays.fill(depth, 0);
+            blocks.reset();
+            blockStart = anchorChars = markedChars = 0;
+            linkDepth = markedDepth = mainDepth = 0;
+            inCandidate = false;
+            tentativeChars = candidateCount = 0;
+            for (List<String> field : fields) field.clear();
+        }
+
+        public void head(final Node node, final int nodeDepth) {
+            if (node instanceof TextNode) {
+                final String value = ((TextNode) node).getWholeText();
+                final int before = text.length();
+                appendNormalized(text, value);
+                if (linkDepth > 0) anchorChars += text.length() - before;
+                if (markedDepth > 0) markedChars += text.length() - before;
+                else if (inCandidate) tentativeChars += text.length() - before;
+                for (int tag = 0; tag < TAGS.length; tag++)
+                    for (int d = 0; d < depth[tag]; d++) appendNormalized(open[tag][d], value);
+                return;
+            }
+            if (!(node instanceof Element)) return;
+
+            final Element element = (Element) node;
+            if (element.isBlock() || element.tagName().equals("br")) space();
+            if (element.isBlock()) closeBlock();
+
+            // what this element opened, so its tail can close the same without looking again
+            byte role = 0;
+            if (element.tagName().equals("a") && element.hasAttr("href")) {
+                links.add(element.attr("abs:href"));
+                role |= LINK;
+            }
+            if (element.hasAttr("src")) media.add(element.attr("abs:src"));
+            if (isMain(element)) role |= MAIN;
+            if (isMarked(element)) role |= MARKED;
+            else if (isCandidate(element)) {
+                role |= CANDIDATE;
+                inCandidate = true;
+                candidateStart = text.length();
+                if (candidateCount * 2 == candidates.length) candidates = Arrays.copyOf(candidates, candidates.length * 2);
+                candidates[candidateCount * 2] = blocks.size();
+            }
+            if ((role & LINK) != 0) linkDepth++;
+            if ((role & MAIN) != 0) mainDepth++;
+            if ((role & MARKED) != 0) markedDepth++;
+            if (nodeDepth >= roles.length) roles = Arrays.copyOf(roles, Math.max(nodeDepth + 1, roles.length * 2));
+            roles[nodeDepth] = role;
+
+            final int tag = tag(element.tagName());
+            if (tag == -1) return;
+            if (depth[tag] == open[tag].length) {
+                open[tag] = Arrays.copyOf(open[tag], depth[tag] * 2);
+                for (int d = depth[tag]; d < open[tag].length; d++) open[tag][d] = new StringBuilder();
+            }
+            open[tag][depth[tag]++].setLength(0);
+        }
+
+        public void tail(final Node node, final int nodeDepth) {
+            if (!(node instanceof Element)) return;
+
+            final Element element = (Element) node;
+            if (element.isBlock()) {
+                space();
+                closeBlock();
+            }
+            final byte role = roles[nodeDepth];
+            if ((role & LINK) != 0) linkDepth--;
+            if ((role & MAIN) != 0) mainDepth--;
+            if ((role & MARKED) != 0) markedDepth--;
+            if ((role & CANDIDATE) != 0) {
+                inCandidate = false;
+                candidates[candidateCount * 2 + 1] = text.length() - candidateStart;
+                candidateCount++;
+            }
+
+            final int tag = tag(element.tagName());
+            if (tag == -1 || depth[tag] == 0) return;
+
+            final StringBuilder builder = open[tag][--depth[tag]];
+            int start = 0, end = builder.length();
+            while (start < end && builder.charAt(start) == ' ') start++;
+            while (end > start && builder.charAt(end - 1) == ' ') end--;
+            if (end - start < 3) return;
+
+            fields.get(tag).add(truncateToLength(builder.substring(start, end)));
+        }
+
+        private void space() {
+            appendSpace(text);
+            for (int tag = 0; tag < TAGS.length; tag++)
+                for (int d = 0; d < depth[tag]; d++) appendSpace(open[tag][d]);
+        }
+
+        /**
+         * Ends the block of text since the last block boundary.
+         */
+        private void closeBlock() {
+            int start = blockStart, end = text.length();
+            while (start < end && text.charAt(start) == ' ') start++;
+            while (end > start && text.charAt(end - 1) == ' ') end--;
+            if (end > start) {
+                if (blocks.size() == tentative.length) tentative = Arrays.copyOf(tentative, tentative.length * 2);
+                tentative[blocks.size()] = Math.min(tentativeChars, end - start);
+                blocks.add(start, end, Math.min(anchorChars, end - start), Math.min(markedChars, end - start));
+            }
+            blockStart = text.length();
+            anchorChars = markedChars = tentativeChars = 0;
+        }
+
+        /**
+         * Closes the last block and marks the text of every candidate that turned out not to hold
+         * most of the page. Each candidate's blocks run up to the next candidate's first block.
+         */
+        private void finish() {
+            closeBlock();
+            for (int c = 0; c < candidateCount; c++) {
+                if (candidates[c * 2 + 1] * 2 > text.length()) continue; // the page's wrapper
+                final int to = c + 1 < candidateCount ? candidates[c * 2 + 2] : blocks.size();
+                for (int block = candidates[c * 2]; block < to; block++)
+                    if (tentative[block] != 0) blocks.mark(block, tentative[block]);
+            }
+        }
+
+        private static boolean isMain(final Element element) {
+            final String name = element.tagName();
+            return name.equals("main") || name.equals("article")
+                    || element.attributes().size() != 0 && element.attr("role").equals("main");
+        }
+
+        /**
+         * True for elements that hold page furniture rather than content: navigation, headers and
+         * footers, sidebars, forms, and elements named like cookie banners, menus and share bars.
+         */
+        private boolean isMarked(final Element element) {
+            switch (element.tagName()) {
+                case "html":
+                case "body":
+                    return false;
+                case "nav":
+                case "footer":
+                case "aside":
+                case "form":
+                case "menu":
+                    return true;
+                case "header":
+                    return mainDepth == 0;
+            }
+            if (element.attributes().size() == 0) return false;
+            switch (element.attr("role")) {
+                case "navigation":
+                case "banner":
+                case "contentinfo":
+                case "complementary":
+                case "search":
+                    return true;
+            }
+            return mainDepth == 0 && !isTopLevel(element) && (isFurniture(element.id()) || isFurniture(element.className()));
+        }
+
+        /**
+         * A top-level element named like furniture. It is the page's wrapper, whatever its name says
+         * about a layout variant, if it turns out to hold most of the page's text, so it is only
+         * marked by {@link #finish()}.
+         */
+        private boolean isCandidate(final Element element) {
+            if (mainDepth != 0 || inCandidate || element.attributes().size() == 0 || !isTopLevel(element)) return false;
+            if (element.tagName().equals("body")) return false;
+            return isFurniture(element.id()) || isFurniture(element.className());
+        }
+
+        private static boolean isTopLevel(final Element element) {
+            final Element parent = element.parent();
+            return parent != null && (parent.tagName().equals("body") || parent.tagName().equals("html"));
+        }
+
+        /**
+         * True if one of the whitespace-separated names is a cue, or a cue with a suffix ("footer",
+         * "cookie-banner"), but not a name that only mentions one ("has-sidebar").
+         */
+        private static boolean isFurniture(final String names) {
+            for (int start = 0, end; start < names.length(); start = end + 1) {
+                end = start;
+                while (end < names.length() && !Character.isWhitespace(names.charAt(end))) end++;
+                for (String cue : FURNITURE) {
+                    if (end - start < cue.length() || !names.regionMatches(true, start, cue, 0, cue.length())) continue;
+                    if (end - start == cue.length()) return true;
+                    final char next = names.charAt(start + cue.length());
+                    if (next == '-' || next == '_') return true;
+                }
+            }
+            return false;
+        }
+
+        private static int tag(final String name) {
+            for (int tag = 0; tag < TAGS.length; tag++) if (TAGS[tag].equals(name)) return tag;
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,50 @@
+package index;
+
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Where {@link SolrManager} sends its batches. Implementations must accept batches from several
+ * flusher threads at once, and throw an {@link IOException} only for failures worth retrying;
+ * any other exception means the documents themselves were refused.
+ */
+public interface IndexSink extends Closeable {
+
+    /**
+     * Adds (or replaces, by id) a batch of documents, making them searchable within
+     * {@code commitWithin} milliseconds.
+     */
+    void add(Collection<SolrInputDocument> documents, int commitWithin) throws IOException;
+
+    /**
+     * A soft commit only makes the documents added so far visible to searchers; a hard commit
+     * also makes them durable.
+     */
+    void commit(boolean soft) throws IOException;
+
+    /**
+     * Overwrites a single-valued float field of documents already in the index, by id, without
+     * re-sending them. Ids that are not in the index are skipped.
+     */
+    void updateFloat(String field, Map<String, Float> values) throws IOException;
+}
@@ -0,0 +1,211 @@
+package index;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Writes documents straight into a local Lucene index instead of shipping them to Solr.
+ * <p>
+ * Fields are laid out the way {@code config/schema.xml} declares them (string fields indexed as
+ * single terms with doc values, {@code time} and {@code media} stored only, everything else
+ * analyzed with StandardTokenizer, the stopword list and lowercasing), so the directory can be
+ * dropped into a Solr core's data directory later. The IndexWriter is shared by every flusher
+ * thread; commitWithin and soft commits reopen the {@link SearcherManager} rather than fsync, so
+ * {@link #getSearcherManager()} gives in-process near-real-time search.
+ */
+public class LuceneSink implements IndexSink {
+
+    private static final Set<String> STRING_FIELDS = new HashSet<>(Arrays.asList("id", "title", "link", "duplicate_of"));
+    private static final Set<String> STORED_FIELDS = new HashSet<>(Arrays.asList("time", "media"));
+    private static final Set<String> SINGLE_VALUED = new HashSet<>(Arrays.asList("id", "time", "title", "duplicate_of"));
+    private static final Map<String, Float> FLOAT_FIELDS = Collections.singletonMap(PageRank.FIELD, 1f);
+    private static final int POSITION_INCREMENT_GAP = 100;
+
+    private final Directory directory;
+    private final IndexWriter writer;
+    private final SearcherManager searcherManager;
+    private final ScheduledExecutorService refresher;
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean();
+
+    public LuceneSink(final File dir, final File stopwords, final double ramBufferMB) throws IOException {
+        directory = FSDirectory.open(dir.toPath());
+        writer = new IndexWriter(directory, new IndexWriterConfig(new SchemaAnalyzer(loadStopwords(stopwords)))
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+                .setRAMBufferSizeMB(ramBufferMB));
+        searcherManager = new SearcherManager(writer, null);
+
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Lucene Refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void add(final Collection<SolrInputDocument> documents, final int commitWithin) throws IOException {
+        for (SolrInputDocument document : documents)
+            writer.updateDocument(new Term("id", document.getFieldValue("id").toString()), convert(document));
+
+        if (refreshScheduled.compareAndSet(false, true))
+            refresher.schedule(this::refresh, commitWithin, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void commit(final boolean soft) throws IOException {
+        if (!soft) writer.commit();
+        searcherManager.maybeRefresh();
+    }
+
+    @Override
+    public void updateFloat(final String field, final Map<String, Float> values) throws IOException {
+        if (!FLOAT_FIELDS.containsKey(field)) throw new IllegalArgumentException("Not a float field: " + field);
+        for (Map.Entry<String, Float> entry : values.entrySet())
+            writer.updateNumericDocValue(new Term("id", entry.getKey()), field, Float.floatToIntBits(entry.getValue()));
+    }
+
+    public SearcherManager getSearcherManager() {
+        return searcherManager;
+    }
+
+    @Override
+    public void close() throws IOException {
+        refresher.shutdownNow();
+        writer.commit();
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    private void refresh() {
+        refreshScheduled.set(false);
+        try {
+            searcherManager.maybeRefresh();
+        } catch (IOException | RuntimeException e) {
+            System.err.print("\nLucene refresh failed: " + e.getMessage() + "\n");
+        }
+    }
+
+    private static Document convert(final SolrInputDocument input) {
+        final Document document = new Document();
+        for (SolrInputField field : input) {
+            final String name = field.getName();
+            for (Object value : field.getValues()) {
+                final String string = value.toString();
+                if (STRING_FIELDS.contains(name)) {
+                    final BytesRef bytes = new BytesRef(string);
+                    if (bytes.length > IndexWriter.MAX_TERM_LENGTH) continue;
+                    if (name.equals("title")) {
+                        // matched against whole queries, which are normalized before they get here
+                        final BytesRef folded = new BytesRef(fold(string));
+                        if (folded.length <= IndexWriter.MAX_TERM_LENGTH) document.add(new StringField(name, folded, Field.Store.NO));
+                        document.add(new StoredField(name, bytes));
+                    } else {
+                        document.add(new StringField(name, bytes, Field.Store.YES));
+                    }
+                    document.add(docValues(name, bytes));
+                } else if (STORED_FIELDS.contains(name)) {
+                    final BytesRef bytes = new BytesRef(string);
+                    document.add(new StoredField(name, string));
+                    if (bytes.length <= IndexWriter.MAX_TERM_LENGTH) document.add(docValues(name, bytes));
+                } else {
+                    document.add(new TextField(name, string, Field.Store.NO));
+                    if (name.endsWith("_text")) document.add(new TextField("text", string, Field.Store.NO));
+                }
+            }
+        }
+        // the schema's defaults; updateFloat can only change fields every document has
+        for (Map.Entry<String, Float> field : FLOAT_FIELDS.entrySet())
+            document.add(new NumericDocValuesField(field.getKey(), Float.floatToIntBits(field.getValue())));
+        return document;
+    }
+
+    /**
+     * Lowercased with runs of whitespace collapsed to one space and trimmed, as the search
+     * service normalizes queries.
+     */
+    private static String fold(final String value) {
+        final StringBuilder folded = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (folded.length() > 0 && folded.charAt(folded.length() - 1) != ' ') folded.append(' ');
+            } else {
+                folded.append(Character.toLowerCase(c));
+            }
+        }
+        final int end = folded.length();
+        if (end > 0 && folded.charAt(end - 1) == ' ') folded.setLength(end - 1);
+        return folded.toString();
+    }
+
+    private static Field docValues(final String name, final BytesRef bytes) {
+        return SINGLE_VALUED.contains(name) ? new SortedDocValuesField(name, bytes) : new SortedSetDocValuesField(name, bytes);
+    }
+
+    public static CharArraySet loadStopwords(final File stopwords) throws IOException {
+        try (Reader reader = Files.newBufferedReader(stopwords.toPath(), StandardCharsets.UTF_8)) {
+            return WordlistLoader.getWordSet(reader, "#", new CharArraySet(64, true));
+        }
+    }
+
+    /**
+     * The index-time analyzer of the text_general field type.
+     */
+    private static class SchemaAnalyzer extends Analyzer {
+        private final CharArraySet stopwords;
+
+        private SchemaAnalyzer(final CharArraySet stopwords) {
+            this.stopwords = stopwords;
+        }
+
+        @Override
+        protected TokenStreamComponents createComponents(final String fieldName) {
+            final StandardTokenizer tokenizer = new StandardTokenizer();
+            final TokenStream stream = new LowerCaseFilter(new StopFilter(tokenizer, stopwords));
+            return new TokenStreamComponents(tokenizer, stream);
+        }
+
+        @Override
+        public int getPositionIncrementGap(final String fieldName) {
+            return POSITION_INCREMENT_GAP;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package index;
+
+import urls.LinkGraph;
+import utils.MappedIntArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Ranks the pages of a {@link LinkGraph} and writes the scores to the index as the
+ * {@link #FIELD} boost.
+ * <p>
+ * Each iteration is two parallel sweeps over memory-mapped arrays: every page divides its rank
+ * among its out-links, then every page pulls the shares of the pages linking to it along the
+ * transposed graph. Pulling means each rank has exactly one writer, so no sweep needs atomics.
+ * The rank of pages without out-links is spread evenly over the graph. Iteration stops once the
+ * ranks move by less than the tolerance in total.
+ * <p>
+ * Scores are scaled so the average page has 1, the value documents are indexed with before
+ * they are first ranked.
+ */
+public class PageRank {
+
+    public static final String FIELD = "pagerank";
+
+    private static final int CHUNK = 1 << 14;
+    private static final int PUSH_BATCH = 10_000;
+
+    private final LinkGraph.InLinks graph;
+    private final MappedIntArray rank;
+    private final MappedIntArray share;
+    private final ForkJoinPool pool;
+
+    public PageRank(final LinkGraph.InLinks graph, final File work, final ForkJoinPool pool) throws IOException {
+        this.graph = graph;
+        this.pool = pool;
+        final File rankFile = new File(work, "rank.bin"), shareFile = new File(work, "share.bin");
+        rankFile.delete();
+        shareFile.delete();
+        rank = new MappedIntArray(rankFile, Math.max(1, graph.size()));
+        share = new MappedIntArray(shareFile, Math.max(1, graph.size()));
+    }
+
+    /**
+     * Iterates until converged or out of iterations, and returns the number of iterations run.
+     */
+    public int compute(final double damping, final double tolerance, final int maxIterations) {
+        final int size = graph.size();
+        if (size == 0) return 0;
+        for (int node = 0; node < size; node++) rank.setFloat(node, 1f / size);
+
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            final double dangling = pool.invoke(new Spread(0, size));
+            final double base = (1 - damping) / size + damping * dangling / size;
+            final double delta = pool.invoke(new Gather(0, size, (float) base, (float) damping));
+            System.out.print("\nPageRank iteration " + iteration + ": delta " + delta + "\n");
+            if (delta < tolerance) return iteration;
+        }
+        return maxIterations;
+    }
+
+    /**
+     * Sends the score of every page indexed under its own id to the index, in batches.
+     */
+    public long push(final LinkGraph links, final IndexSink sink) throws IOException {
+        final int size = graph.size();
+        final Map<String, Float> batch = new HashMap<>();
+        final long[] pushed = new long[1];
+        final IOException[] failure = new IOException[1];
+        links.forEachUrl((url, node) -> {
+            if (failure[0] != null || !graph.isIndexed(node)) return;
+            batch.put(url, rank.getFloat(node) * size);
+            if (batch.size() < PUSH_BATCH) return;
+            try {
+                sink.updateFloat(FIELD, batch);
+                pushed[0] += batch.size();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+            batch.clear();
+        });
+        if (failure[0] != null) throw failure[0];
+        if (!batch.isEmpty()) {
+            sink.updateFloat(FIELD, batch);
+            pushed[0] += batch.size();
+        }
+        return pushed[0];
+    }
+
+    public float score(final int node) {
+        return rank.getFloat(node) * graph.size();
+    }
+
+    public void close() throws IOException {
+        rank.close();
+        share.close();
+    }
+
+    /**
+     * Sets each page's share to its rank over its out-degree, and sums the rank of pages
+     * without out-links.
+     */
+    private class Spread extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+
+        private Spread(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from > CHUNK) {
+                final int middle = (from + to) >>> 1;
+                final Spread left = new Spread(from, middle);
+                left.fork();
+                final double right = new Spread(middle, to).compute();
+                return left.join() + right;
+            }
+
+            double dangling = 0;
+            for (int node = from; node < to; node++) {
+                final int degree = graph.outDegree(node);
+                if (degree == 0) {
+                    dangling += rank.getFloat(node);
+                    share.setFloat(node, 0f);
+                } else {
+                    share.setFloat(node, rank.getFloat(node) / degree);
+                }
+            }
+            return dangling;
+        }
+    }
+
+    /**
+     * Sets each page's rank from the shares of the pages linking to it, and sums how far the
+     * ranks moved.
+     */
+    private class Gather extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final float base, damping;
+
+        private Gather(final int from, final int to, final float base, final float damping) {
+            this.from = from;
+            this.to = to;
+            this.base = base;
+            this.damping = damping;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from > CHUNK) {
+                final int middle = (from + to) >>> 1;
+                final Gather left = new Gather(from, middle, base, damping);
+                left.fork();
+                final double right = new Gather(middle, to, base, damping).compute();
+                return left.join() + right;
+            }
+
+            double delta = 0;
+            for (int node = from; node < to; node++) {
+                double sum = 0;
+                for (long i = graph.firstSource(node), end = graph.endSource(node); i < end; i++)
+                    sum += share.getFloat(graph.source(i));
+                final float updated = (float) (base + damping * sum);
+                delta += Math.abs(updated - rank.getFloat(node));
+                rank.setFloat(node, updated);
+            }
+            return delta;
+        }
+    }
+}
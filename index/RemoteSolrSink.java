@@ -0,0 +1,106 @@
+package index;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sends batches to a Solr core over HTTP.
+ */
+public class RemoteSolrSink implements IndexSink {
+
+    private final SolrClient solrClient;
+
+    public RemoteSolrSink(final String url) {
+        solrClient = new HttpSolrClient.Builder(url).build();
+    }
+
+    @Override
+    public void add(final Collection<SolrInputDocument> documents, final int commitWithin) throws IOException {
+        try {
+            solrClient.add(documents, commitWithin);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        } catch (SolrException e) {
+            // a 5xx is the server's trouble, not the documents'
+            if (e.code() / 100 == 5) throw new IOException(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Sent as atomic "set" updates, which Solr applies in place since the field is a
+     * non-indexed, non-stored docValue. A {@code _version_} of 1 makes Solr reject, rather than
+     * create, documents that do not exist; if that fails a batch, its documents are retried one
+     * at a time so the others still get through. Only that version conflict (a 409) is skipped.
+     */
+    @Override
+    public void updateFloat(final String field, final Map<String, Float> values) throws IOException {
+        final List<SolrInputDocument> documents = new ArrayList<>(values.size());
+        for (Map.Entry<String, Float> entry : values.entrySet()) {
+            final SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", entry.getKey());
+            document.addField("_version_", 1L);
+            document.addField(field, Collections.singletonMap("set", entry.getValue()));
+            documents.add(document);
+        }
+
+        try {
+            solrClient.add(documents);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        } catch (SolrException rejected) {
+            if (rejected.code() / 100 == 5) throw new IOException(rejected);
+            for (SolrInputDocument document : documents) {
+                try {
+                    solrClient.add(document);
+                } catch (SolrServerException retry) {
+                    throw new IOException(retry);
+                } catch (SolrException e) {
+                    // a version conflict: not in the index (yet), or dropped as a duplicate
+                    if (e.code() != ErrorCode.CONFLICT.code) throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void commit(final boolean soft) throws IOException {
+        try {
+            solrClient.commit(false, false, soft);
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        solrClient.close();
+    }
+}
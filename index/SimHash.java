@@ -0,0 +1,87 @@
+package index;
+
+import utils.Fingerprint;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * 64-bit SimHash (Charikar) over overlapping word shingles. Pages that differ in a handful of
+ * words end up a few bits apart, so near-duplicates can be found by Hamming distance.
+ */
+public class SimHash {
+
+    private static final int SHINGLE = 4;
+
+    private final int[] weights = new int[64];
+    private final long[] window = new long[SHINGLE];
+    private int words = 0;
+
+    public static long of(final CharSequence text) {
+        final SimHash simHash = new SimHash();
+        simHash.add(text);
+        return simHash.value();
+    }
+
+    public static int distance(final long a, final long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    public void add(final CharSequence text) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start == -1) start = i;
+            else if (!letter && start != -1) {
+                word(lowerCaseFingerprint(text, start, i));
+                start = -1;
+            }
+        }
+    }
+
+    public int words() {
+        return words;
+    }
+
+    public long value() {
+        if (words > 0 && words < SHINGLE) shingle(words);
+
+        long value = 0;
+        for (int bit = 0; bit < 64; bit++) if (weights[bit] > 0) value |= 1L << bit;
+        return value;
+    }
+
+    private void word(final long hash) {
+        window[words % SHINGLE] = hash;
+        words++;
+        if (words >= SHINGLE) shingle(SHINGLE);
+    }
+
+    private void shingle(final int length) {
+        long hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = Long.rotateLeft(hash, 13) ^ window[(words - length + i) % SHINGLE];
+        hash = Fingerprint.mix(hash);
+
+        for (int bit = 0; bit < 64; bit++) weights[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+    }
+
+    private static long lowerCaseFingerprint(final CharSequence text, final int start, final int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) hash = (hash ^ Character.toLowerCase(text.charAt(i))) * 0x100000001b3L;
+        return hash;
+    }
+}
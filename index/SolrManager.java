@@ -1,12 +1,19 @@
 package index;
 
-import org.apache.solr.client.solrj.SolrClient;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrClient;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+import utils.Histogram;
+import utils.Metrics;
 import utils.Sleeper;
 
-import java.io.IOException;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 /**
@@ -25,39 +32,259 @@ import java.util.function.Consumer;
  * limitations under the License.
  */
 
+/**
+ * Feeds documents to an {@link IndexSink} (a remote Solr core or an embedded Lucene index) in
+ * batches.
+ * <p>
+ * {@link #accept(SolrInputDocument)} only puts the document on a bounded queue and blocks once it
+ * is full, so a slow sink slows the index threads down instead of filling the heap. Flusher
+ * threads send whatever has queued up once a batch is full or has waited long enough, retry
+ * batches that failed with an {@link IOException} with exponential backoff and finally spill them
+ * to disk; the spill file is replayed the next time the manager starts. A batch the sink refuses
+ * outright (any other exception) is resent one document at a time, so only the offending
+ * documents are dropped. Batches are sent with a commitWithin that grows with the ingest rate,
+ * and a hard commit is still issued every {@code commitTime} for durability.
+ */
 public class SolrManager implements Consumer<SolrInputDocument> {
     private static SolrManager ourInstance = new SolrManager();
 
-    private static SolrClient solrClient;
+    private static final int BATCH_SIZE = 500;
+    private static final long BATCH_WAIT = 1000;
+    private static final int RETRIES = 5;
+    private static final long BACKOFF = 500;
+    private static final long MIN_COMMIT_WITHIN = 5_000;
+    private static final int DOCS_PER_COMMIT = 20_000;
+
+    private static IndexSink sink;
+    private static BlockingQueue<SolrInputDocument> queue;
+    private static File spillFile;
+    private static long commitTime;
+    private static final List<Thread> FLUSHERS = new ArrayList<>();
+    private static volatile boolean closing;
 
-    private static long lastCommitTime;
+    private static volatile long lastCommitTime;
+    private static volatile long lastBatchLatency;
+    private static volatile long lastBatchSize;
+    private static volatile double ingestRate;
+    private static long lastRateUpdate = System.currentTimeMillis();
+    private static final Histogram ADD_TIME = Metrics.histogram("index_add_micros");
+    private static final Histogram COMMIT_TIME = Metrics.histogram("index_commit_micros");
+    private static final Histogram BATCH_SIZES = Metrics.histogram("index_batch_size");
+    private static final LongAdder DOCUMENTS = Metrics.counter("index_documents");
+    private static final LongAdder SPILLED = Metrics.counter("index_spilled");
+    private static final LongAdder FAILURES = Metrics.counter("index_add_failures");
+    private static final LongAdder REJECTED = Metrics.counter("index_rejected");
 
     private SolrManager() {
     }
 
-    public static void init(final String url, final int queueSize, final int threadCount, final long commitTime) {
-        solrClient = new ConcurrentUpdateSolrClient
-                .Builder(url)
-                .withQueueSize(queueSize)
-                .withThreadCount(threadCount)
-                .build();
+    public static void init(final IndexSink sink, final int queueSize, final int threadCount, final long commitTime, final File spillFile) {
+        SolrManager.sink = sink;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        SolrManager.spillFile = spillFile;
+        SolrManager.commitTime = commitTime;
+        lastCommitTime = System.currentTimeMillis();
+        Metrics.gauge("index_queue_depth", queue::size);
+
+        final Thread replayer = new Thread(SolrManager::replaySpill);
+        replayer.setName("Solr Spill Replayer");
+        replayer.setDaemon(true);
+        replayer.start();
+
+        for (int i = 0; i < threadCount; i++) {
+            final Thread flusher = new Thread(SolrManager::flush);
+            flusher.setName("Solr Flusher " + i);
+            flusher.setDaemon(true);
+            flusher.start();
+            FLUSHERS.add(flusher);
+        }
 
-        new Thread(() -> {
+        final Thread committer = new Thread(() -> {
             while (true) {
                 Sleeper.sleep(commitTime);
                 commit();
             }
-        }).start();
+        });
+        committer.setName("Solr Committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Lets the flushers send what is queued and the batches they hold, then commits and closes
+     * the sink. Called once the pipeline feeding {@link #accept(SolrInputDocument)} has been shut
+     * down.
+     */
+    public static void shutdown() {
+        closing = true;
+        for (Thread flusher : FLUSHERS) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        final List<SolrInputDocument> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) send(rest);
+        commit();
+        try {
+            sink.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void flush() {
+        final List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                final SolrInputDocument first = queue.poll(BATCH_WAIT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closing) return;
+                    continue;
+                }
+                batch.add(first);
+
+                final long deadline = System.currentTimeMillis() + BATCH_WAIT;
+                while (batch.size() < BATCH_SIZE) {
+                    if (queue.drainTo(batch, BATCH_SIZE - batch.size()) > 0) continue;
+                    final long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) break;
+                    final SolrInputDocument next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            send(batch);
+            batch.clear();
+        }
+    }
+
+    private static void send(final List<SolrInputDocument> batch) {
+        final long start = System.currentTimeMillis();
+        for (int attempt = 0; attempt <= RETRIES; attempt++) {
+            try {
+                final long attemptStart = System.nanoTime();
+                sink.add(batch, commitWithin());
+                ADD_TIME.recordSince(attemptStart);
+                BATCH_SIZES.record(batch.size());
+                DOCUMENTS.add(batch.size());
+
+                final long end = System.currentTimeMillis();
+                lastBatchLatency = end - start;
+                lastBatchSize = batch.size();
+                updateIngestRate(batch.size(), end);
+                return;
+            } catch (RuntimeException e) {
+                FAILURES.increment();
+                // retrying will not help; find the documents at fault
+                reject(batch, e);
+                return;
+            } catch (IOException e) {
+                FAILURES.increment();
+                if (attempt == RETRIES) {
+                    System.err.print("\nSpilling " + batch.size() + " documents: " + e.getMessage() + "\n");
+                    spill(batch);
+                    return;
+                }
+                Sleeper.sleep(BACKOFF << attempt);
+            }
+        }
+    }
 
-        Runtime.getRuntime().addShutdownHook(new Thread(SolrManager::commit));
+    private static void reject(final List<SolrInputDocument> batch, final Exception e) {
+        if (batch.size() > 1) {
+            for (SolrInputDocument document : batch) send(Collections.singletonList(document));
+            return;
+        }
+        REJECTED.increment();
+        System.err.print("\nIndex rejected " + batch.get(0).getFieldValue("id") + ": " + e.getMessage() + "\n");
+    }
+
+    private static synchronized void updateIngestRate(final int docs, final long now) {
+        final double seconds = Math.max(0.001, (now - lastRateUpdate) / 1000.0);
+        lastRateUpdate = now;
+        final double rate = docs / seconds;
+        ingestRate = ingestRate == 0 ? rate : ingestRate * 0.8 + rate * 0.2;
+    }
+
+    /**
+     * Aim for roughly {@link #DOCS_PER_COMMIT} documents per (soft) commit: commit often while
+     * the crawl trickles, rarely while it floods, and never later than the hard commit interval.
+     */
+    private static int commitWithin() {
+        final double rate = ingestRate;
+        final long within = rate <= 0 ? MIN_COMMIT_WITHIN : (long) (DOCS_PER_COMMIT / rate * 1000);
+        return (int) Math.max(MIN_COMMIT_WITHIN, Math.min(commitTime, within));
+    }
+
+    private static synchronized void spill(final List<SolrInputDocument> batch) {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)))) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (SolrInputDocument document : batch) {
+                bytes.reset();
+                new JavaBinCodec().marshal(document, bytes);
+                output.writeInt(bytes.size());
+                bytes.writeTo(output);
+            }
+            SPILLED.add(batch.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replays a spill left half-replayed by a previous run first, so renaming the spill file
+     * over it cannot lose it.
+     */
+    private static void replaySpill() {
+        if (spillFile == null) return;
+
+        final File replaying = new File(spillFile.getPath() + ".replay");
+        if (replaying.exists()) replay(replaying);
+        if (spillFile.exists() && !replaying.exists() && spillFile.renameTo(replaying)) replay(replaying);
+    }
+
+    private static void replay(final File replaying) {
+        final List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(replaying)))) {
+            while (true) {
+                final int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                batch.add((SolrInputDocument) new JavaBinCodec().unmarshal(new ByteArrayInputStream(bytes)));
+                if (batch.size() == BATCH_SIZE) {
+                    send(batch);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!batch.isEmpty()) send(batch);
+        replaying.delete();
     }
 
     private static void commit() {
-        lastCommitTime = System.currentTimeMillis();
         try {
-            solrClient.commit(true, false);
-        } catch (SolrServerException | IOException e) {
-            throw new IllegalStateException(e);
+            final long start = System.nanoTime();
+            sink.commit(false);
+            COMMIT_TIME.recordSince(start);
+            lastCommitTime = System.currentTimeMillis();
+        } catch (IOException | RuntimeException e) {
+            System.err.print("\nIndex commit failed: " + e.getMessage() + "\n");
         }
     }
 
@@ -68,13 +295,33 @@ public class SolrManager implements Consumer<SolrInputDocument> {
 
     public void accept(SolrInputDocument document) {
         try {
-            solrClient.add(document);
-        } catch (SolrServerException | IOException e) {
-            throw new IllegalStateException(e);
+            queue.put(document);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     public long getLastCommitTime() {
         return lastCommitTime;
     }
+
+    public long getLastBatchLatency() {
+        return lastBatchLatency;
+    }
+
+    public long getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public double getIngestRate() {
+        return ingestRate;
+    }
+
+    public long getSpilled() {
+        return SPILLED.sum();
+    }
 }
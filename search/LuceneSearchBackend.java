@@ -0,0 +1,210 @@
+package search;
+
+import index.LuceneSink;
+import index.PageRank;
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Searches an index written by {@link LuceneSink} the way {@link SolrSearchBackend} searches
+ * Solr: every query position becomes a disjunction over the weighted fields of
+ * {@link SolrSearchBackend#FIELDS}, with the query analyzer of the text_general field type,
+ * synonyms included. The title only matches the query as a whole; {@link LuceneSink} indexes it
+ * lowercased with whitespace collapsed, the form queries arrive in.
+ * <p>
+ * Lucene core has no function queries, so the PageRank boost is applied by rescoring the top
+ * {@link #RESCORE_WINDOW} hits. Site restrictions are non-scoring filter clauses, which the
+ * searcher's query cache keeps once they are used often.
+ */
+public class LuceneSearchBackend implements SearchBackend {
+
+    private static final int RESCORE_WINDOW = 1000;
+    private static final Set<String> STORED = new HashSet<>(Arrays.asList("id", "title"));
+
+    private final SearcherManager searcherManager;
+    private final Analyzer analyzer;
+    private final Map<String, Float> fields = new LinkedHashMap<>();
+    private final float titleBoost;
+
+    public LuceneSearchBackend(final SearcherManager searcherManager, final File stopwords, final File synonyms) throws IOException {
+        this.searcherManager = searcherManager;
+        analyzer = new QueryAnalyzer(LuceneSink.loadStopwords(stopwords), loadSynonyms(synonyms));
+        for (String field : SolrSearchBackend.FIELDS.split(" ")) {
+            final int caret = field.indexOf('^');
+            fields.put(caret == -1 ? field : field.substring(0, caret), caret == -1 ? 1f : Float.parseFloat(field.substring(caret + 1)));
+        }
+        titleBoost = fields.remove("title");
+    }
+
+    /**
+     * The version of the newest reader, which changes with every commit or refresh that sees
+     * new changes.
+     */
+    @Override
+    public long generation() throws IOException {
+        searcherManager.maybeRefresh();
+        final IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion();
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    @Override
+    public SearchResults search(final String query, final String site, final int start, final int rows) throws IOException {
+        Query parsed = parse(query);
+        if (parsed == null) return new SearchResults(0, start, Collections.emptyList());
+        if (site != null) {
+            final Query filter = new BooleanQuery.Builder()
+                    .add(new PrefixQuery(new Term("id", "http://" + site + "/")), BooleanClause.Occur.SHOULD)
+                    .add(new PrefixQuery(new Term("id", "https://" + site + "/")), BooleanClause.Occur.SHOULD)
+                    .build();
+            parsed = new BooleanQuery.Builder().add(parsed, BooleanClause.Occur.MUST).add(filter, BooleanClause.Occur.FILTER).build();
+        }
+
+        final IndexSearcher searcher = searcherManager.acquire();
+        try {
+            final TopDocs top = searcher.search(parsed, Math.max(RESCORE_WINDOW, start + rows));
+            final ScoreDoc[] hits = top.scoreDocs;
+            final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            for (ScoreDoc hit : hits) {
+                final LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+                final NumericDocValues ranks = leaf.reader().getNumericDocValues(PageRank.FIELD);
+                final float rank = ranks == null ? 0 : Float.intBitsToFloat((int) ranks.get(hit.doc - leaf.docBase));
+                hit.score *= rank > 0 ? rank : 1;
+            }
+            Arrays.sort(hits, (a, b) -> Float.compare(b.score, a.score));
+
+            final List<SearchResults.Hit> page = new ArrayList<>(rows);
+            for (int i = start; i < Math.min(hits.length, start + rows); i++) {
+                final Document document = searcher.doc(hits[i].doc, STORED);
+                page.add(new SearchResults.Hit(stored(document, "id"), stored(document, "title"), hits[i].score));
+            }
+            return new SearchResults(top.totalHits, start, page);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        searcherManager.close();
+    }
+
+    /**
+     * {@link LuceneSink} stores string fields as bytes.
+     */
+    private static String stored(final Document document, final String field) {
+        final BytesRef bytes = document.getBinaryValue(field);
+        return bytes == null ? document.get(field) : bytes.utf8ToString();
+    }
+
+    /**
+     * One disjunction over the fields per query position, or null if nothing in the query is
+     * searchable.
+     */
+    private Query parse(final String query) throws IOException {
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        final List<String> terms = new ArrayList<>();
+        int clauses = 0;
+        try (TokenStream stream = analyzer.tokenStream("text", query)) {
+            final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            final PositionIncrementAttribute increment = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (increment.getPositionIncrement() > 0 && !terms.isEmpty()) {
+                    builder.add(disjunction(terms), BooleanClause.Occur.SHOULD);
+                    clauses++;
+                    terms.clear();
+                }
+                terms.add(term.toString());
+            }
+            stream.end();
+        }
+        if (!terms.isEmpty()) {
+            builder.add(disjunction(terms), BooleanClause.Occur.SHOULD);
+            clauses++;
+        }
+        if (clauses == 0) return null;
+        builder.add(new BoostQuery(new TermQuery(new Term("title", query)), titleBoost), BooleanClause.Occur.SHOULD);
+        return builder.build();
+    }
+
+    private Query disjunction(final List<String> terms) {
+        final List<Query> alternatives = new ArrayList<>(terms.size() * fields.size());
+        for (Map.Entry<String, Float> field : fields.entrySet())
+            for (String term : terms)
+                alternatives.add(new BoostQuery(new TermQuery(new Term(field.getKey(), term)), field.getValue()));
+        return new DisjunctionMaxQuery(alternatives, 0f);
+    }
+
+    private static SynonymMap loadSynonyms(final File synonyms) throws IOException {
+        final SolrSynonymParser parser = new SolrSynonymParser(true, true, new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(final String fieldName) {
+                final StandardTokenizer tokenizer = new StandardTokenizer();
+                return new TokenStreamComponents(tokenizer, new LowerCaseFilter(tokenizer));
+            }
+        });
+        try (Reader reader = Files.newBufferedReader(synonyms.toPath(), StandardCharsets.UTF_8)) {
+            parser.parse(reader);
+            return parser.build();
+        } catch (ParseException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The query-time analyzer of the text_general field type.
+     */
+    private static class QueryAnalyzer extends Analyzer {
+        private final CharArraySet stopwords;
+        private final SynonymMap synonyms;
+
+        private QueryAnalyzer(final CharArraySet stopwords, final SynonymMap synonyms) {
+            this.stopwords = stopwords;
+            this.synonyms = synonyms;
+        }
+
+        @Override
+        protected TokenStreamComponents createComponents(final String fieldName) {
+            final StandardTokenizer tokenizer = new StandardTokenizer();
+            final TokenStream stream = new LowerCaseFilter(new SynonymGraphFilter(new StopFilter(tokenizer, stopwords), synonyms, true));
+            return new TokenStreamComponents(tokenizer, stream);
+        }
+    }
+}
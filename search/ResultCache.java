@@ -0,0 +1,125 @@
+package search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A bounded LRU of result pages with TinyLFU admission: once full, a new entry only gets in if
+ * its key has been asked for more often, recently, than the entry it would evict. A burst of
+ * one-off queries therefore cannot flush the head queries that make up most of the traffic.
+ * <p>
+ * Request frequencies are estimated with a count-min sketch of 4-bit counters that are halved
+ * every {@code 10 * capacity} requests, so old popularity fades. Every entry carries the index
+ * generation it was computed for and is only returned for that generation.
+ */
+public class ResultCache {
+
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = {0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0x27d4eb2f165667c5L};
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private final byte[][] sketch;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int samples;
+
+    public ResultCache(final int capacity) {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        final int width = Integer.highestOneBit(Math.max(64, capacity * 8 - 1)) << 1;
+        sketch = new byte[ROWS][width];
+        sketchMask = width - 1;
+        sampleSize = Math.max(1000, capacity * 10);
+    }
+
+    /**
+     * The cached results for the key if they were computed for this generation. Counts as a
+     * request for the key either way.
+     */
+    public synchronized SearchResults get(final String key, final long generation) {
+        record(key);
+        final Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.generation == generation) return entry.results;
+        entries.remove(key);
+        return null;
+    }
+
+    /**
+     * Caches the results unless the cache is full of keys requested more often.
+     */
+    public synchronized boolean put(final String key, final SearchResults results, final long generation) {
+        if (entries.containsKey(key) || entries.size() < capacity) {
+            entries.put(key, new Entry(results, generation));
+            return true;
+        }
+
+        final Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        final Map.Entry<String, Entry> victim = eldest.next();
+        if (victim.getValue().generation == generation && frequency(key) <= frequency(victim.getKey())) return false;
+        eldest.remove();
+        entries.put(key, new Entry(results, generation));
+        return true;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void record(final String key) {
+        final long hash = key.hashCode() * 0x9e3779b97f4a7c15L;
+        for (int row = 0; row < ROWS; row++) {
+            final int index = index(hash, row);
+            if (sketch[row][index] < 15) sketch[row][index]++;
+        }
+        if (++samples >= sampleSize) {
+            samples /= 2;
+            for (byte[] counters : sketch)
+                for (int i = 0; i < counters.length; i++) counters[i] >>= 1;
+        }
+    }
+
+    private int frequency(final String key) {
+        final long hash = key.hashCode() * 0x9e3779b97f4a7c15L;
+        int frequency = 15;
+        for (int row = 0; row < ROWS; row++) frequency = Math.min(frequency, sketch[row][index(hash, row)]);
+        return frequency;
+    }
+
+    private int index(final long hash, final int row) {
+        final long mixed = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % ROWS];
+        return (int) (mixed >>> 32) & sketchMask;
+    }
+
+    private static class Entry {
+        private final SearchResults results;
+        private final long generation;
+
+        private Entry(final SearchResults results, final long generation) {
+            this.results = results;
+            this.generation = generation;
+        }
+    }
+}
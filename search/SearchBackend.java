@@ -0,0 +1,39 @@
+package search;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Where {@link SearchService} sends the queries it cannot answer from its cache.
+ */
+public interface SearchBackend extends Closeable {
+
+    /**
+     * Changes whenever a commit makes a different set of documents searchable; results are only
+     * reused while it stays the same.
+     */
+    long generation() throws IOException;
+
+    /**
+     * Ranks the indexed pages for the query, optionally restricted to one host.
+     *
+     * @param site a host, or null for the whole index
+     */
+    SearchResults search(String query, String site, int start, int rows) throws IOException;
+}
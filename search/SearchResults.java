@@ -0,0 +1,100 @@
+package search;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * One page of results. Immutable, so a cached instance can be handed to any number of requests.
+ */
+public class SearchResults {
+
+    private final long total;
+    private final int start;
+    private final List<Hit> hits;
+
+    public SearchResults(final long total, final int start, final List<Hit> hits) {
+        this.total = total;
+        this.start = start;
+        this.hits = Collections.unmodifiableList(hits);
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    public String toJson(final String query) {
+        final StringBuilder json = new StringBuilder(256 + hits.size() * 128);
+        json.append("{\"query\":");
+        appendString(json, query);
+        json.append(",\"total\":").append(total).append(",\"start\":").append(start).append(",\"hits\":[");
+        for (int i = 0; i < hits.size(); i++) {
+            final Hit hit = hits.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"url\":");
+            appendString(json, hit.url);
+            json.append(",\"title\":");
+            appendString(json, hit.title);
+            json.append(",\"score\":").append(hit.score).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(final StringBuilder json, final String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') json.append('\\').append(c);
+            else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    public static class Hit {
+        private final String url;
+        private final String title;
+        private final float score;
+
+        public Hit(final String url, final String title, final float score) {
+            this.url = url;
+            this.title = title == null ? "" : title;
+            this.score = score;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package search;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import utils.Histogram;
+import utils.Metrics;
+import utils.Sleeper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A small HTTP search front-end: {@code GET /search?q=...&page=N&site=host} answers with a JSON
+ * page of results.
+ * <p>
+ * Result pages are cached in a {@link ResultCache} under the normalized query (case and
+ * whitespace folded), site and page. The backend's generation is polled in the background, and
+ * every commit that changes it empties the cache, so a query reaches the backend at most once
+ * per commit. Identical queries that arrive while one is running wait for its answer instead of
+ * running again, and whenever a page is served the next one is fetched in the background, since
+ * that is usually the next request.
+ */
+public class SearchService {
+
+    private static final int MAX_QUERY_LENGTH = 512;
+    private static final int MAX_PAGE = 100;
+    private static final long TIMEOUT = 30_000;
+
+    private static final LongAdder HITS = Metrics.counter("search_requests", "result", "hit");
+    private static final LongAdder MISSES = Metrics.counter("search_requests", "result", "miss");
+    private static final LongAdder COALESCED = Metrics.counter("search_requests", "result", "coalesced");
+    private static final LongAdder PREFETCHED = Metrics.counter("search_prefetches");
+    private static final Histogram LATENCY = Metrics.histogram("search_backend_micros");
+
+    private static SearchService ourInstance = new SearchService();
+
+    private static SearchBackend backend;
+    private static ResultCache cache;
+    private static int rows;
+    private static volatile long generation;
+    private static final Map<String, CompletableFuture<SearchResults>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private static ExecutorService prefetcher;
+    private static HttpServer server;
+
+    private SearchService() {
+    }
+
+    public static synchronized void init(final SearchBackend backend, final int port, final int cacheSize, final int rows,
+                                         final long pollInterval, final int threads) throws IOException {
+        SearchService.backend = backend;
+        SearchService.rows = rows;
+        cache = new ResultCache(cacheSize);
+        generation = backend.generation();
+
+        prefetcher = new ThreadPoolExecutor(1, 2, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Search Prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+
+        final Thread poller = new Thread(() -> {
+            while (true) {
+                Sleeper.sleep(pollInterval);
+                try {
+                    final long current = backend.generation();
+                    if (current != generation) {
+                        generation = current;
+                        cache.clear();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.print("\nCould not poll the index generation: " + e.getMessage() + "\n");
+                }
+            }
+        });
+        poller.setName("Search Generation Poller");
+        poller.setDaemon(true);
+        poller.start();
+
+        Metrics.gauge("search_cached_pages", cache::size);
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/search", ourInstance::handle);
+        server.setExecutor(Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Search Handler");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    public static SearchService getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return server != null;
+    }
+
+    /**
+     * The given page of results, from the cache if this generation has already seen the query.
+     *
+     * @param site a host to restrict the results to, or null
+     */
+    public CompletableFuture<SearchResults> search(final String query, final String site, final int page) {
+        final String normalized = normalize(query);
+        final String host = site == null || site.isEmpty() ? null : site.toLowerCase(Locale.ROOT);
+        return search(normalized, host, page, false);
+    }
+
+    private CompletableFuture<SearchResults> search(final String query, final String site, final int page, final boolean prefetch) {
+        final String key = query + '\u0000' + (site == null ? "" : site) + '\u0000' + page;
+        final long current = generation;
+        final SearchResults cached = cache.get(key, current);
+        if (cached != null) {
+            if (!prefetch) {
+                HITS.increment();
+                prefetch(query, site, page, cached);
+            }
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final CompletableFuture<SearchResults> future = new CompletableFuture<>();
+        final CompletableFuture<SearchResults> running = IN_FLIGHT.putIfAbsent(key, future);
+        if (running != null) {
+            if (!prefetch) COALESCED.increment();
+            return running;
+        }
+
+        if (prefetch) PREFETCHED.increment();
+        else MISSES.increment();
+        try {
+            final long start = System.nanoTime();
+            final SearchResults results = backend.search(query, site, page * rows, rows);
+            LATENCY.recordSince(start);
+            // a commit while the query ran may have made the results stale already
+            if (generation == current) cache.put(key, results, current);
+            future.complete(results);
+            if (!prefetch) prefetch(query, site, page, results);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        } finally {
+            IN_FLIGHT.remove(key);
+        }
+        return future;
+    }
+
+    private void prefetch(final String query, final String site, final int page, final SearchResults results) {
+        if (page + 1 >= MAX_PAGE || (page + 1L) * rows >= results.getTotal()) return;
+        prefetcher.execute(() -> search(query, site, page + 1, true));
+    }
+
+    /**
+     * Lowercases the query and collapses whitespace, so queries that only differ in those share
+     * one cache entry.
+     */
+    static String normalize(final String query) {
+        final StringBuilder normalized = new StringBuilder(query.length());
+        for (int i = 0; i < query.length() && normalized.length() < MAX_QUERY_LENGTH; i++) {
+            final char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (normalized.length() > 0 && normalized.charAt(normalized.length() - 1) != ' ') normalized.append(' ');
+            } else {
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        final int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ' ') normalized.setLength(end - 1);
+        return normalized.toString();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            final String query = params.getOrDefault("q", "");
+            int page;
+            try {
+                page = Math.max(0, Math.min(MAX_PAGE - 1, Integer.parseInt(params.getOrDefault("page", "0"))));
+            } catch (NumberFormatException e) {
+                page = 0;
+            }
+
+            if (normalize(query).isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"missing q\"}");
+                return;
+            }
+            final SearchResults results = search(query, params.get("site"), page).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            respond(exchange, 200, results.toJson(query));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":\"malformed request\"}");
+        } catch (ExecutionException | TimeoutException e) {
+            respond(exchange, 503, "{\"error\":\"search failed\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"search failed\"}");
+        } catch (RuntimeException e) {
+            System.err.print("\nSearch request failed: " + e + "\n");
+            respond(exchange, 500, "{\"error\":\"internal error\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static Map<String, String> params(final String query) throws UnsupportedEncodingException {
+        final Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String param : query.split("&")) {
+            final int equals = param.indexOf('=');
+            if (equals <= 0) continue;
+            params.putIfAbsent(URLDecoder.decode(param.substring(0, equals), "UTF-8"), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,101 @@
+package search;
+
+import index.PageRank;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.HttpSolrClient;
+import org.apache.solr.client.solrj.request.LukeRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Queries a Solr core with edismax over the text fields of the schema, weighted by how much a
+ * match in each says about the page, and multiplied by the page's PageRank.
+ * <p>
+ * Site restrictions go out as filter queries, which Solr caches in its filterCache separately
+ * from the query they were used with.
+ */
+public class SolrSearchBackend implements SearchBackend {
+
+    public static final String FIELDS = "title^8 h1^5 h2^4 h3^3 strong^2 b^2 em^1.5 i^1.5 u^1.5 text";
+
+    private final SolrClient solrClient;
+
+    public SolrSearchBackend(final String url) {
+        solrClient = new HttpSolrClient.Builder(url).build();
+    }
+
+    /**
+     * The version of the core's current searcher, which every commit that opens a new one bumps.
+     */
+    @Override
+    public long generation() throws IOException {
+        final LukeRequest request = new LukeRequest();
+        request.setNumTerms(0);
+        request.setShowSchema(false);
+        request.setFields(Collections.singletonList("id"));
+        try {
+            final Object version = request.process(solrClient).getIndexInfo().get("version");
+            return version instanceof Number ? ((Number) version).longValue() : 0;
+        } catch (SolrServerException | SolrException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public SearchResults search(final String query, final String site, final int start, final int rows) throws IOException {
+        final SolrQuery solrQuery = new SolrQuery(query);
+        solrQuery.set("defType", "edismax");
+        solrQuery.set("qf", FIELDS);
+        solrQuery.set("boost", "def(field(" + PageRank.FIELD + "),1)");
+        solrQuery.setFields("id", "title", "score");
+        solrQuery.setStart(start);
+        solrQuery.setRows(rows);
+        if (site != null) {
+            final String host = ClientUtils.escapeQueryChars(site);
+            solrQuery.addFilterQuery("id:http\\:\\/\\/" + host + "\\/* OR id:https\\:\\/\\/" + host + "\\/*");
+        }
+
+        try {
+            final QueryResponse response = solrClient.query(solrQuery);
+            final List<SearchResults.Hit> hits = new ArrayList<>(response.getResults().size());
+            for (SolrDocument document : response.getResults()) {
+                final Object score = document.getFieldValue("score");
+                hits.add(new SearchResults.Hit((String) document.getFieldValue("id"), (String) document.getFieldValue("title"),
+                        score instanceof Number ? ((Number) score).floatValue() : 0));
+            }
+            return new SearchResults(response.getResults().getNumFound(), start, hits);
+        } catch (SolrServerException | SolrException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        solrClient.close();
+    }
+}
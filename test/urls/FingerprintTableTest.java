@@ -0,0 +1,165 @@
+package urls;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+class FingerprintTableTest {
+
+    @TempDir
+    Path dir;
+
+    private static long[] keys(final int count, final long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) keys[i] = random.nextLong() | 2; // never 0 or 1
+        return keys;
+    }
+
+    @Test
+    void concurrentInsertsClaimOneSlotPerKey() throws Exception {
+        final int threads = 8, shared = 20_000, own = 2_000;
+        final long[] keys = keys(shared, 1);
+        final AtomicLongArray slots = new AtomicLongArray(shared);
+        for (int i = 0; i < shared; i++) slots.set(i, -1);
+
+        try (FingerprintTable table = new FingerprintTable(dir.resolve("seen.tbl").toFile(), shared + threads * own, 1)) {
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                done.add(pool.submit(() -> {
+                    final long[] mine = keys(own, 100 + thread);
+                    for (int i = 0; i < shared; i++) {
+                        // walk the shared keys from a different start in every thread
+                        final int index = (i + thread * (shared / threads)) % shared;
+                        final long slot = table.insert(keys[index]);
+                        assertTrue(slot >= 0);
+                        if (!slots.compareAndSet(index, -1, slot)) assertEquals(slots.get(index), slot);
+                        for (long count = table.get(slot, 0); !table.compareAndSet(slot, 0, count, count + 1); )
+                            count = table.get(slot, 0);
+                        table.insert(mine[i % own]);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) future.get();
+            pool.shutdown();
+
+            assertEquals(shared + threads * own, table.size());
+            for (int i = 0; i < shared; i++) {
+                assertEquals(slots.get(i), table.find(keys[i]));
+                assertEquals(threads, table.get(slots.get(i), 0));
+            }
+        }
+    }
+
+    @Test
+    void refusesNewKeysPastSevenEighths() throws Exception {
+        final long[] keys = keys(64, 2);
+        try (FingerprintTable table = new FingerprintTable(dir.resolve("full.tbl").toFile(), 12, 0)) {
+            final long limit = table.capacity() / 8 * 7;
+            for (int i = 0; i < limit; i++) assertTrue(table.insert(keys[i]) >= 0);
+
+            assertEquals(limit, table.size());
+            for (int i = (int) limit; i < keys.length; i++) assertEquals(-1, table.insert(keys[i]));
+            assertEquals(limit, table.size());
+            for (int i = 0; i < limit; i++) {
+                assertTrue(table.find(keys[i]) >= 0);
+                assertEquals(table.find(keys[i]), table.insert(keys[i]));
+            }
+        }
+    }
+
+    @Test
+    void rehashesOnOpenKeepingValues() throws Exception {
+        final File file = dir.resolve("grow.tbl").toFile();
+        final long[] keys = keys(14, 3);
+        final long capacity;
+        try (FingerprintTable table = new FingerprintTable(file, 12, 2)) {
+            capacity = table.capacity();
+            for (int i = 0; i < keys.length; i++) {
+                final long slot = table.insert(keys[i]);
+                table.set(slot, 0, i);
+                table.set(slot, 1, -i);
+            }
+        }
+
+        try (FingerprintTable table = new FingerprintTable(file, 12, 2)) {
+            assertTrue(table.capacity() > capacity);
+            assertEquals(keys.length, table.size());
+            for (int i = 0; i < keys.length; i++) {
+                final long slot = table.find(keys[i]);
+                assertEquals(i, table.get(slot, 0));
+                assertEquals(-i, table.get(slot, 1));
+            }
+        }
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertFalse(new File(file.getPath() + ".tmp.bloom").exists());
+    }
+
+    @Test
+    void rebuildsAFilterThatWasNotForced() throws Exception {
+        final File file = dir.resolve("crash.tbl").toFile();
+        final File bloom = new File(file.getPath() + ".bloom"), forced = dir.resolve("forced.bloom").toFile();
+        final long[] before = keys(1_000, 4), after = keys(1_000, 5);
+
+        // never closed: the process "crashes" with the filter as of the last force
+        final FingerprintTable crashed = new FingerprintTable(file, 10_000, 0);
+        for (long key : before) crashed.insert(key);
+        crashed.force();
+        Files.copy(bloom.toPath(), forced.toPath());
+        for (long key : after) crashed.insert(key);
+        Files.copy(forced.toPath(), bloom.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        try (FingerprintTable table = new FingerprintTable(file, 10_000, 0)) {
+            assertEquals(before.length + after.length, table.size());
+            for (long key : before) assertTrue(table.find(key) >= 0);
+            for (long key : after) assertTrue(table.find(key) >= 0);
+        }
+        crashed.close();
+    }
+
+    @Test
+    void rebuildsAMissingFilter() throws Exception {
+        final File file = dir.resolve("lost.tbl").toFile();
+        final long[] keys = keys(1_000, 6);
+        try (FingerprintTable table = new FingerprintTable(file, 10_000, 0)) {
+            for (long key : keys) table.insert(key);
+        }
+        assertTrue(new File(file.getPath() + ".bloom").delete());
+
+        try (FingerprintTable table = new FingerprintTable(file, 10_000, 0)) {
+            for (long key : keys) assertTrue(table.find(key) >= 0);
+        }
+    }
+}
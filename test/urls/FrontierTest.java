@@ -0,0 +1,158 @@
+package urls;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+class FrontierTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    private Frontier open() throws IOException {
+        return new Frontier(dir.toFile(), SEGMENT_SIZE, 8, NEVER);
+    }
+
+    private static List<String> drain(final Frontier frontier) {
+        final List<String> urls = new ArrayList<>();
+        for (String url; (url = frontier.poll()) != null; ) urls.add(url);
+        Collections.sort(urls);
+        return urls;
+    }
+
+    private static List<String> urls(final int count) {
+        final List<String> urls = new ArrayList<>();
+        for (int i = 0; i < count; i++) urls.add("http://example.com/" + i);
+        return urls;
+    }
+
+    private List<String> files() {
+        final String[] names = dir.toFile().list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    /**
+     * Writes what a crash could leave behind at the end of the only segment: a length whose
+     * bytes never made it, or a length that is garbage.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {12, 0x7fff})
+    void reopensAfterATornWrite(final int length) throws IOException {
+        final List<String> urls = urls(5);
+        final Frontier crashed = open();
+        crashed.appendAll(urls);
+        crashed.force();
+
+        int end = 0;
+        for (String url : urls) end += url.length() + 2;
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(files().get(0)).toFile(), "rw")) {
+            file.seek(end);
+            file.writeShort(length);
+        }
+
+        final Frontier frontier = open();
+        assertEquals(urls, drain(frontier));
+        assertEquals(0, frontier.pendingBytes());
+    }
+
+    @Test
+    void replaysAdmissionsAfterTheCheckpoint() throws IOException {
+        final List<String> before = urls(3), after = Arrays.asList("http://example.org/a", "http://example.org/b");
+        final Frontier crashed = open();
+        crashed.appendAll(before);
+
+        final ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        crashed.checkpoint().write(new DataOutputStream(saved));
+        crashed.appendAll(after);
+        crashed.force();
+
+        final Frontier frontier = open();
+        final Frontier.Checkpoint checkpoint = Frontier.Checkpoint.read(new DataInputStream(new ByteArrayInputStream(saved.toByteArray())));
+        frontier.restore(checkpoint);
+        final List<String> replayed = new ArrayList<>();
+        frontier.replay(checkpoint, replayed::add);
+
+        assertEquals(after, replayed);
+        final List<String> all = new ArrayList<>(before);
+        all.addAll(after);
+        Collections.sort(all);
+        assertEquals(all, drain(frontier));
+    }
+
+    /**
+     * Leaves several small, unread segments behind, the way restarts of a starved crawl do.
+     */
+    private List<String> smallSegments() throws IOException {
+        final List<String> urls = urls(4);
+        for (String url : urls) {
+            final Frontier frontier = open();
+            frontier.append(url);
+            frontier.close();
+        }
+        return urls;
+    }
+
+    @Test
+    void finishesACommittedMerge() throws IOException {
+        final List<String> urls = smallSegments();
+        final File journal = open().merge();
+        assertNotNull(journal);
+        assertTrue(journal.exists());
+
+        assertEquals(urls, drain(open()));
+        assertTrue(files().stream().noneMatch(name -> name.endsWith(".tmp") || name.endsWith(".merge")));
+    }
+
+    @Test
+    void finishesAMergeInterruptedPartWay() throws IOException {
+        final List<String> urls = smallSegments();
+        final File journal = open().merge();
+        final File merged = new File(journal.getPath().replace(".merge", ".seg"));
+        Files.move(new File(merged.getPath() + ".tmp").toPath(), merged.toPath());
+        assertTrue(dir.resolve(files().get(0)).toFile().delete());
+
+        assertEquals(urls, drain(open()));
+    }
+
+    @Test
+    void discardsAnUncommittedMerge() throws IOException {
+        final List<String> urls = smallSegments();
+        final List<String> segments = files();
+        assertTrue(open().merge().delete());
+
+        assertEquals(urls, drain(open()));
+        assertTrue(files().containsAll(segments));
+        assertTrue(files().stream().noneMatch(name -> name.endsWith(".tmp")));
+    }
+}
@@ -0,0 +1,67 @@
+package urls;
+
+import utils.MappedLongArray;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A memory-mapped Bloom filter over 64-bit fingerprints. The k probe positions are derived
+ * from the two halves of the fingerprint (Kirsch-Mitzenmacher), so no rehashing is needed.
+ */
+public class BloomFilter implements Closeable {
+
+    private final MappedLongArray bits;
+    private final long bitCount;
+    private final int hashes;
+
+    public BloomFilter(final File file, final long expected, final int bitsPerKey) throws IOException {
+        final long words = Math.max(1, (expected * bitsPerKey + 63) >>> 6);
+        bits = new MappedLongArray(file, words);
+        bitCount = words << 6;
+        hashes = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    }
+
+    public boolean mightContain(final long fingerprint) {
+        final long h1 = fingerprint, h2 = (fingerprint >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    public void put(final long fingerprint) {
+        final long h1 = fingerprint, h2 = (fingerprint >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            final long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            final long mask = 1L << bit;
+            if ((bits.get(bit >>> 6) & mask) == 0) bits.getAndBitwiseOr(bit >>> 6, mask);
+        }
+    }
+
+    public void force() {
+        bits.force();
+    }
+
+    public void close() throws IOException {
+        bits.close();
+    }
+}
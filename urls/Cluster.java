@@ -0,0 +1,312 @@
+package urls;
+
+import utils.Fingerprint;
+import utils.Metrics;
+import utils.Sleeper;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Splits the crawl across several nodes. Every host belongs to exactly one node, picked by a
+ * {@link HashRing} over the node addresses, and only that node admits, schedules and fetches its
+ * urls; the others batch the urls they discover for it and forward them over a plain socket.
+ * <p>
+ * Each node is started with its own address and the addresses of all the others, and the ring
+ * is exactly those members: a JOIN from any other address is refused, so a stray or hostile
+ * process cannot take over a share of the hosts. On start-up a node sends a JOIN to every peer
+ * and warns if the peer was configured with different members. Members are never removed; while
+ * one is unreachable its outbox fills up and the others keep the urls it would have been sent
+ * (see {@link #forward(String, String)}). Urls already sitting in a frontier that belong
+ * elsewhere are forwarded as they are polled (see {@link UrlStore#get()}).
+ * <p>
+ * Wire format, one request per frame on a {@link DataOutputStream}; counts outside the limits
+ * below fail the connection:
+ * <pre>
+ *   'U' int count (0..BATCH_SIZE), count x UTF url  -> 'A'
+ *   'J' UTF address                                -> int count (0..MAX_MEMBERS), count x UTF member
+ * </pre>
+ */
+public class Cluster {
+
+    private static final byte URLS = 'U', JOIN = 'J', ACK = 'A';
+    private static final int REPLICAS = 128;
+    private static final int BATCH_SIZE = 1000;
+    private static final int MAX_MEMBERS = 1024;
+    private static final long BATCH_WAIT = 100;
+    private static final int OUTBOX_SIZE = 100_000;
+    private static final int MAX_URL_LENGTH = 4096;
+    private static final int CONNECT_TIMEOUT = 2000, READ_TIMEOUT = 30_000;
+    private static final long RETRY_WAIT = 1000;
+
+    private static final LongAdder RECEIVED = Metrics.counter("cluster_urls_received");
+    private static final LongAdder FAILURES = Metrics.counter("cluster_forward_failures");
+
+    private static Cluster ourInstance = new Cluster();
+
+    private static String self;
+    private static volatile HashRing ring;
+    private static final Map<String, Peer> PEERS = new ConcurrentHashMap<>();
+    private static final Set<String> JOINED = ConcurrentHashMap.newKeySet();
+
+    private Cluster() {
+    }
+
+    /**
+     * Starts listening on {@code self} ("host:port") and joins the given peers.
+     */
+    public static synchronized void init(final String self, final Collection<String> peers) throws IOException {
+        Cluster.self = self;
+
+        final Set<String> members = new HashSet<>(peers);
+        members.add(self);
+        ring = new HashRing(members, REPLICAS);
+        if (members.size() > MAX_MEMBERS) throw new IllegalArgumentException("More than " + MAX_MEMBERS + " cluster members");
+        for (String member : members) if (!member.equals(self)) PEERS.put(member, new Peer(member));
+        Metrics.gauge("cluster_members", () -> ring.members().size());
+
+        final ServerSocket server = new ServerSocket();
+        server.bind(address(self));
+        final Thread listener = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    final Thread connection = new Thread(() -> serve(socket));
+                    connection.setName("Cluster Connection " + socket.getRemoteSocketAddress());
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        listener.setName("Cluster Listener");
+        listener.setDaemon(true);
+        listener.start();
+
+        final Thread joiner = new Thread(() -> {
+            while (true) {
+                for (String member : ring.members())
+                    if (!member.equals(self) && !JOINED.contains(member)) join(member);
+                Sleeper.sleep(RETRY_WAIT);
+            }
+        });
+        joiner.setName("Cluster Joiner");
+        joiner.setDaemon(true);
+        joiner.start();
+    }
+
+    public static Cluster getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * The node that owns the url's host, or null if it is this one (or there is no cluster).
+     */
+    public String owner(final String url) {
+        final HashRing current = ring;
+        if (current == null) return null;
+        final String owner = current.owner(Fingerprint.of(HostScheduler.hostOf(url)));
+        return self.equals(owner) ? null : owner;
+    }
+
+    /**
+     * Queues the url for its owner. Returns false if the owner's outbox is full (it has been
+     * unreachable for a while), in which case the caller should keep the url itself.
+     */
+    public boolean forward(final String owner, final String url) {
+        if (url.length() > MAX_URL_LENGTH) return true;
+        final Peer peer = PEERS.computeIfAbsent(owner, Peer::new);
+        return peer.outbox.offer(url);
+    }
+
+    public Set<String> members() {
+        final HashRing current = ring;
+        return current == null ? Collections.emptySet() : current.members();
+    }
+
+    /**
+     * Reads a count sent by a peer, refusing one a well-behaved peer would never send rather than
+     * allocating for it.
+     */
+    private static int readCount(final DataInputStream input, final int max) throws IOException {
+        final int count = input.readInt();
+        if (count < 0 || count > max) throw new IOException("Bad count " + count);
+        return count;
+    }
+
+    private static void join(final String member) {
+        try (Socket socket = connect(member);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            output.writeByte(JOIN);
+            output.writeUTF(self);
+            output.flush();
+
+            final int count = readCount(input, MAX_MEMBERS);
+            final Set<String> members = new HashSet<>(count * 2);
+            for (int i = 0; i < count; i++) members.add(input.readUTF());
+            JOINED.add(member);
+            if (!members.equals(ring.members()))
+                System.err.print("\nCluster member " + member + " was configured with " + members + ", this node with " + ring.members() + "\n");
+        } catch (IOException e) {
+            // not up yet; the joiner tries again
+        }
+    }
+
+    private static void serve(final Socket socket) {
+        try (socket;
+             DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                final int type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (type == URLS) {
+                    final int count = readCount(input, BATCH_SIZE);
+                    final List<String> urls = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) urls.add(input.readUTF());
+                    UrlStore.getInstance().acceptOwned(urls);
+                    RECEIVED.add(count);
+                    output.writeByte(ACK);
+                } else if (type == JOIN) {
+                    final String joining = input.readUTF();
+                    final Set<String> members = ring.members();
+                    if (!members.contains(joining)) throw new IOException("Refused JOIN from unconfigured member " + joining);
+                    output.writeInt(members.size());
+                    for (String member : members) output.writeUTF(member);
+                } else {
+                    throw new IOException("Unknown message type " + type);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            System.err.print("\nCluster connection failed: " + e.getMessage() + "\n");
+        }
+    }
+
+    private static Socket connect(final String member) throws IOException {
+        final Socket socket = new Socket();
+        socket.connect(address(member), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private static InetSocketAddress address(final String member) {
+        final int colon = member.lastIndexOf(':');
+        if (colon == -1) throw new IllegalArgumentException("Expected host:port, got " + member);
+        return new InetSocketAddress(member.substring(0, colon), Integer.parseInt(member.substring(colon + 1)));
+    }
+
+    /**
+     * The outbound side of one peer: a bounded outbox drained in batches over one connection
+     * that is reopened whenever it fails. A batch that could not be delivered is retried as-is.
+     */
+    private static class Peer {
+        private final String address;
+        private final BlockingQueue<String> outbox = new ArrayBlockingQueue<>(OUTBOX_SIZE);
+        private final LongAdder forwarded;
+
+        private Socket socket;
+        private DataOutputStream output;
+        private DataInputStream input;
+
+        private Peer(final String address) {
+            this.address = address;
+            this.forwarded = Metrics.counter("cluster_urls_forwarded", "peer", address);
+            Metrics.gauge("cluster_outbox", outbox::size, "peer", address);
+
+            final Thread sender = new Thread(this::send);
+            sender.setName("Cluster Sender " + address);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        private void send() {
+            final List<String> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                try {
+                    if (batch.isEmpty()) {
+                        batch.add(outbox.take());
+                        final long deadline = System.currentTimeMillis() + BATCH_WAIT;
+                        while (batch.size() < BATCH_SIZE) {
+                            if (outbox.drainTo(batch, BATCH_SIZE - batch.size()) > 0) continue;
+                            final String next = outbox.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                            if (next == null) break;
+                            batch.add(next);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    write(batch);
+                    forwarded.add(batch.size());
+                    batch.clear();
+                } catch (IOException e) {
+                    FAILURES.increment();
+                    disconnect();
+                    Sleeper.sleep(RETRY_WAIT);
+                }
+            }
+        }
+
+        private void write(final List<String> batch) throws IOException {
+            if (socket == null) {
+                socket = connect(address);
+                output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
+
+            output.writeByte(URLS);
+            output.writeInt(batch.size());
+            for (String url : batch) output.writeUTF(url);
+            output.flush();
+            if (input.readByte() != ACK) throw new IOException("Bad reply from " + address);
+        }
+
+        private void disconnect() {
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            socket = null;
+        }
+    }
+}
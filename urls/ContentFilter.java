@@ -0,0 +1,136 @@
+package urls;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Keeps everything but HTML away from the parser, as early as each check can be made:
+ * <ul>
+ * <li>at admission, urls whose path ends in an extension of a binary or non-page format never
+ * enter the frontier</li>
+ * <li>when the response headers arrive, a Content-Type other than HTML ends the fetch before
+ * any of the body is read</li>
+ * <li>when the first bytes arrive, bodies that start like a known binary format (or hold NUL
+ * bytes, which no HTML does) end the fetch, whatever they were labelled</li>
+ * </ul>
+ * Bodies are read up to {@link #getMaxBodyBytes()} and the rest is never downloaded.
+ */
+public class ContentFilter {
+
+    public static final int SNIFF_BYTES = 512;
+
+    private static final String[] DEFAULT_EXTENSIONS = {
+            "jpg", "jpeg", "png", "gif", "webp", "bmp", "ico", "svg", "tif", "tiff", "avif", "heic",
+            "mp3", "m4a", "wav", "ogg", "oga", "flac", "aac", "mid", "midi",
+            "mp4", "m4v", "webm", "avi", "mov", "mkv", "flv", "wmv", "mpg", "mpeg", "3gp",
+            "pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx", "odt", "ods", "odp", "rtf", "epub", "ps", "eps",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "tar", "zst", "cab",
+            "exe", "msi", "dmg", "iso", "img", "bin", "apk", "deb", "rpm", "jar", "class", "so", "dll",
+            "css", "js", "mjs", "json", "woff", "woff2", "ttf", "otf", "eot", "swf", "csv", "tsv"};
+
+    /**
+     * Signatures of formats that are never pages, matched at the start of the body.
+     */
+    private static final byte[][] MAGIC = {
+            bytes("%PDF-"), {'P', 'K', 3, 4}, {(byte) 0x1f, (byte) 0x8b}, bytes("GIF8"),
+            {(byte) 0x89, 'P', 'N', 'G'}, {(byte) 0xff, (byte) 0xd8, (byte) 0xff}, bytes("RIFF"), bytes("ID3"),
+            bytes("OggS"), bytes("fLaC"), {'7', 'z', (byte) 0xbc, (byte) 0xaf}, bytes("Rar!"), bytes("MZ"),
+            {0x7f, 'E', 'L', 'F'}, bytes("wOFF"), bytes("wOF2"), {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3},
+            {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe}, bytes("BZh"), {(byte) 0xfd, '7', 'z', 'X', 'Z'},
+            {'I', 'I', '*', 0}, {'M', 'M', 0, '*'}, {(byte) 0xd0, (byte) 0xcf, 0x11, (byte) 0xe0}};
+
+    private static volatile Set<String> extensions = new HashSet<>(Arrays.asList(DEFAULT_EXTENSIONS));
+    private static volatile int maxBodyBytes = 2_000_000;
+
+    private ContentFilter() {
+    }
+
+    /**
+     * @param extensions extensions of urls not to crawl, or null for the defaults
+     */
+    public static synchronized void init(final int maxBodyBytes, final Collection<String> extensions) {
+        ContentFilter.maxBodyBytes = maxBodyBytes;
+        if (extensions != null) {
+            final Set<String> lowerCase = new HashSet<>();
+            for (String extension : extensions)
+                if (!extension.trim().isEmpty()) lowerCase.add(extension.trim().toLowerCase(Locale.ROOT).replace(".", ""));
+            ContentFilter.extensions = lowerCase;
+        }
+    }
+
+    public static int getMaxBodyBytes() {
+        return maxBodyBytes;
+    }
+
+    /**
+     * False if the last segment of the url's path ends in a skipped extension.
+     */
+    public static boolean isFetchable(final String url) {
+        final int scheme = url.indexOf("://");
+        final int pathStart = url.indexOf('/', scheme == -1 ? 0 : scheme + 3);
+        if (pathStart == -1) return true;
+        int end = pathStart;
+        while (end < url.length() && url.charAt(end) != '?' && url.charAt(end) != '#') end++;
+
+        for (int i = end - 1; i > pathStart && end - i <= 8; i--) {
+            final char c = url.charAt(i);
+            if (c == '/') return true;
+            if (c == '.') return i == end - 1 || !extensions.contains(url.substring(i + 1, end).toLowerCase(Locale.ROOT));
+        }
+        return true;
+    }
+
+    /**
+     * True if a response of this Content-Type may be a page; a missing type is left to sniffing.
+     */
+    public static boolean isHtmlType(final String contentType) {
+        if (contentType == null) return true;
+        final int semicolon = contentType.indexOf(';');
+        final String type = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        return type.isEmpty() || type.equals("text/html") || type.equals("application/xhtml+xml");
+    }
+
+    /**
+     * False if the first bytes of the body give it away as something other than HTML.
+     */
+    public static boolean isHtmlBody(final byte[] body, final int length) {
+        for (byte[] magic : MAGIC) if (startsWith(body, length, magic)) return false;
+        if (length >= 8 && body[4] == 'f' && body[5] == 't' && body[6] == 'y' && body[7] == 'p') return false;
+
+        // UTF-16 text has NULs in it; anything else with one is binary
+        if (length >= 2 && (body[0] == (byte) 0xfe && body[1] == (byte) 0xff || body[0] == (byte) 0xff && body[1] == (byte) 0xfe))
+            return true;
+        for (int i = 0; i < Math.min(length, SNIFF_BYTES); i++) if (body[i] == 0) return false;
+        return true;
+    }
+
+    private static boolean startsWith(final byte[] body, final int length, final byte[] magic) {
+        if (length < magic.length) return false;
+        for (int i = 0; i < magic.length; i++) if (body[i] != magic[i]) return false;
+        return true;
+    }
+
+    private static byte[] bytes(final String ascii) {
+        return ascii.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,13 +1,23 @@
 package urls;
 
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.Triple;
-import utils.Sleeper;
+import utils.Histogram;
+import utils.Metrics;
+import utils.Watchdog;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -27,80 +37,246 @@ import java.util.function.Supplier;
  * limitations under the License.
  */
 
-public class CurlStore implements Supplier<Pair<String, InputStream>>, Consumer<Pair<String, Process>> {
-    private static final Queue<Triple<String, Process, Long>> QUEUE = new ConcurrentLinkedQueue<>();
-    private static final Runtime RUNTIME = Runtime.getRuntime();
+/**
+ * Fetches pages in-process on a shared {@link HttpClient} rather than forking a curl per url.
+ * The client multiplexes over non-blocking sockets and keeps a keep-alive (or HTTP/2) connection
+ * pool per host, so consecutive fetches from the same site skip the TCP and TLS handshakes.
+ * <p>
+ * A fetch holds its permit until its body has been read by {@link #take()} (or {@link #get()}),
+ * so at most {@code maxCurlsRunning} responses are ever in flight or waiting to be read. Every
+ * fetch that {@link #curl(String)} starts ends here too, and is then handed back to
+ * {@link UrlStore#done(String)} under the url it was requested as.
+ */
+public class CurlStore implements Supplier<Pair<String, InputStream>>, Consumer<Pair<String, CompletableFuture<HttpResponse<InputStream>>>> {
+    private static final BlockingQueue<Pair<String, HttpResponse<InputStream>>> QUEUE = new LinkedBlockingQueue<>();
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
 
-    private static final StringBuilder EXIT_VALUES = new StringBuilder();
+    /**
+     * The product token robots.txt groups are matched against, and the User-Agent we send.
+     */
+    public static final String AGENT_TOKEN = "Search-Engine";
+    public static final String USER_AGENT = AGENT_TOKEN + "/1.0";
+
+    private static final Histogram FETCH_LATENCY = Metrics.histogram("fetch_latency_micros");
+    private static final LongAdder FETCH_BYTES = Metrics.counter("fetch_bytes");
+    private static final LongAdder UNCHANGED = Metrics.counter("fetch_unchanged");
+    private static final LongAdder TRUNCATED = Metrics.counter("fetch_truncated");
+    private static final int MAX_HOST_SERIES = 256;
+    private static final ConcurrentMap<String, HostMetrics> HOST_METRICS = new ConcurrentHashMap<>();
+    private static final HostMetrics OTHER_HOST = new HostMetrics("other");
 
     private static long timeout = 25_000;
     private static int maxCurlsRunning = 250;
+    private static Semaphore running = new Semaphore(maxCurlsRunning);
+    private static HttpClient client;
     private static CurlStore ourInstance = new CurlStore();
 
     private CurlStore() {
     }
 
-    public static CurlStore getInstance(final int maxCurlsRunning, final long timeout) {
+    public static synchronized CurlStore getInstance(final int maxCurlsRunning, final long timeout) {
         CurlStore.maxCurlsRunning = maxCurlsRunning;
         CurlStore.timeout = timeout;
+        running = new Semaphore(maxCurlsRunning);
+        Metrics.gauge("fetches_running", ourInstance::size);
+        Metrics.gauge("fetches_unread", QUEUE::size);
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(timeout))
+                .build();
         return ourInstance;
     }
 
-    public Process curl(final String url) {
-        while (size() >= maxCurlsRunning) Sleeper.sleep(50);
+    public CompletableFuture<HttpResponse<InputStream>> curl(final String url) {
+        final HttpRequest request;
+        try {
+            final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                    .header("Accept-Language", "en")
+                    .header("User-Agent", USER_AGENT)
+                    .timeout(Duration.ofMillis(timeout))
+                    .GET();
+            RecrawlStore.getInstance().addConditions(url, builder);
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            status("error");
+            UrlStore.getInstance().done(url);
+            return null;
+        }
 
+        running.acquireUninterruptibly();
+        final long start = System.nanoTime();
         try {
-            return RUNTIME.exec(new String[]{
-                    "curl",
-                    "--silent",
-                    "--fail",
-                    "--no-keepalive",
-                    "--header", "Accept-Language: en",
-                    "--max-time", String.valueOf(timeout / 1000),
-                    url
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+                    .whenComplete((response, throwable) -> {
+                        FETCH_LATENCY.recordSince(start);
+                        final HostMetrics host = hostMetrics(url);
+                        host.latency.recordSince(start);
+                        if (throwable == null) host.fetches.increment();
+                        if (throwable != null || response.statusCode() / 100 != 2) running.release();
+                    });
+        } catch (IllegalArgumentException e) {
+            running.release();
+            status("error");
+            UrlStore.getInstance().done(url);
             return null;
         }
     }
 
-    public String getExitValues() {
-        final String vals = EXIT_VALUES.toString();
-        EXIT_VALUES.setLength(0);
-        return vals;
+    /**
+     * Fetch outcomes so far: HTTP status codes, plus "timeout" and "error" for fetches that got
+     * no usable response.
+     */
+    public Map<String, Long> getStatusCounts() {
+        return Metrics.counters("fetch_status");
     }
 
-    public void accept(Pair<String, Process> curl) {
-        QUEUE.offer(Triple.of(curl.getLeft(), curl.getRight(), System.currentTimeMillis()));
+    public void accept(Pair<String, CompletableFuture<HttpResponse<InputStream>>> curl) {
+        curl.getRight().whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                final Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                status(cause instanceof HttpTimeoutException ? "timeout" : "error");
+                UrlStore.getInstance().done(curl.getLeft());
+                return;
+            }
+
+            status(String.valueOf(response.statusCode()));
+            if (response.statusCode() / 100 != 2) {
+                if (response.statusCode() == 304) RecrawlStore.getInstance().notModified(curl.getLeft());
+                close(response.body());
+                UrlStore.getInstance().done(curl.getLeft());
+                return;
+            }
+            if (!ContentFilter.isHtmlType(response.headers().firstValue("Content-Type").orElse(null))) {
+                // closing the body before reading it aborts the download
+                close(response.body());
+                running.release();
+                reject(curl.getLeft(), "content_type");
+                UrlStore.getInstance().done(curl.getLeft());
+                return;
+            }
+
+            QUEUE.offer(Pair.of(curl.getLeft(), response));
+        });
     }
 
+    /**
+     * Reads the next downloaded body, or returns null if none is ready. See {@link #take()}.
+     */
     public Pair<String, InputStream> get() {
-        final Triple<String, Process, Long> triple = QUEUE.poll();
-        if (triple == null) return null;
-
-        final Process process = triple.getMiddle();
-        final Long startTime = triple.getRight();
-        final String url = triple.getLeft();
-
-        if (process.isAlive()) {
-            if (System.currentTimeMillis() - startTime < timeout) QUEUE.offer(triple);
-            else {
-                process.destroy();
-                EXIT_VALUES.append(". ");
+        final Pair<String, HttpResponse<InputStream>> fetched = QUEUE.poll();
+        return fetched == null ? null : read(fetched);
+    }
+
+    /**
+     * Waits for the next downloaded body, reads it into memory and hashes it. Pages whose body is
+     * identical to the last crawl are dropped here, before they cost a parse or a Solr update, and
+     * null is returned for them (and for bodies that failed to download).
+     */
+    public Pair<String, InputStream> take() throws InterruptedException {
+        return read(QUEUE.take());
+    }
+
+    private Pair<String, InputStream> read(final Pair<String, HttpResponse<InputStream>> fetched) {
+        try {
+            return readBody(fetched);
+        } finally {
+            UrlStore.getInstance().done(fetched.getLeft());
+        }
+    }
+
+    private Pair<String, InputStream> readBody(final Pair<String, HttpResponse<InputStream>> fetched) {
+        final HttpResponse<InputStream> response = fetched.getRight();
+        final int max = ContentFilter.getMaxBodyBytes();
+        byte[] body = BUFFER.get();
+        int length = 0;
+        boolean sniffed = false, truncated;
+        // the request timeout stops at the headers, so the body gets a deadline of its own
+        final ScheduledFuture<?> deadline = Watchdog.closeAfter(response.body(), timeout);
+        try (InputStream input = response.body()) {
+            int n;
+            while (length < max && (n = input.read(body, length, Math.min(body.length, max) - length)) != -1) {
+                length += n;
+                if (!sniffed && length >= ContentFilter.SNIFF_BYTES) {
+                    sniffed = true;
+                    if (!ContentFilter.isHtmlBody(body, length)) {
+                        reject(fetched.getLeft(), "binary");
+                        return null;
+                    }
+                }
+                if (length == body.length && body.length < max) {
+                    body = Arrays.copyOf(body, Math.min(body.length * 2, max));
+                    BUFFER.set(body);
+                }
             }
+            // whatever is left past the cap is never downloaded
+            truncated = length == max && input.read() != -1;
+        } catch (IOException e) {
+            status(deadline.isDone() && !deadline.isCancelled() ? "timeout" : "error");
             return null;
+        } finally {
+            deadline.cancel(false);
+            running.release();
         }
+        if (!sniffed && !ContentFilter.isHtmlBody(body, length)) {
+            reject(fetched.getLeft(), "binary");
+            return null;
+        }
+        if (truncated) TRUNCATED.increment();
+        FETCH_BYTES.add(length);
+        hostMetrics(fetched.getLeft()).bytes.add(length);
 
-        if (process.exitValue() != 0) {
-            EXIT_VALUES.append(process.exitValue() + " ");
+        if (RecrawlStore.getInstance().update(fetched.getLeft(), response.headers(), body, length)) {
+            UNCHANGED.increment();
             return null;
         }
 
-        return Pair.of(url, process.getInputStream());
+        final String url = response.uri().toString();
+        final PageArchive archive = PageArchive.getInstance();
+        if (archive.isEnabled()) archive.append(url, response.statusCode(), response.headers().map(), body, length);
+        return Pair.of(url, new ByteArrayInputStream(Arrays.copyOf(body, length)));
+    }
+
+    /**
+     * The url's per-host series, looked up once per host rather than by key on every fetch.
+     * Hosts past the first {@link #MAX_HOST_SERIES} share the series Metrics would fold them into.
+     */
+    private static HostMetrics hostMetrics(final String url) {
+        final String host = HostScheduler.hostOf(url);
+        final HostMetrics metrics = HOST_METRICS.get(host);
+        if (metrics != null) return metrics;
+        if (HOST_METRICS.size() >= MAX_HOST_SERIES) return OTHER_HOST;
+        return HOST_METRICS.computeIfAbsent(host, HostMetrics::new);
+    }
+
+    private static class HostMetrics {
+        private final Histogram latency;
+        private final LongAdder fetches, bytes;
+
+        private HostMetrics(final String host) {
+            latency = Metrics.histogram("host_fetch_latency_micros", "host", host);
+            fetches = Metrics.counter("host_fetches", "host", host);
+            bytes = Metrics.counter("host_fetch_bytes", "host", host);
+        }
+    }
+
+    private static void reject(final String url, final String reason) {
+        Metrics.counter("fetch_rejected", "reason", reason).increment();
+    }
+
+    private static void status(final String code) {
+        Metrics.counter("fetch_status", "code", code).increment();
+    }
+
+    private static void close(final InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public int size() {
-        return QUEUE.size();
+        return maxCurlsRunning - running.availablePermits();
     }
 }
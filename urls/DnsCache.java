@@ -0,0 +1,185 @@
+package urls;
+
+import utils.Histogram;
+import utils.Metrics;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Resolves hosts ahead of their fetches. {@link HostScheduler} asks for a host as soon as its
+ * first url is pulled from the frontier, so by the time the url is due the address is known.
+ * <p>
+ * The HttpClient has no resolver hook and always goes through {@link InetAddress}, so rather than
+ * hand it addresses this warms the JVM's own address cache, whose lifetimes are set to match
+ * ours. Lookups run on a pool of their own, concurrent requests for the same host share one
+ * lookup, and failures are cached too so a dead host's urls can be dropped without a fetch.
+ * <p>
+ * With a hosts file the JVM resolves from that file alone, which keeps tests off the network.
+ */
+public class DnsCache {
+
+    private static final int LOOKUP_THREADS = 32;
+    private static final InetAddress[] UNRESOLVED = new InetAddress[0];
+
+    private static final LongAdder HITS = Metrics.counter("dns_cache_hits");
+    private static final Histogram LATENCY = Metrics.histogram("dns_lookup_micros");
+
+    private static DnsCache ourInstance = new DnsCache();
+
+    private static int cacheSize;
+    private static long ttl, negativeTtl;
+    private static Map<String, Cached> cache;
+    private static final Map<String, CompletableFuture<InetAddress[]>> PENDING = new ConcurrentHashMap<>();
+    private static ExecutorService resolvers;
+
+    private DnsCache() {
+    }
+
+    /**
+     * Has to run before anything else touches {@link InetAddress}: the JVM reads its cache
+     * settings and hosts file only once.
+     *
+     * @param hostsFile resolve only from this file, or null for the system resolver
+     */
+    public static synchronized void init(final int cacheSize, final long ttl, final long negativeTtl, final File hostsFile) {
+        DnsCache.cacheSize = cacheSize;
+        DnsCache.ttl = ttl;
+        DnsCache.negativeTtl = negativeTtl;
+        cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Cached> eldest) {
+                return size() > DnsCache.cacheSize;
+            }
+        };
+
+        Security.setProperty("networkaddress.cache.ttl", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(ttl)));
+        Security.setProperty("networkaddress.cache.negative.ttl", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(negativeTtl)));
+        if (hostsFile != null) System.setProperty("jdk.net.hosts.file", hostsFile.getAbsolutePath());
+
+        resolvers = Executors.newFixedThreadPool(LOOKUP_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("DNS Resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Metrics.gauge("dns_cached_hosts", () -> {
+            synchronized (cache) {
+                return cache.size();
+            }
+        });
+    }
+
+    public static DnsCache getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * The host's addresses, or an empty array if it does not resolve. Cached answers are
+     * returned at once.
+     */
+    public CompletableFuture<InetAddress[]> resolve(final String host) {
+        final long now = System.currentTimeMillis();
+        synchronized (cache) {
+            final Cached cached = cache.get(host);
+            if (cached != null && cached.expires > now) {
+                HITS.increment();
+                return CompletableFuture.completedFuture(cached.addresses);
+            }
+        }
+
+        final CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        final CompletableFuture<InetAddress[]> pending = PENDING.putIfAbsent(host, lookup);
+        if (pending != null) return pending;
+
+        resolvers.execute(() -> {
+            try {
+                lookup.complete(lookup(host));
+            } finally {
+                PENDING.remove(host);
+            }
+        });
+        return lookup;
+    }
+
+    /**
+     * How many lookups of the host have failed in a row, as far as the cache remembers.
+     */
+    public int failures(final String host) {
+        if (cache == null) return 0;
+        synchronized (cache) {
+            final Cached cached = cache.get(host);
+            return cached == null ? 0 : cached.failures;
+        }
+    }
+
+    /**
+     * True if the host failed to resolve recently.
+     */
+    public boolean isUnresolved(final String host) {
+        if (cache == null) return false;
+        synchronized (cache) {
+            final Cached cached = cache.get(host);
+            return cached != null && cached.addresses.length == 0 && cached.expires > System.currentTimeMillis();
+        }
+    }
+
+    private static InetAddress[] lookup(final String host) {
+        final long start = System.nanoTime();
+        InetAddress[] addresses;
+        try {
+            addresses = InetAddress.getAllByName(host);
+        } catch (UnknownHostException | SecurityException e) {
+            addresses = UNRESOLVED;
+        }
+        LATENCY.recordSince(start);
+        Metrics.counter("dns_lookups", "result", addresses.length == 0 ? "failed" : "ok").increment();
+
+        final long expires = System.currentTimeMillis() + (addresses.length == 0 ? negativeTtl : ttl);
+        synchronized (cache) {
+            final Cached previous = cache.get(host);
+            final int failures = addresses.length > 0 ? 0 : previous == null ? 1 : previous.failures + 1;
+            cache.put(host, new Cached(addresses, expires, failures));
+        }
+        return addresses;
+    }
+
+    private static class Cached {
+        private final InetAddress[] addresses;
+        private final long expires;
+        private final int failures;
+
+        private Cached(final InetAddress[] addresses, final long expires, final int failures) {
+            this.addresses = addresses;
+            this.expires = expires;
+            this.failures = failures;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package urls;
+
+import utils.MappedLongArray;
+import utils.Metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A memory-mapped, open-addressing (linear probing) hash table keyed by 64-bit fingerprints.
+ * Every slot holds the key followed by a fixed number of long values. Keys are claimed with a
+ * CAS on an empty slot and values are only ever touched through atomic operations, so lookups
+ * and inserts never lock. A {@link BloomFilter} in front answers most misses without probing.
+ * <p>
+ * The table is sized for a load of 3/4 of the expected keys and is not resized while open:
+ * once it is 7/8 full, {@link #insert(long)} refuses new keys and returns -1. It is rehashed
+ * into a larger file when it is next opened nearly full, or with more keys expected.
+ * <p>
+ * The header records the size at which the filter was last forced. A table opened with more keys
+ * than that, or without its filter file, may hold keys the filter lost in a crash, so the filter
+ * is rebuilt from the slots before any lookup.
+ */
+public class FingerprintTable implements Closeable {
+
+    private static final long MAGIC = 0x5345454e54424c31L;
+    private static final int HEADER = 8;
+    private static final int CAPACITY = 1, WIDTH = 2, SIZE = 3, BLOOM_KEYS = 4, BLOOM_SIZE = 5;
+    private static final int BLOOM_BITS = 10;
+
+    private final File file;
+    private final MappedLongArray slots;
+    private final BloomFilter bloom;
+    private final long capacity;
+    private final long limit;
+    private final int width;
+    private volatile boolean full;
+
+    public FingerprintTable(final File file, final long expected, final int values) throws IOException {
+        this.file = file;
+        this.width = values + 1;
+
+        long capacity = capacityFor(expected), bloomKeys = expected;
+        if (file.length() >= HEADER << 3) {
+            try (MappedLongArray header = new MappedLongArray(file, HEADER)) {
+                if (header.get(0) != 0) {
+                    if (header.get(0) != MAGIC || header.get(WIDTH) != width)
+                        throw new IllegalStateException("Incompatible fingerprint table: " + file.getAbsolutePath());
+                    final long stored = header.get(CAPACITY), size = header.get(SIZE);
+                    if (stored < capacity || size >= stored / 4 * 3) {
+                        capacity = Math.max(capacity, capacityFor(size * 2));
+                        bloomKeys = capacity / 4 * 3;
+                        rehash(file, width, capacity, bloomKeys);
+                    } else {
+                        capacity = stored;
+                        // tables written before the header recorded it had their filter sized for expected
+                        if (header.get(BLOOM_KEYS) != 0) bloomKeys = header.get(BLOOM_KEYS);
+                    }
+                }
+            }
+        }
+
+        final File bloomFile = new File(file.getPath() + ".bloom");
+        final boolean bloomLost = !bloomFile.exists();
+        this.slots = new MappedLongArray(file, HEADER + capacity * width);
+        this.bloom = new BloomFilter(bloomFile, bloomKeys, BLOOM_BITS);
+        if (slots.get(0) == 0) {
+            slots.set(CAPACITY, capacity);
+            slots.set(WIDTH, width);
+            slots.set(BLOOM_KEYS, bloomKeys);
+            slots.set(0, MAGIC);
+        } else if (slots.get(BLOOM_KEYS) == 0) {
+            slots.set(BLOOM_KEYS, bloomKeys);
+        }
+
+        this.capacity = capacity;
+        this.limit = capacity / 8 * 7;
+        if (slots.get(SIZE) != 0 && (bloomLost || slots.get(BLOOM_SIZE) != slots.get(SIZE))) rebuildBloom();
+    }
+
+    /**
+     * Puts every key in the slots back into the filter and records it as forced.
+     */
+    private void rebuildBloom() {
+        final long start = System.currentTimeMillis();
+        final long size = slots.get(SIZE);
+        for (long slot = 0; slot < capacity; slot++) {
+            final long key = slots.get(offset(slot));
+            if (key != 0) bloom.put(key);
+        }
+        bloom.force();
+        slots.set(BLOOM_SIZE, size);
+        System.out.println("Rebuilt the filter of " + file + " from " + size + " keys in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Slots for the keys at a load of 3/4. Not rounded to a power of two, which would nearly
+     * double the file for some sizes.
+     */
+    private static long capacityFor(final long keys) {
+        return Math.max(16, (keys * 4 + 2) / 3);
+    }
+
+    /**
+     * Copies every key and its values into a new table of the given capacity and swaps it in.
+     */
+    private static void rehash(final File file, final int width, final long capacity, final long bloomKeys) throws IOException {
+        final long start = System.currentTimeMillis();
+        final File temporary = new File(file.getPath() + ".tmp");
+        final File temporaryBloom = new File(temporary.getPath() + ".bloom");
+        temporary.delete();
+        temporaryBloom.delete();
+
+        final long size;
+        try (MappedLongArray header = new MappedLongArray(file, HEADER)) {
+            size = HEADER + header.get(CAPACITY) * width;
+        }
+        try (MappedLongArray old = new MappedLongArray(file, size);
+             FingerprintTable table = new FingerprintTable(temporary, width - 1, capacity, bloomKeys)) {
+            for (long offset = HEADER; offset < size; offset += width) {
+                final long key = old.get(offset);
+                if (key == 0) continue;
+                final long slot = table.insert(key);
+                for (int field = 0; field < width - 1; field++) table.set(slot, field, old.get(offset + 1 + field));
+            }
+        }
+
+        Files.move(temporaryBloom.toPath(), new File(file.getPath() + ".bloom").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Rehashed " + file + " into " + capacity + " slots in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private FingerprintTable(final File file, final int values, final long capacity, final long bloomKeys) throws IOException {
+        this.file = file;
+        this.width = values + 1;
+        this.slots = new MappedLongArray(file, HEADER + capacity * width);
+        this.bloom = new BloomFilter(new File(file.getPath() + ".bloom"), bloomKeys, BLOOM_BITS);
+        slots.set(CAPACITY, capacity);
+        slots.set(WIDTH, width);
+        slots.set(BLOOM_KEYS, bloomKeys);
+        slots.set(0, MAGIC);
+        this.capacity = capacity;
+        this.limit = capacity;
+    }
+
+    /**
+     * The slot holding the key, or -1 if it is not in the table.
+     */
+    public long find(long key) {
+        if (key == 0) key = 1;
+        if (!bloom.mightContain(key)) return -1;
+
+        for (long i = 0, slot = Long.remainderUnsigned(key, capacity); i < capacity; i++) {
+            final long found = slots.get(offset(slot));
+            if (found == key) return slot;
+            if (found == 0) return -1;
+            if (++slot == capacity) slot = 0;
+        }
+        return -1;
+    }
+
+    /**
+     * True if the key may be in the table, false if it certainly is not. Costs no probing.
+     */
+    public boolean mightContain(long key) {
+        if (key == 0) key = 1;
+        return bloom.mightContain(key);
+    }
+
+    /**
+     * The slot holding the key, claiming one for it if it is new; -1 if it is new and the table
+     * is too full to take it.
+     */
+    public long insert(long key) {
+        if (key == 0) key = 1;
+
+        for (long i = 0, slot = Long.remainderUnsigned(key, capacity); i < capacity; i++) {
+            final long offset = offset(slot);
+            long found = slots.get(offset);
+            if (found == 0) {
+                if (slots.get(SIZE) >= limit) return refuse();
+                // a find() that sees the key must also get past the filter
+                bloom.put(key);
+                if (slots.compareAndSet(offset, 0, key)) {
+                    slots.getAndAdd(SIZE, 1);
+                    return slot;
+                }
+                found = slots.get(offset);
+            }
+            if (found == key) return slot;
+            if (++slot == capacity) slot = 0;
+        }
+        return refuse();
+    }
+
+    private long refuse() {
+        Metrics.counter("fingerprint_table_refused", "table", file.getName()).increment();
+        if (!full) {
+            full = true;
+            System.err.print("\nFingerprint table " + file + " is full; new keys are refused until it is reopened\n");
+        }
+        return -1;
+    }
+
+    public long get(final long slot, final int field) {
+        return slots.get(offset(slot) + 1 + field);
+    }
+
+    public void set(final long slot, final int field, final long value) {
+        slots.set(offset(slot) + 1 + field, value);
+    }
+
+    public boolean compareAndSet(final long slot, final int field, final long expected, final long value) {
+        return slots.compareAndSet(offset(slot) + 1 + field, expected, value);
+    }
+
+    public long size() {
+        return slots.get(SIZE);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Forces the filter, then the slots along with the size the filter now covers. Keys inserted
+     * meanwhile are not counted, so a crash after this still rebuilds the filter on open.
+     */
+    public void force() {
+        final long size = size();
+        bloom.force();
+        slots.set(BLOOM_SIZE, size);
+        slots.force();
+    }
+
+    public void close() throws IOException {
+        final long size = size();
+        bloom.close();
+        slots.set(BLOOM_SIZE, size);
+        slots.close();
+    }
+
+    private long offset(final long slot) {
+        return HEADER + slot * width;
+    }
+}
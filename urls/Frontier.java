@@ -0,0 +1,493 @@
+package urls;
+
+import utils.Sleeper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The crawl frontier, stored as a directory of append-only, memory-mapped segment files.
+ * <p>
+ * Producers reserve space in the open segment with a single atomic add and copy their record in
+ * without locking; a full segment is sealed and a fresh one opened. Consumers only read sealed
+ * segments, and interleave a randomly chosen handful of them at a time, which is what used to be
+ * done by shuffling the whole queue. A background thread seals the open segment when readers run
+ * dry, merges small unread segments and deletes segments that have been read to the end.
+ * <p>
+ * Because the segments are append-only, they double as the log of every admission: a
+ * {@link Checkpoint} only has to remember how far each segment has been read and where the open
+ * segment ended, and {@link #replay(Checkpoint, Consumer)} hands back everything appended since.
+ * <p>
+ * A merge is written to a temporary file and committed by renaming a journal of the segments it
+ * replaces into place; a merge the journal committed is finished on the next open, one it did
+ * not is discarded, so a crash during compaction neither loses nor duplicates urls. Records torn
+ * by a crash end their segment.
+ */
+public class Frontier implements Closeable {
+
+    private static final String SUFFIX = ".seg";
+    private static final String JOURNAL = ".merge", TEMPORARY = ".tmp";
+    private static final int MAX_RECORD = 0xffff;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int activeSegments;
+    private final long rollInterval;
+
+    private final List<Segment> sealed = new ArrayList<>();
+    private final List<Segment> active = new ArrayList<>();
+    private final List<Segment> retired = new ArrayList<>();
+    private volatile Segment open;
+    private long nextId;
+    private volatile boolean closed = false;
+
+    public Frontier(final File dir, final int segmentSize, final int activeSegments, final long rollInterval) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.activeSegments = activeSegments;
+        this.rollInterval = rollInterval;
+
+        final File[] journals = dir.listFiles((d, name) -> name.endsWith(JOURNAL));
+        if (journals != null) for (File journal : journals) finish(journal);
+        final File[] temporaries = dir.listFiles((d, name) -> name.endsWith(TEMPORARY));
+        if (temporaries != null) for (File temporary : temporaries) temporary.delete();
+
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                final Segment segment = new Segment(file, Long.parseLong(file.getName().replace(SUFFIX, ""), 16), segmentSize);
+                segment.sealed = true;
+                nextId = Math.max(nextId, segment.id + 1);
+                sealed.add(segment);
+            }
+        }
+        open = newSegment();
+
+        final Thread roller = new Thread(this::maintain);
+        roller.setName("Frontier Roller");
+        roller.setDaemon(true);
+        roller.start();
+    }
+
+    public void append(final String url) {
+        appendAll(Collections.singletonList(url));
+    }
+
+    public void appendAll(final Collection<String> urls) {
+        final List<byte[]> records = new ArrayList<>(urls.size());
+        int length = 0;
+        for (String url : urls) {
+            final byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length == 0 || bytes.length > MAX_RECORD) continue;
+            if (length + bytes.length + 2 > segmentSize) {
+                append(records, length);
+                records.clear();
+                length = 0;
+            }
+            records.add(bytes);
+            length += bytes.length + 2;
+        }
+        if (!records.isEmpty()) append(records, length);
+    }
+
+    private void append(final List<byte[]> records, final int length) {
+        while (true) {
+            final Segment segment = open;
+            segment.writers.incrementAndGet();
+            try {
+                if (segment.sealed) continue;
+                int position = segment.reserved.getAndAdd(length);
+                if (position + length > segmentSize) {
+                    roll(segment);
+                    continue;
+                }
+                for (byte[] bytes : records) {
+                    segment.write(position, bytes);
+                    position += bytes.length + 2;
+                }
+                return;
+            } finally {
+                segment.writers.decrementAndGet();
+            }
+        }
+    }
+
+    public String poll() {
+        while (true) {
+            final Segment segment;
+            synchronized (this) {
+                if (active.isEmpty() && !refill()) return null;
+                segment = active.get(ThreadLocalRandom.current().nextInt(active.size()));
+            }
+
+            final String url = segment.read();
+            if (url != null) return url;
+            retire(segment);
+        }
+    }
+
+    public synchronized long pendingBytes() {
+        long pending = open.reserved.get();
+        for (Segment segment : active) pending += segment.remaining();
+        for (Segment segment : sealed) pending += segment.remaining();
+        return pending;
+    }
+
+    public synchronized int segments() {
+        return active.size() + sealed.size() + 1;
+    }
+
+    public void force() {
+        final List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<>(sealed);
+            segments.addAll(active);
+            segments.add(open);
+        }
+        for (Segment segment : segments) segment.buffer.force();
+    }
+
+    /**
+     * Records how far every segment has been read and how far the open one has been written,
+     * after forcing everything appended so far to disk.
+     */
+    public Checkpoint checkpoint() {
+        final Map<Long, Integer> readPositions = new HashMap<>();
+        final Segment current;
+        final int written;
+        final List<Segment> done;
+        synchronized (this) {
+            for (Segment segment : sealed) readPositions.put(segment.id, segment.readPosition.get());
+            for (Segment segment : active) readPositions.put(segment.id, segment.readPosition.get());
+            for (Segment segment : retired) readPositions.put(segment.id, segment.readPosition.get());
+            done = new ArrayList<>(retired);
+            current = open;
+            written = Math.min(current.reserved.get(), segmentSize);
+        }
+        force();
+        return new Checkpoint(readPositions, current.id, written, done);
+    }
+
+    /**
+     * Deletes the segments that were fully read when the checkpoint was taken, once the caller
+     * has made the checkpoint itself durable.
+     */
+    public void commit(final Checkpoint checkpoint) {
+        synchronized (this) {
+            retired.removeAll(checkpoint.retired);
+        }
+        for (Segment segment : checkpoint.retired) segment.file.delete();
+    }
+
+    /**
+     * Skips the parts of the segments on disk that had already been read when the checkpoint was
+     * taken. Must be called before the first {@link #poll()}.
+     */
+    public synchronized void restore(final Checkpoint checkpoint) {
+        for (Segment segment : sealed) {
+            final Integer position = checkpoint.readPositions.get(segment.id);
+            if (position != null) segment.readPosition.set(Math.min(position, segment.reserved.get()));
+        }
+    }
+
+    /**
+     * Hands every url appended after the checkpoint to {@code consumer}, read or not.
+     */
+    public void replay(final Checkpoint checkpoint, final Consumer<String> consumer) {
+        final List<Segment> segments;
+        synchronized (this) {
+            segments = new ArrayList<>(sealed);
+            segments.addAll(active);
+        }
+        for (Segment segment : segments) {
+            if (segment.id > checkpoint.openId) segment.forEach(0, consumer);
+            else if (segment.id == checkpoint.openId) segment.forEach(checkpoint.openWritten, consumer);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        roll(open);
+        open.buffer.force();
+    }
+
+    private synchronized boolean refill() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < sealed.size() && active.size() < activeSegments; ) {
+            final Segment segment = sealed.get(i);
+            if (segment.writers.get() != 0) {
+                i++;
+                continue;
+            }
+            sealed.remove(i);
+            active.add(random.nextInt(active.size() + 1), segment);
+        }
+        return !active.isEmpty();
+    }
+
+    /**
+     * A segment that has been read to the end is only deleted by the next {@link #commit}, so a
+     * crash before then can still re-queue the urls that were read from it but never fetched.
+     */
+    private synchronized void retire(final Segment segment) {
+        if (!active.remove(segment)) return;
+        retired.add(segment);
+        refill();
+    }
+
+    private synchronized void roll(final Segment segment) {
+        if (segment != open || segment.sealed) return;
+        segment.sealed = true;
+        sealed.add(segment);
+        try {
+            open = newSegment();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized Segment newSegment() throws IOException {
+        return new Segment(segmentFile(nextId), nextId++, segmentSize);
+    }
+
+    private File segmentFile(final long id) {
+        return new File(dir, String.format("%016x", id) + SUFFIX);
+    }
+
+    private void maintain() {
+        while (!closed) {
+            Sleeper.sleep(rollInterval);
+
+            final Segment segment = open;
+            final boolean starving;
+            synchronized (this) {
+                starving = active.isEmpty() && sealed.isEmpty();
+            }
+            if (starving && segment.reserved.get() > 0) roll(segment);
+
+            try {
+                final File journal = merge();
+                if (journal != null) finish(journal);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Merges sealed segments that were rolled early and have not been read yet into one segment,
+     * so a starved crawl does not leave thousands of nearly empty files behind. Returns the
+     * journal that commits the merge, for {@link #finish(File)}, or null if there was nothing to
+     * merge.
+     */
+    File merge() throws IOException {
+        final List<Segment> small = new ArrayList<>();
+        int total = 0;
+        final long id;
+        synchronized (this) {
+            for (Segment segment : sealed) {
+                final int used = segment.reserved.get();
+                if (segment.writers.get() == 0 && segment.readPosition.get() == 0 && used < segmentSize / 8 && total + used <= segmentSize) {
+                    small.add(segment);
+                    total += used;
+                }
+            }
+            if (small.size() < 2) return null;
+            sealed.removeAll(small);
+            id = nextId++;
+        }
+
+        final File file = segmentFile(id);
+        final Segment merged = new Segment(new File(file.getPath() + TEMPORARY), id, segmentSize);
+        int position = 0;
+        for (Segment segment : small) {
+            final int used = segment.reserved.get();
+            final ByteBuffer from = segment.buffer.duplicate();
+            from.limit(used);
+            final ByteBuffer to = merged.buffer.duplicate();
+            to.position(position);
+            to.put(from);
+            position += used;
+        }
+        merged.reserved.set(position);
+        merged.sealed = true;
+        merged.buffer.force();
+
+        final File journal = new File(dir, String.format("%016x", id) + JOURNAL);
+        final File temporary = new File(journal.getPath() + TEMPORARY);
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+            output.writeInt(small.size());
+            for (Segment segment : small) output.writeLong(segment.id);
+            output.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temporary.toPath(), journal.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        merged.file = file;
+        synchronized (this) {
+            sealed.add(merged);
+        }
+        return journal;
+    }
+
+    /**
+     * Completes a committed merge: moves the merged segment into place, deletes the segments it
+     * replaced and then the journal. Safe to repeat after a crash part way through.
+     */
+    private void finish(final File journal) throws IOException {
+        final long id = Long.parseLong(journal.getName().replace(JOURNAL, ""), 16);
+        final File file = segmentFile(id), temporary = new File(file.getPath() + TEMPORARY);
+        if (temporary.exists())
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) segmentFile(input.readLong()).delete();
+        }
+        journal.delete();
+    }
+
+    private static class Segment {
+        private File file; // moved into place once a merge commits
+        private final long id;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicInteger writers = new AtomicInteger();
+        private final AtomicInteger readPosition = new AtomicInteger();
+        private volatile boolean sealed = false;
+
+        private Segment(final File file, final long id, final int capacity) throws IOException {
+            this.file = file;
+            this.id = id;
+            this.capacity = capacity;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < capacity) raf.setLength(capacity);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            reserved.set(used());
+        }
+
+        private void write(final int position, final byte[] bytes) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position + 2);
+            view.put(bytes);
+            buffer.putShort(position, (short) bytes.length);
+        }
+
+        private String read() {
+            while (true) {
+                final int position = readPosition.get();
+                final int length = position < reserved.get() ? length(position) : 0;
+                if (length == 0) return null;
+                if (!readPosition.compareAndSet(position, position + length + 2)) continue;
+
+                final byte[] bytes = new byte[length];
+                final ByteBuffer view = buffer.duplicate();
+                view.position(position + 2);
+                view.get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * The length of the record at the position, or 0 if there is none. A record that would
+         * run past the end of the segment was torn by a crash and is not one.
+         */
+        private int length(final int position) {
+            if (position + 2 > capacity) return 0;
+            final int length = buffer.getShort(position) & MAX_RECORD;
+            return position + 2 + length > capacity ? 0 : length;
+        }
+
+        /**
+         * Where the complete records of a segment found on disk end. A record whose first or last
+         * byte is zero had its length written but not all of its bytes, and ends the segment too.
+         */
+        private int used() {
+            int position = 0;
+            for (int length; (length = length(position)) != 0; position += length + 2) {
+                if (buffer.get(position + 2) == 0 || buffer.get(position + 1 + length) == 0) break;
+            }
+            return position;
+        }
+
+        private void forEach(int position, final Consumer<String> consumer) {
+            while (position < reserved.get()) {
+                final int length = length(position);
+                if (length == 0) return;
+
+                final byte[] bytes = new byte[length];
+                final ByteBuffer view = buffer.duplicate();
+                view.position(position + 2);
+                view.get(bytes);
+                consumer.accept(new String(bytes, StandardCharsets.UTF_8));
+                position += length + 2;
+            }
+        }
+
+        private long remaining() {
+            return Math.min(reserved.get(), capacity) - readPosition.get();
+        }
+    }
+
+    public static class Checkpoint {
+        private final Map<Long, Integer> readPositions;
+        private final long openId;
+        private final int openWritten;
+        private final List<Segment> retired;
+
+        private Checkpoint(final Map<Long, Integer> readPositions, final long openId, final int openWritten, final List<Segment> retired) {
+            this.readPositions = readPositions;
+            this.openId = openId;
+            this.openWritten = openWritten;
+            this.retired = retired;
+        }
+
+        public void write(final DataOutput output) throws IOException {
+            output.writeLong(openId);
+            output.writeInt(openWritten);
+            output.writeInt(readPositions.size());
+            for (Map.Entry<Long, Integer> entry : readPositions.entrySet()) {
+                output.writeLong(entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+        }
+
+        public static Checkpoint read(final DataInput input) throws IOException {
+            final long openId = input.readLong();
+            final int openWritten = input.readInt();
+            final int count = input.readInt();
+            final Map<Long, Integer> readPositions = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) readPositions.put(input.readLong(), input.readInt());
+            return new Checkpoint(readPositions, openId, openWritten, Collections.emptyList());
+        }
+    }
+}
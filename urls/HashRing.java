@@ -0,0 +1,60 @@
+package urls;
+
+import utils.Fingerprint;
+
+import java.util.*;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * An immutable consistent-hash ring. Each member is placed at {@code replicas} points; a key
+ * belongs to the member at the first point at or after it. Adding a member only moves the keys
+ * that land just before its points, about 1/n of the total, and every other key stays put.
+ */
+public class HashRing {
+
+    private final long[] points;
+    private final String[] owners;
+    private final Set<String> members;
+
+    public HashRing(final Collection<String> members, final int replicas) {
+        this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+
+        final TreeMap<Long, String> ring = new TreeMap<>();
+        for (String member : this.members)
+            for (int i = 0; i < replicas; i++) ring.put(Fingerprint.of(member + "#" + i), member);
+
+        points = new long[ring.size()];
+        owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+    }
+
+    public String owner(final long key) {
+        if (points.length == 0) return null;
+        int index = Arrays.binarySearch(points, key);
+        if (index < 0) index = -index - 1;
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public Set<String> members() {
+        return members;
+    }
+}
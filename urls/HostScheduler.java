@@ -0,0 +1,314 @@
+package urls;
+
+import utils.Metrics;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sits between the {@link UrlStore} and the {@link CurlStore} and hands out urls host by host.
+ * Every host gets its own ready queue; hosts that may be fetched again are kept in a min-heap
+ * ordered by the earliest time they are allowed to be hit, so {@link #get()} always serves the
+ * host that has waited longest while never exceeding the per-host concurrency or delay.
+ * <p>
+ * A host is not scheduled until it has resolved (see {@link DnsCache}) and its robots.txt rules
+ * are known (see {@link RobotsStore}). Both are requested when the host's first url is pulled,
+ * well ahead of its fetch. Urls of hosts that do not resolve and urls the rules disallow are
+ * dropped as they come up, and a crawl-delay only ever makes the host slower.
+ */
+public class HostScheduler implements Supplier<String> {
+
+    private static HostScheduler ourInstance = new HostScheduler();
+
+    private static final Map<String, Host> HOSTS = new HashMap<>();
+    private static final PriorityQueue<Host> READY = new PriorityQueue<>(Comparator.comparingLong(host -> host.nextFetchTime));
+    private static final Map<String, Long> CRAWL_DELAYS = new ConcurrentHashMap<>();
+    private static final long SWEEP_INTERVAL = 10_000;
+    private static final long IDLE_WAIT = 100;
+    private static final long ROBOTS_RECHECK = 60 * 60_000;
+    private static final LongAdder DISALLOWED = Metrics.counter("robots_disallowed");
+    private static final LongAdder UNRESOLVED = Metrics.counter("urls_unresolved");
+    private static final LongAdder UNRESOLVED_DEFERRED = Metrics.counter("urls_unresolved_deferred");
+    private static final int MAX_DNS_FAILURES = 3;
+    // urls pulled from the source per refill, so one call holding the lock stays short
+    private static final int REFILL_BATCH = 100;
+
+    private static Supplier<String> source;
+    private static int maxPerHost = 2;
+    private static long crawlDelay = 1000;
+    private static int maxQueued = 100_000;
+    private static int maxQueuedPerHost = 100;
+
+    private static int queued = 0;
+    private static long lastSweep = 0;
+
+    private HostScheduler() {
+    }
+
+    public static synchronized void init(final Supplier<String> source, final int maxPerHost, final long crawlDelay, final int maxQueued, final int maxQueuedPerHost) {
+        HostScheduler.source = source;
+        HostScheduler.maxPerHost = maxPerHost;
+        HostScheduler.crawlDelay = crawlDelay;
+        HostScheduler.maxQueued = maxQueued;
+        HostScheduler.maxQueuedPerHost = maxQueuedPerHost;
+        Metrics.gauge("scheduler_hosts", ourInstance::hosts);
+        Metrics.gauge("scheduler_queued", ourInstance::size);
+    }
+
+    public static HostScheduler getInstance() {
+        return ourInstance;
+    }
+
+    public static String hostOf(final String url) {
+        int start = url.indexOf("://");
+        start = start == -1 ? 0 : start + 3;
+
+        int end = start;
+        while (end < url.length()) {
+            final char c = url.charAt(end);
+            if (c == '/' || c == ':' || c == '?' || c == '#') break;
+            end++;
+        }
+
+        final int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) start = at + 1;
+
+        return url.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    public void setCrawlDelay(final String host, final long delay) {
+        CRAWL_DELAYS.put(host, delay);
+        synchronized (this) {
+            final Host known = HOSTS.get(host);
+            if (known != null) known.delay = known.delay();
+            notifyAll();
+        }
+    }
+
+    public synchronized String get() {
+        final long now = System.currentTimeMillis();
+        refill();
+        if (now - lastSweep > SWEEP_INTERVAL) sweep(now);
+
+        while (true) {
+            final Host host = READY.peek();
+            if (host == null || host.nextFetchTime > now) return null;
+            READY.poll();
+            host.scheduled = false;
+
+            final String url = host.queue.poll();
+            queued--;
+            if (now - host.robotsChecked > ROBOTS_RECHECK) requestRobots(host, url);
+            if (DnsCache.getInstance().isEnabled()) DnsCache.getInstance().resolve(host.name);
+            if (!host.robots.isAllowed(url)) {
+                DISALLOWED.increment();
+                UrlStore.getInstance().done(url);
+                schedule(host);
+                continue;
+            }
+
+            host.running++;
+            host.nextFetchTime = now + host.delay;
+            schedule(host);
+            return url;
+        }
+    }
+
+    /**
+     * Like {@link #get()}, but waits until some host is due instead of returning null. While the
+     * source is empty it is polled again every {@link #IDLE_WAIT} ms.
+     */
+    public synchronized String take() throws InterruptedException {
+        while (true) {
+            final String url = get();
+            if (url != null) return url;
+
+            final Host host = READY.peek();
+            final long wait = host == null ? IDLE_WAIT : Math.min(IDLE_WAIT, host.nextFetchTime - System.currentTimeMillis());
+            wait(Math.max(1, wait));
+        }
+    }
+
+    /**
+     * Takes a fetch slot on the url's host for a request made outside the frontier, such as a
+     * sitemap, waiting until the host's concurrency and delay allow it. Pair with {@link #release(String)}.
+     */
+    public synchronized void acquire(final String url) throws InterruptedException {
+        final String name = hostOf(url);
+        while (true) {
+            final Host host = HOSTS.computeIfAbsent(name, Host::new);
+            final long now = System.currentTimeMillis();
+            if (host.running < maxPerHost && host.nextFetchTime <= now) {
+                // its place in READY depends on nextFetchTime, which is about to change
+                if (host.scheduled) {
+                    READY.remove(host);
+                    host.scheduled = false;
+                }
+                host.running++;
+                host.nextFetchTime = now + host.delay;
+                schedule(host);
+                return;
+            }
+            wait(Math.max(1, Math.min(IDLE_WAIT, host.nextFetchTime - now)));
+        }
+    }
+
+    public synchronized void release(final String url) {
+        final Host host = HOSTS.get(hostOf(url));
+        if (host == null) return;
+
+        host.running--;
+        if (host.scheduled) return;
+        host.nextFetchTime = Math.max(host.nextFetchTime, System.currentTimeMillis() + host.delay);
+        schedule(host);
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return queued;
+    }
+
+    public synchronized int hosts() {
+        return HOSTS.size();
+    }
+
+    private void refill() {
+        if (source == null) return;
+
+        for (int pulled = 0; queued < maxQueued && pulled < REFILL_BATCH; pulled++) {
+            final String url = source.get();
+            if (url == null) return;
+
+            final String name = hostOf(url);
+            if (DnsCache.getInstance().isUnresolved(name)) {
+                unresolved(name, url);
+                continue;
+            }
+
+            final Host host = HOSTS.computeIfAbsent(name, Host::new);
+            if (host.queue.size() >= maxQueuedPerHost) {
+                UrlStore.getInstance().defer(url);
+                continue;
+            }
+
+            host.queue.offer(url);
+            queued++;
+            if (host.robots == null) requestAddress(host, url);
+            schedule(host);
+        }
+    }
+
+    private void schedule(final Host host) {
+        if (host.scheduled || host.queue.isEmpty() || host.running >= maxPerHost) return;
+        if (host.robots == null || host.robots.isTemporary()) return;
+        host.scheduled = true;
+        READY.offer(host);
+    }
+
+    private void sweep(final long now) {
+        lastSweep = now;
+        HOSTS.values().removeIf(host -> host.queue.isEmpty() && host.running <= 0 && host.nextFetchTime < now);
+        for (Host host : HOSTS.values())
+            if (host.robots != null && host.robots.isTemporary() && !host.queue.isEmpty()) requestRobots(host, host.queue.peek());
+    }
+
+    /**
+     * Resolves a new host and then fetches its rules. Either answer may arrive right away (it was
+     * cached) or later on another thread.
+     */
+    private void requestAddress(final Host host, final String url) {
+        if (host.robotsPending) return;
+        host.robotsPending = true;
+        final DnsCache dns = DnsCache.getInstance();
+        if (dns.isEnabled()) dns.resolve(host.name).thenAccept(addresses -> addressArrived(host, url, addresses));
+        else fetchRobots(host, url);
+    }
+
+    private synchronized void addressArrived(final Host host, final String url, final InetAddress[] addresses) {
+        if (addresses.length > 0) {
+            fetchRobots(host, url);
+            return;
+        }
+
+        host.robotsPending = false;
+        for (String queuedUrl : host.queue) unresolved(host.name, queuedUrl);
+        queued -= host.queue.size();
+        host.queue.clear();
+    }
+
+    /**
+     * A lookup can fail for a while without the host being gone, so its urls go back to the
+     * frontier until the host has failed {@link #MAX_DNS_FAILURES} lookups in a row.
+     */
+    private static void unresolved(final String host, final String url) {
+        if (DnsCache.getInstance().failures(host) < MAX_DNS_FAILURES) {
+            UNRESOLVED_DEFERRED.increment();
+            UrlStore.getInstance().defer(url);
+        } else {
+            UNRESOLVED.increment();
+            UrlStore.getInstance().done(url);
+        }
+    }
+
+    private void requestRobots(final Host host, final String url) {
+        if (host.robotsPending) return;
+        host.robotsPending = true;
+        fetchRobots(host, url);
+    }
+
+    private void fetchRobots(final Host host, final String url) {
+        RobotsStore.getInstance().rules(url).thenAccept(rules -> robotsArrived(host, rules));
+    }
+
+    private synchronized void robotsArrived(final Host host, final RobotsRules rules) {
+        host.robotsPending = false;
+        host.robotsChecked = System.currentTimeMillis();
+        host.robots = rules;
+        host.robotsDelay = RobotsStore.crawlDelay(rules);
+        host.delay = host.delay();
+        schedule(host);
+        notifyAll();
+    }
+
+    private static class Host {
+        private final String name;
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        private long delay;
+        private long nextFetchTime = 0;
+        private int running = 0;
+        private boolean scheduled = false;
+
+        private RobotsRules robots;
+        private long robotsDelay = 0;
+        private long robotsChecked = 0;
+        private boolean robotsPending = false;
+
+        private Host(final String name) {
+            this.name = name;
+            this.delay = delay();
+        }
+
+        private long delay() {
+            return Math.max(Math.max(crawlDelay, robotsDelay), CRAWL_DELAYS.getOrDefault(name, 0L));
+        }
+    }
+}
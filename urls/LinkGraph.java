@@ -0,0 +1,369 @@
+package urls;
+
+import utils.MappedIntArray;
+import utils.MappedLongArray;
+import utils.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The link graph of everything fetched, kept compact enough to rank a crawl of hundreds of
+ * millions of pages on one machine.
+ * <p>
+ * Every canonical url seen as a page or a link gets a dense int id, assigned in order through
+ * {@code nodes.tbl} and logged with its url to {@code urls.log}. Each fetched page appends one
+ * block of [source, count, targets...] to {@code edges.log}, with the source complemented if the
+ * page was not indexed under its own id; a page fetched again simply appends a newer block.
+ * {@link #transpose(File)} turns the log into the in-link adjacency a ranking pass wants:
+ * compressed sparse rows over memory-mapped arrays, built in three sequential scans without
+ * holding the graph on the heap.
+ */
+public class LinkGraph {
+
+    private static final int ID = 0;
+    private static final int HEADER = 8;
+
+    private static final LongAdder EDGES = Metrics.counter("link_graph_edges");
+
+    private static LinkGraph ourInstance = new LinkGraph();
+
+    private static File dir;
+    private static FingerprintTable nodes;
+    private static MappedLongArray count;
+    private static FileChannel urls, edges;
+
+    private LinkGraph() {
+    }
+
+    public static synchronized void init(final File dir, final long expectedNodes) throws IOException {
+        LinkGraph.dir = dir;
+        dir.mkdirs();
+        nodes = new FingerprintTable(new File(dir, "nodes.tbl"), expectedNodes, 1);
+        count = new MappedLongArray(new File(dir, "nodes.count"), 1);
+        cutTornTail(new File(dir, "urls.log"), false);
+        cutTornTail(new File(dir, "edges.log"), true);
+        urls = FileChannel.open(new File(dir, "urls.log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        edges = FileChannel.open(new File(dir, "edges.log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        Metrics.gauge("link_graph_nodes", () -> count.get(0));
+    }
+
+    public static LinkGraph getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return nodes != null;
+    }
+
+    /**
+     * Records the page's out-links, replacing whatever was recorded for it before. Links are
+     * canonicalized and each target is counted once. A page that was not indexed (a dropped
+     * duplicate) still passes on rank, but gets none pushed to the index.
+     */
+    public void addPage(final String url, final Collection<String> links, final boolean indexed) {
+        if (nodes == null) return;
+        try {
+            final String canonical = UrlCanonicalizer.canonicalize(url);
+            if (canonical == null) return;
+            final int source = id(canonical);
+            if (source == -1) return;
+
+            int[] targets = new int[links.size()];
+            int size = 0;
+            for (String link : links) {
+                final String target = UrlCanonicalizer.canonicalize(link);
+                if (target == null) continue;
+                final int id = id(target);
+                if (id != source && id != -1) targets[size++] = id;
+            }
+            Arrays.sort(targets, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) if (unique == 0 || targets[i] != targets[unique - 1]) targets[unique++] = targets[i];
+
+            final ByteBuffer block = ByteBuffer.allocate(HEADER + unique * 4);
+            block.putInt(indexed ? source : ~source).putInt(unique);
+            for (int i = 0; i < unique; i++) block.putInt(targets[i]);
+            block.flip();
+            synchronized (edges) {
+                while (block.hasRemaining()) edges.write(block);
+            }
+            EDGES.add(unique);
+        } catch (IOException | IllegalStateException e) {
+            System.err.print("\nCould not record the links of " + url + ": " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * The number of ids handed out so far.
+     */
+    public int size() {
+        return (int) count.get(0);
+    }
+
+    public void force() {
+        if (nodes == null) return;
+        nodes.force();
+        count.force();
+        try {
+            urls.force(false);
+            edges.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands every id below {@link #size()} that has a url to the consumer, in the order they
+     * were assigned.
+     */
+    public void forEachUrl(final ObjIntConsumer<String> consumer) throws IOException {
+        final int size = size();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, "urls.log")), 1 << 20))) {
+            while (true) {
+                final int id = input.readInt();
+                final String url = input.readUTF();
+                if (id < size) consumer.accept(url, id);
+            }
+        } catch (EOFException e) {
+            // end of the log, or of what was written of it before a crash
+        }
+    }
+
+    /**
+     * Builds the in-link adjacency of the newest block of every page into {@code work}, which
+     * is overwritten. Edges to ids assigned after the scan started are left out.
+     */
+    public InLinks transpose(final File work) throws IOException {
+        work.mkdirs();
+        final int size = size();
+
+        // pass 1: the newest block of each page, as its offset + 1, negated if it was not indexed
+        final MappedLongArray latest = new MappedLongArray(fresh(work, "latest.bin"), Math.max(1, size));
+        scan((offset, source, targets, length) -> {
+            if (source >= 0 && source < size) latest.set(source, offset + 1);
+            else if (source < 0 && ~source < size) latest.set(~source, -(offset + 1));
+        });
+
+        // pass 2: out-degrees, and in-degrees accumulated one slot up for the prefix sum
+        final MappedIntArray outDegree = new MappedIntArray(fresh(work, "outdegree.bin"), Math.max(1, size));
+        final MappedLongArray offsets = new MappedLongArray(fresh(work, "offsets.bin"), size + 1L);
+        final long[] edgeCount = new long[1];
+        scan((offset, source, targets, length) -> {
+            if (source < 0) source = ~source;
+            if (source >= size || Math.abs(latest.get(source)) != offset + 1) return;
+            int degree = 0;
+            for (int i = 0; i < length; i++) {
+                if (targets[i] >= size) continue;
+                offsets.set(targets[i] + 1L, offsets.get(targets[i] + 1L) + 1);
+                degree++;
+            }
+            outDegree.set(source, degree);
+            edgeCount[0] += degree;
+        });
+        for (long node = 0; node < size; node++) offsets.set(node + 1, offsets.get(node + 1) + offsets.get(node));
+
+        // pass 3: fill each page's sources, using a copy of the offsets as cursors
+        final MappedIntArray sources = new MappedIntArray(fresh(work, "sources.bin"), Math.max(1, edgeCount[0]));
+        final File cursorFile = fresh(work, "cursors.bin");
+        try (MappedLongArray cursors = new MappedLongArray(cursorFile, Math.max(1, size))) {
+            for (long node = 0; node < size; node++) cursors.set(node, offsets.get(node));
+            scan((offset, source, targets, length) -> {
+                if (source < 0) source = ~source;
+                if (source >= size || Math.abs(latest.get(source)) != offset + 1) return;
+                for (int i = 0; i < length; i++) {
+                    if (targets[i] >= size) continue;
+                    final long cursor = cursors.get(targets[i]);
+                    sources.set(cursor, source);
+                    cursors.set(targets[i], cursor + 1);
+                }
+            });
+        }
+        cursorFile.delete();
+
+        return new InLinks(size, edgeCount[0], latest, outDegree, offsets, sources);
+    }
+
+    private interface BlockConsumer {
+        void accept(long offset, int source, int[] targets, int length);
+    }
+
+    /**
+     * Reads every complete block of the edge log in order.
+     */
+    private static void scan(final BlockConsumer consumer) throws IOException {
+        int[] targets = new int[1024];
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, "edges.log")), 1 << 20))) {
+            long offset = 0;
+            while (true) {
+                final int source = input.readInt();
+                final int length = input.readInt();
+                if (length > targets.length) targets = new int[Math.max(length, targets.length * 2)];
+                for (int i = 0; i < length; i++) targets[i] = input.readInt();
+                consumer.accept(offset, source, targets, length);
+                offset += HEADER + length * 4L;
+            }
+        } catch (EOFException e) {
+            // end of the log, or a block cut short by a crash
+        }
+    }
+
+    /**
+     * Truncates the log after its last complete record, so what is appended next does not run on
+     * from a record a crash cut short.
+     */
+    private static void cutTornTail(final File file, final boolean edgeLog) throws IOException {
+        if (!file.exists()) return;
+        long complete = 0;
+        final byte[] skip = new byte[8192];
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            while (true) {
+                input.readInt();
+                long length = edgeLog ? input.readInt() * 4L : input.readUnsignedShort();
+                if (length < 0) break;
+                final long record = (edgeLog ? HEADER : 6) + length;
+                while (length > 0) {
+                    final int n = (int) Math.min(skip.length, length);
+                    input.readFully(skip, 0, n);
+                    length -= n;
+                }
+                complete += record;
+            }
+        } catch (EOFException e) {
+            // the end of the complete records
+        }
+
+        if (complete < file.length()) {
+            System.err.print("\nTruncating " + file + " from " + file.length() + " to " + complete + " bytes\n");
+            try (RandomAccessFile log = new RandomAccessFile(file, "rw")) {
+                log.setLength(complete);
+            }
+        }
+    }
+
+    private static File fresh(final File work, final String name) {
+        final File file = new File(work, name);
+        file.delete();
+        return file;
+    }
+
+    /**
+     * Assigns the url an id the first time it is seen; -1 if the node table is full.
+     */
+    private static int id(final String canonical) throws IOException {
+        final long slot = nodes.insert(UrlCanonicalizer.key(canonical));
+        if (slot == -1) return -1;
+        final long id = nodes.get(slot, ID);
+        if (id != 0) return (int) (id - 1);
+
+        synchronized (LinkGraph.class) {
+            final long assigned = nodes.get(slot, ID);
+            if (assigned != 0) return (int) (assigned - 1);
+            final long next = count.get(0);
+            if (next == Integer.MAX_VALUE) throw new IllegalStateException("Link graph is full");
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(canonical.length() + 6);
+            final DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt((int) next);
+            output.writeUTF(canonical);
+            final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            while (record.hasRemaining()) urls.write(record);
+
+            count.set(0, next + 1);
+            nodes.set(slot, ID, next + 1);
+            return (int) next;
+        }
+    }
+
+    /**
+     * The transposed graph: the pages linking to node {@code v} are
+     * {@code sources[offsets[v]] .. sources[offsets[v + 1] - 1]}.
+     */
+    public static class InLinks implements Closeable {
+        private final int size;
+        private final long edges;
+        private final MappedLongArray latest;
+        private final MappedIntArray outDegree;
+        private final MappedLongArray offsets;
+        private final MappedIntArray sources;
+
+        private InLinks(final int size, final long edges, final MappedLongArray latest, final MappedIntArray outDegree,
+                        final MappedLongArray offsets, final MappedIntArray sources) {
+            this.size = size;
+            this.edges = edges;
+            this.latest = latest;
+            this.outDegree = outDegree;
+            this.offsets = offsets;
+            this.sources = sources;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long edges() {
+            return edges;
+        }
+
+        /**
+         * True if the node was fetched, as opposed to only being linked to.
+         */
+        public boolean isPage(final int node) {
+            return latest.get(node) != 0;
+        }
+
+        /**
+         * True if the newest fetch of the node was indexed under its own id.
+         */
+        public boolean isIndexed(final int node) {
+            return latest.get(node) > 0;
+        }
+
+        public int outDegree(final int node) {
+            return outDegree.get(node);
+        }
+
+        public long firstSource(final int node) {
+            return offsets.get(node);
+        }
+
+        public long endSource(final int node) {
+            return offsets.get(node + 1L);
+        }
+
+        public int source(final long index) {
+            return sources.get(index);
+        }
+
+        @Override
+        public void close() throws IOException {
+            latest.close();
+            outDegree.close();
+            offsets.close();
+            sources.close();
+        }
+    }
+}
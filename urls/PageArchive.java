@@ -0,0 +1,382 @@
+package urls;
+
+import utils.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Keeps every page that was fetched for indexing, so the index can be rebuilt from disk after a
+ * change to {@code IndexManager} or the schema instead of by crawling again.
+ * <p>
+ * Pages are appended to segment files {@code pages-NNNNN.warc.gz} as WARC/1.0 response records,
+ * each compressed as its own gzip member: the segment as a whole is a valid .warc.gz that any
+ * WARC tool (or {@code zcat}) can read, and a record can still be read on its own from its
+ * offset. Next to each segment, {@code pages-NNNNN.idx} lists (url key, offset) pairs.
+ * <p>
+ * Records are compressed by the thread that hands them in; only the write itself is serialized.
+ * A new segment is started on every start-up and whenever the current one passes
+ * {@code segmentSize}, so a segment that was cut off by a crash is never appended to.
+ */
+public class PageArchive {
+
+    private static final String PREFIX = "pages-", SEGMENT = ".warc.gz", INDEX = ".idx";
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER = ThreadLocal.withInitial(() -> new ByteArrayOutputStream(64 * 1024));
+
+    private static final LongAdder RECORDS = Metrics.counter("archive_records");
+    private static final LongAdder BYTES = Metrics.counter("archive_bytes");
+
+    private static PageArchive ourInstance = new PageArchive();
+
+    private static File dir;
+    private static long segmentSize;
+    private static int segmentId;
+    private static FileChannel segment, index;
+
+    private PageArchive() {
+    }
+
+    public static synchronized void init(final File dir, final long segmentSize) throws IOException {
+        PageArchive.dir = dir;
+        PageArchive.segmentSize = segmentSize;
+        dir.mkdirs();
+
+        final List<File> segments = segments(dir);
+        segmentId = segments.isEmpty() ? 0 : id(segments.get(segments.size() - 1)) + 1;
+        open();
+    }
+
+    public static PageArchive getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return segment != null;
+    }
+
+    /**
+     * Appends one fetched page; {@code url} is the url the body was finally served from.
+     */
+    public void append(final String url, final int status, final Map<String, List<String>> headers,
+                       final byte[] body, final int length) {
+        final ByteArrayOutputStream bytes = BUFFER.get();
+        bytes.reset();
+        try (OutputStream output = new GZIPOutputStream(new NonClosing(bytes), 8192)) {
+            final StringBuilder http = new StringBuilder(512).append("HTTP/1.1 ").append(status).append("\r\n");
+            headers.forEach((name, values) -> {
+                if (name.startsWith(":")) return;
+                for (String value : values) http.append(name).append(": ").append(value).append("\r\n");
+            });
+            final byte[] head = http.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+
+            output.write(("WARC/1.0\r\n" +
+                    "WARC-Type: response\r\n" +
+                    "WARC-Record-ID: <urn:uuid:" + UUID.randomUUID() + ">\r\n" +
+                    "WARC-Date: " + Instant.now().truncatedTo(ChronoUnit.SECONDS) + "\r\n" +
+                    "WARC-Target-URI: " + url + "\r\n" +
+                    "Content-Type: application/http; msgtype=response\r\n" +
+                    "Content-Length: " + (head.length + length) + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+            output.write(head);
+            output.write(body, 0, length);
+            output.write("\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            System.err.print("\nCould not archive " + url + ": " + e.getMessage() + "\n");
+            return;
+        }
+
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        final ByteBuffer entry = ByteBuffer.allocate(16).putLong(0, UrlCanonicalizer.key(url));
+        synchronized (PageArchive.class) {
+            if (segment == null) return;
+            try {
+                final long offset = segment.size();
+                while (record.hasRemaining()) segment.write(record, offset + record.position());
+                entry.putLong(8, offset);
+                while (entry.hasRemaining()) index.write(entry, index.size());
+                if (segment.size() >= segmentSize) {
+                    close();
+                    segmentId++;
+                    open();
+                }
+            } catch (IOException e) {
+                System.err.print("\nCould not archive " + url + ": " + e.getMessage() + "\n");
+                return;
+            }
+        }
+        RECORDS.increment();
+        BYTES.add(record.capacity());
+    }
+
+    /**
+     * The most recently archived copy of the url, or null if there is none.
+     */
+    public static Record find(final File dir, final String url) throws IOException {
+        final long key = UrlCanonicalizer.key(url);
+        final List<File> segments = segments(dir);
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            final File indexFile = indexOf(segments.get(i));
+            if (!indexFile.exists()) continue;
+
+            long offset = -1;
+            try (DataInputStream entries = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                while (true) {
+                    final long entryKey = entries.readLong(), entryOffset = entries.readLong();
+                    if (entryKey == key) offset = entryOffset;
+                }
+            } catch (EOFException e) {
+                // end of the index
+            }
+            if (offset == -1) continue;
+
+            try (FileChannel channel = FileChannel.open(segments.get(i).toPath(), StandardOpenOption.READ);
+                 Reader reader = new Reader(Channels.newInputStream(channel.position(offset)))) {
+                return reader.next();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Maps every archived url to the id (plus one) of the last segment holding a copy of it. Only
+     * the .idx files are read, so a re-index can skip the copies that were superseded later.
+     */
+    public static FingerprintTable latest(final File dir, final File table) throws IOException {
+        final List<File> segments = segments(dir);
+        long entries = 0;
+        for (File segment : segments) entries += indexOf(segment).length() / 16;
+
+        table.delete();
+        new File(table.getPath() + ".bloom").delete();
+        final FingerprintTable latest = new FingerprintTable(table, Math.max(1, entries), 1);
+        for (File segment : segments) {
+            final File indexFile = indexOf(segment);
+            if (!indexFile.exists()) continue;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024))) {
+                for (long i = indexFile.length() / 16; i > 0; i--) {
+                    final long slot = latest.insert(input.readLong());
+                    if (slot != -1) latest.set(slot, 0, id(segment) + 1);
+                    input.readLong();
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * The archive's segments, oldest first.
+     */
+    public static List<File> segments(final File dir) {
+        final File[] files = dir.listFiles((parent, name) -> name.startsWith(PREFIX) && name.endsWith(SEGMENT));
+        if (files == null) return Collections.emptyList();
+        final List<File> segments = new ArrayList<>(Arrays.asList(files));
+        segments.sort(Comparator.comparingInt(PageArchive::id));
+        return segments;
+    }
+
+    public static synchronized void close() {
+        try {
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+            }
+            if (index != null) {
+                index.force(false);
+                index.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        segment = null;
+        index = null;
+    }
+
+    private static void open() throws IOException {
+        final File file = new File(dir, String.format("%s%05d%s", PREFIX, segmentId, SEGMENT));
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexOf(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    private static File indexOf(final File segment) {
+        final String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT.length()) + INDEX);
+    }
+
+    public static int id(final File segment) {
+        final String name = segment.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SEGMENT.length()));
+    }
+
+    /**
+     * One archived page.
+     */
+    public static class Record {
+        private final String url;
+        private final String date;
+        private final int status;
+        private final byte[] body;
+
+        private Record(final String url, final String date, final int status, final byte[] body) {
+            this.url = url;
+            this.date = date;
+            this.status = status;
+            this.body = body;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * When the page was fetched, as the ISO-8601 WARC-Date.
+         */
+        public String getDate() {
+            return date;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Reads the records of a segment in order, starting wherever the stream is positioned.
+     * Records of other WARC types are skipped.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream input;
+
+        public Reader(final File segment) throws IOException {
+            this(new FileInputStream(segment));
+        }
+
+        private Reader(final InputStream input) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input, 64 * 1024), 64 * 1024));
+        }
+
+        /**
+         * The next record, or null at the end of the segment (or where a crash cut it off).
+         */
+        public Record next() throws IOException {
+            try {
+                return read();
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private Record read() throws IOException {
+            while (true) {
+                final String version = line();
+                if (version == null) return null;
+                if (version.isEmpty()) continue;
+                if (!version.startsWith("WARC/")) throw new IOException("Not a WARC record: " + version);
+
+                String type = null, url = null, date = null;
+                int length = -1;
+                for (String header = line(); header != null && !header.isEmpty(); header = line()) {
+                    final int colon = header.indexOf(':');
+                    if (colon == -1) continue;
+                    final String name = header.substring(0, colon).trim(), value = header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("WARC-Type")) type = value;
+                    else if (name.equalsIgnoreCase("WARC-Target-URI")) url = value;
+                    else if (name.equalsIgnoreCase("WARC-Date")) date = value;
+                    else if (name.equalsIgnoreCase("Content-Length")) length = Integer.parseInt(value);
+                }
+                if (length < 0) throw new IOException("WARC record without Content-Length");
+
+                final byte[] block = new byte[length];
+                input.readFully(block);
+                if (!"response".equals(type) || url == null) continue;
+
+                int bodyStart = 0;
+                while (bodyStart + 3 < length && !(block[bodyStart] == '\r' && block[bodyStart + 1] == '\n' && block[bodyStart + 2] == '\r' && block[bodyStart + 3] == '\n'))
+                    bodyStart++;
+                bodyStart = Math.min(length, bodyStart + 4);
+
+                int status = 0;
+                final String statusLine = new String(block, 0, Math.min(length, 16), StandardCharsets.US_ASCII);
+                final String[] parts = statusLine.split(" ");
+                if (parts.length > 1) {
+                    try {
+                        status = Integer.parseInt(parts[1].trim());
+                    } catch (NumberFormatException e) {
+                        // leave it at 0
+                    }
+                }
+                return new Record(url, date, status, Arrays.copyOfRange(block, bodyStart, length));
+            }
+        }
+
+        /**
+         * A CRLF-terminated header line, or null at a clean end of the stream.
+         */
+        private String line() throws IOException {
+            final StringBuilder line = new StringBuilder(64);
+            int c;
+            while ((c = input.read()) != -1) {
+                if (c == '\n') {
+                    final int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+                    return line.substring(0, end);
+                }
+                line.append((char) c);
+            }
+            if (line.length() == 0) return null;
+            throw new EOFException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Lets a GZIPOutputStream finish its member without closing the buffer underneath.
+     */
+    private static class NonClosing extends FilterOutputStream {
+        private NonClosing(final OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package urls;
+
+import utils.Metrics;
+import utils.Sleeper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Decides when each fetched page is due again, from how often it has been seen to change.
+ * <p>
+ * Every page keeps the outcome of its last {@link #HISTORY_SIZE} visits (changed or not, and how
+ * long after the previous visit) in {@code history.tbl}. Its change rate is the maximum
+ * likelihood estimate for a Poisson process observed at those irregular intervals, with half
+ * a change and half a non-change added so that a page that never (or always) changed still gets
+ * a finite estimate. The page is due again one expected change later, kept within
+ * {@code [minInterval, maxInterval]}; pages visited once are due after {@code initialInterval}.
+ * A visited page can also be given a {@link #hint(String, long) hint} of how often it changes,
+ * e.g. from a sitemap, which replaces {@code initialInterval} and the mean observed interval that
+ * the half change and half non-change are placed at.
+ * <p>
+ * Due times are indexed on disk as a timing wheel: one append-only file of urls per
+ * {@link #BUCKET} of time under {@code due/}. A background thread hands every bucket that has
+ * come due to {@link UrlStore#recrawl(Collection)} and deletes it. An entry is only honoured if
+ * the page's recorded due time still falls in its bucket, so rescheduling never has to find
+ * and remove the old entry. A page is also given a fallback entry {@code maxInterval} out when
+ * it is handed to the frontier, in case that fetch fails.
+ */
+public class RecrawlScheduler {
+
+    private static final int HISTORY_SIZE = 16;
+    private static final long BUCKET = 10 * 60_000;
+    private static final long MINUTE = 60_000;
+    private static final long POLL_INTERVAL = 60_000;
+    private static final int OPEN_BUCKETS = 64;
+    private static final int HISTORY = 0, INTERVALS = 1, LAST_VISIT = 5, DUE = 6, VALUES = 7;
+    private static final int HINT_SHIFT = 32;
+    private static final long HINT_MASK = 0xffffL << HINT_SHIFT;
+
+    private static final LongAdder RECRAWLED = Metrics.counter("recrawl_due");
+    private static final LongAdder STALE = Metrics.counter("recrawl_stale_entries");
+
+    private static RecrawlScheduler ourInstance = new RecrawlScheduler();
+
+    private static FingerprintTable history;
+    private static File dueDir;
+    private static long minInterval, maxInterval, initialInterval;
+    private static long nextBucket;
+    private static final Map<Long, FileChannel> BUCKETS = new LinkedHashMap<Long, FileChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, FileChannel> eldest) {
+            if (size() <= OPEN_BUCKETS) return false;
+            close(eldest.getValue());
+            return true;
+        }
+    };
+
+    private RecrawlScheduler() {
+    }
+
+    public static synchronized void init(final File dir, final long expectedPages, final long minInterval,
+                                         final long maxInterval, final long initialInterval) throws IOException {
+        RecrawlScheduler.minInterval = minInterval;
+        RecrawlScheduler.maxInterval = Math.min(maxInterval, 0xffff * MINUTE);
+        RecrawlScheduler.initialInterval = initialInterval;
+        history = new FingerprintTable(new File(dir, "history.tbl"), expectedPages, VALUES);
+        dueDir = new File(dir, "due");
+        dueDir.mkdirs();
+
+        nextBucket = System.currentTimeMillis() / BUCKET;
+        final File[] buckets = dueDir.listFiles((parent, name) -> name.endsWith(".due"));
+        if (buckets != null)
+            for (File bucket : buckets) nextBucket = Math.min(nextBucket, Long.parseLong(bucket.getName().replace(".due", "")));
+
+        Metrics.gauge("recrawl_history_pages", history::size);
+
+        final Thread scheduler = new Thread(() -> {
+            while (true) {
+                Sleeper.sleep(POLL_INTERVAL);
+                ourInstance.pollDue();
+            }
+        });
+        scheduler.setName("Recrawl Scheduler");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    public static RecrawlScheduler getInstance() {
+        return ourInstance;
+    }
+
+    /**
+     * Records a visit to the page and schedules the next one.
+     */
+    public void visited(final String url, final boolean changed) {
+        if (history == null) return;
+        final long now = System.currentTimeMillis();
+        final long slot = history.insert(UrlStore.key(url));
+        if (slot == -1) return;
+
+        final long lastVisit = history.get(slot, LAST_VISIT);
+        long entry = history.get(slot, HISTORY);
+        if (lastVisit != 0) {
+            final long minutes = Math.max(1, Math.min(0xffff, (now - lastVisit) / MINUTE));
+            // shift the 16-bit intervals along by one and put the new one first
+            long carry = minutes;
+            for (int word = 0; word < 4; word++) {
+                final long value = history.get(slot, INTERVALS + word);
+                history.set(slot, INTERVALS + word, value << 16 | carry);
+                carry = value >>> 48;
+            }
+            final long count = Math.min(HISTORY_SIZE, (entry & 0xff) + 1);
+            final long changes = ((entry >>> 8) << 1 | (changed ? 1 : 0)) & 0xffff;
+            entry = entry & HINT_MASK | changes << 8 | count;
+            history.set(slot, HISTORY, entry);
+        }
+        history.set(slot, LAST_VISIT, now);
+
+        schedule(slot, url, now + (lastVisit == 0 ? initialInterval : interval(slot, entry)));
+    }
+
+    /**
+     * Records how often a page that has been visited is said to change, which stands in for the
+     * intervals it has yet to be observed at. Takes effect from the page's next visit. Pages not
+     * visited yet are ignored rather than given an entry, so a site cannot fill the table with
+     * pages it only lists.
+     */
+    public void hint(final String url, final long interval) {
+        if (history == null) return;
+        final long minutes = Math.max(1, Math.min(0xffff, interval / MINUTE));
+        final long slot = history.find(UrlStore.key(url));
+        if (slot == -1) return;
+        long entry;
+        do entry = history.get(slot, HISTORY);
+        while (!history.compareAndSet(slot, HISTORY, entry, entry & ~HINT_MASK | minutes << HINT_SHIFT));
+
+        // a page visited only once is still waiting out initialInterval
+        final long lastVisit = history.get(slot, LAST_VISIT);
+        final long due = lastVisit + Math.max(minInterval, Math.min(maxInterval, minutes * MINUTE));
+        if ((entry & 0xff) == 0 && lastVisit != 0 && history.get(slot, DUE) != due) schedule(slot, url, due);
+    }
+
+    /**
+     * True if the page has been fetched before and so gets its next visit from this scheduler
+     * rather than from being linked to again.
+     */
+    public boolean isScheduled(final long key) {
+        if (history == null) return false;
+        final long slot = history.find(key);
+        return slot != -1 && history.get(slot, DUE) != 0;
+    }
+
+    public synchronized void force() {
+        if (history == null) return;
+        history.force();
+        for (FileChannel channel : BUCKETS.values()) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The expected time between changes of the page, within the configured bounds.
+     */
+    private static long interval(final long slot, final long entry) {
+        final int count = (int) (entry & 0xff);
+        final long changes = entry >>> 8 & 0xffff;
+        final long hint = (entry & HINT_MASK) >>> HINT_SHIFT;
+        final double[] hours = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            hours[i] = (history.get(slot, INTERVALS + i / 4) >>> (16 * (i % 4)) & 0xffff) / 60.0;
+            total += hours[i];
+        }
+        final double rate = rate(hours, changes, hint != 0 ? hint / 60.0 : total / Math.max(1, count));
+        final long interval = (long) (3_600_000 / rate);
+        return Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    /**
+     * Solves sum over changed visits of t / (e^(rate t) - 1) = sum over unchanged visits of t for
+     * the rate, by bisection on a log scale; the left side falls as the rate grows.
+     */
+    static double rate(final double[] hours, final long changes, final double prior) {
+        double low = 1e-6, high = 1e3;
+        for (int iteration = 0; iteration < 60; iteration++) {
+            final double rate = Math.sqrt(low * high);
+            double changed = 0.5 * prior / Math.expm1(rate * prior), unchanged = 0.5 * prior;
+            for (int i = 0; i < hours.length; i++) {
+                if ((changes >>> i & 1) == 1) changed += hours[i] / Math.expm1(rate * hours[i]);
+                else unchanged += hours[i];
+            }
+            if (changed > unchanged) low = rate;
+            else high = rate;
+        }
+        return Math.sqrt(low * high);
+    }
+
+    private synchronized void schedule(final long slot, final String url, final long due) {
+        history.set(slot, DUE, due);
+        final long bucket = due / BUCKET;
+        try {
+            FileChannel channel = BUCKETS.get(bucket);
+            if (channel == null) {
+                channel = FileChannel.open(bucketFile(bucket).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                BUCKETS.put(bucket, channel);
+            }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(url.length() + 2);
+            new DataOutputStream(bytes).writeUTF(url);
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException | IllegalStateException e) {
+            System.err.print("\nCould not schedule " + url + ": " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Hands every bucket that has come due to the frontier.
+     */
+    private void pollDue() {
+        final long current = System.currentTimeMillis() / BUCKET;
+        while (nextBucket < current) {
+            final long bucket = nextBucket;
+            final File file = bucketFile(bucket);
+            synchronized (this) {
+                final FileChannel channel = BUCKETS.remove(bucket);
+                if (channel != null) close(channel);
+            }
+
+            if (file.exists()) {
+                final List<String> due = new ArrayList<>();
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+                    while (true) {
+                        final String url = input.readUTF();
+                        final long slot = history.find(UrlStore.key(url));
+                        if (slot == -1 || history.get(slot, DUE) / BUCKET != bucket) {
+                            STALE.increment();
+                            continue;
+                        }
+                        due.add(url);
+                        schedule(slot, url, System.currentTimeMillis() + maxInterval);
+                    }
+                } catch (EOFException e) {
+                    // end of the bucket, or of what was written of it before a crash
+                } catch (IOException e) {
+                    System.err.print("\nCould not read " + file + ": " + e.getMessage() + "\n");
+                    return;
+                }
+
+                if (!due.isEmpty()) UrlStore.getInstance().recrawl(due);
+                RECRAWLED.add(due.size());
+                file.delete();
+            }
+            nextBucket++;
+        }
+    }
+
+    private static File bucketFile(final long bucket) {
+        return new File(dueDir, bucket + ".due");
+    }
+
+    private static void close(final FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package urls;
+
+import utils.Fingerprint;
+import utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * What we learned the last time a page was fetched: its ETag, its Last-Modified date and a hash
+ * of its body. Recrawls use the first two to make the request conditional, and the hash to skip
+ * re-indexing pages that came back byte-for-byte the same. Whether a page changed is passed on to
+ * the {@link RecrawlScheduler}, which decides when to fetch it again.
+ * <p>
+ * Records live in a {@link FingerprintTable} keyed the same way as the seen-url table, in six
+ * longs after the key: the body hash, both dates in seconds, and the ETag's length and bytes.
+ * ETags longer than {@link #MAX_ETAG} bytes are not kept; those pages still get
+ * If-Modified-Since. The table only holds fetched pages, a fraction of the urls in the seen
+ * table, so it is kept apart rather than widening every seen entry.
+ */
+public class RecrawlStore {
+
+    private static final int HASH = 0, DATES = 1, ETAG = 2;
+    private static final int ETAG_WORDS = 4;
+    private static final int MAX_ETAG = ETAG_WORDS * 8 - 1;
+    private static final int VALUES = ETAG + ETAG_WORDS;
+
+    private static RecrawlStore ourInstance = new RecrawlStore();
+    private static FingerprintTable records;
+
+    private RecrawlStore() {
+    }
+
+    public static void init(final File dir, final long expectedPages) throws IOException {
+        final File table = new File(dir + "/pages.tbl");
+        try {
+            records = new FingerprintTable(table, expectedPages, VALUES);
+        } catch (IllegalStateException e) {
+            // an older, wider layout; losing it costs each page one unconditional fetch
+            System.err.print("\nDiscarding " + table + ": " + e.getMessage() + "\n");
+            table.delete();
+            new File(table.getPath() + ".bloom").delete();
+            records = new FingerprintTable(table, expectedPages, VALUES);
+        }
+        Metrics.gauge("recrawl_records", records::size);
+    }
+
+    public static RecrawlStore getInstance() {
+        return ourInstance;
+    }
+
+    public void addConditions(final String url, final HttpRequest.Builder request) {
+        if (records == null) return;
+        final long slot = records.find(UrlStore.key(url));
+        if (slot == -1) return;
+
+        final String etag = etag(slot);
+        if (etag != null) request.header("If-None-Match", etag);
+
+        final long lastModified = (records.get(slot, DATES) >>> 32) * 1000;
+        if (lastModified != 0)
+            request.header("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC)));
+    }
+
+    public void notModified(final String url) {
+        if (records == null) return;
+        final long slot = records.find(UrlStore.key(url));
+        if (slot != -1) records.set(slot, DATES, records.get(slot, DATES) & ~0xffffffffL | seconds(System.currentTimeMillis()));
+        RecrawlScheduler.getInstance().visited(url, false);
+    }
+
+    /**
+     * Records the validators of a fresh 200 response and returns true if its body hashes the same
+     * as the last time the page was fetched.
+     */
+    public boolean update(final String url, final HttpHeaders headers, final byte[] body, final int length) {
+        if (records == null) return false;
+
+        final long hash = Fingerprint.of(body, 0, length);
+        final long slot = records.insert(UrlStore.key(url));
+        if (slot == -1) return false;
+        final boolean unchanged = records.get(slot, HASH) == hash && records.get(slot, DATES) != 0;
+
+        final long lastModified = headers.firstValue("Last-Modified").map(RecrawlStore::parseDate).orElse(0L);
+        records.set(slot, HASH, hash);
+        records.set(slot, DATES, seconds(lastModified) << 32 | seconds(System.currentTimeMillis()));
+        setEtag(slot, headers.firstValue("ETag").orElse(null));
+        RecrawlScheduler.getInstance().visited(url, !unchanged);
+        return unchanged;
+    }
+
+    /**
+     * When the page was last fetched and found to be there, or 0 if it never has been.
+     */
+    public long lastVerified(final String url) {
+        if (records == null) return 0;
+        final long slot = records.find(UrlStore.key(url));
+        return slot == -1 ? 0 : (records.get(slot, DATES) & 0xffffffffL) * 1000;
+    }
+
+    public void force() {
+        if (records != null) records.force();
+        RecrawlScheduler.getInstance().force();
+    }
+
+    public long size() {
+        return records == null ? 0 : records.size();
+    }
+
+    /**
+     * Unsigned seconds, which fit 32 bits until 2106.
+     */
+    private static long seconds(final long millis) {
+        return Math.max(0, Math.min(0xffffffffL, millis / 1000));
+    }
+
+    /**
+     * The ETag's length is the first byte of its words and its bytes follow.
+     */
+    private static String etag(final long slot) {
+        final int length = (int) (records.get(slot, ETAG) & 0xff);
+        if (length == 0) return null;
+
+        final byte[] bytes = new byte[length];
+        for (int i = 0, at = 1; i < length; i++, at++) bytes[i] = (byte) (records.get(slot, ETAG + at / 8) >>> ((at % 8) * 8));
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void setEtag(final long slot, final String etag) {
+        byte[] bytes = etag == null ? new byte[0] : etag.getBytes(StandardCharsets.ISO_8859_1);
+        if (bytes.length > MAX_ETAG) bytes = new byte[0];
+
+        for (int word = 0; word < ETAG_WORDS; word++) {
+            long value = word == 0 ? bytes.length : 0;
+            for (int i = word == 0 ? 1 : 0; i < 8 && word * 8 + i - 1 < bytes.length; i++)
+                value |= (bytes[word * 8 + i - 1] & 0xffL) << (i * 8);
+            records.set(slot, ETAG + word, value);
+        }
+    }
+
+    private static long parseDate(final String date) {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package urls;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * The allow/disallow rules of one robots.txt that apply to us, compiled for matching (RFC 9309).
+ * <p>
+ * Only the group whose user-agent line names our product token exactly, ignoring case, is kept,
+ * even if it has no rules, or the {@code *} group if none does. Its rules are
+ * sorted longest pattern first, allows before disallows of the same length, so the first rule
+ * that matches is the one the RFC says wins. Patterns without {@code *} or {@code $} are plain
+ * prefix checks.
+ */
+public class RobotsRules {
+
+    public static final RobotsRules ALLOW_ALL = new RobotsRules(new String[0], new boolean[0], 0, false);
+
+    /**
+     * What a host whose robots.txt could not be fetched gets until it is tried again.
+     */
+    public static final RobotsRules UNREACHABLE = new RobotsRules(new String[]{"/"}, new boolean[]{false}, 0, true);
+
+    private final String[] patterns;
+    private final boolean[] allows;
+    private final long crawlDelay;
+    private final boolean temporary;
+
+    private RobotsRules(final String[] patterns, final boolean[] allows, final long crawlDelay, final boolean temporary) {
+        this.patterns = patterns;
+        this.allows = allows;
+        this.crawlDelay = crawlDelay;
+        this.temporary = temporary;
+    }
+
+    public static RobotsRules parse(final String robots, final String agent) {
+        final String token = agent.toLowerCase(Locale.ROOT);
+        final List<String[]> ours = new ArrayList<>(), everyone = new ArrayList<>();
+        long ourDelay = -1, everyoneDelay = -1;
+
+        boolean forUs = false, forEveryone = false, inRules = false, named = false;
+        for (String line : robots.split("\r\n|\r|\n")) {
+            final int hash = line.indexOf('#');
+            if (hash != -1) line = line.substring(0, hash);
+            final int colon = line.indexOf(':');
+            if (colon == -1) continue;
+            final String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(colon + 1).trim();
+
+            if (key.equals("user-agent")) {
+                if (inRules) {
+                    forUs = forEveryone = inRules = false;
+                }
+                final String name = value.toLowerCase(Locale.ROOT);
+                if (name.equals("*")) forEveryone = true;
+                else if (name.equals(token)) forUs = named = true;
+            } else if (key.equals("allow") || key.equals("disallow")) {
+                inRules = true;
+                if (value.isEmpty()) continue;
+                final String[] rule = {key.equals("allow") ? "a" : "d", value};
+                if (forUs) ours.add(rule);
+                if (forEveryone) everyone.add(rule);
+            } else if (key.equals("crawl-delay")) {
+                inRules = true;
+                final long delay = parseDelay(value);
+                if (forUs) ourDelay = delay;
+                if (forEveryone) everyoneDelay = delay;
+            }
+        }
+
+        // a group naming us applies even if it has no rules, which allows everything
+        final boolean useOurs = named;
+        final List<String[]> rules = useOurs ? ours : everyone;
+        rules.sort((a, b) -> a[1].length() != b[1].length() ? b[1].length() - a[1].length() : a[0].compareTo(b[0]));
+
+        final String[] patterns = new String[rules.size()];
+        final boolean[] allows = new boolean[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            patterns[i] = rules.get(i)[1];
+            allows[i] = rules.get(i)[0].equals("a");
+        }
+        return new RobotsRules(patterns, allows, Math.max(0, useOurs ? ourDelay : everyoneDelay), false);
+    }
+
+    /**
+     * The sitemaps a robots.txt lists. Sitemap lines belong to no group, so every one counts.
+     */
+    public static List<String> sitemaps(final String robots) {
+        final List<String> sitemaps = new ArrayList<>();
+        for (String line : robots.split("\r\n|\r|\n")) {
+            final int colon = line.indexOf(':');
+            if (colon == -1 || !line.substring(0, colon).trim().equalsIgnoreCase("sitemap")) continue;
+            final String value = line.substring(colon + 1).trim();
+            if (!value.isEmpty()) sitemaps.add(value);
+        }
+        return sitemaps;
+    }
+
+    public boolean isAllowed(final String url) {
+        final String path = path(url);
+        if (path.equals("/robots.txt")) return true;
+        for (int i = 0; i < patterns.length; i++) if (matches(patterns[i], path)) return allows[i];
+        return true;
+    }
+
+    /**
+     * Crawl-delay in milliseconds, or 0 if none was given.
+     */
+    public long getCrawlDelay() {
+        return crawlDelay;
+    }
+
+    public boolean isTemporary() {
+        return temporary;
+    }
+
+    public void write(final DataOutput output) throws IOException {
+        output.writeBoolean(temporary);
+        output.writeLong(crawlDelay);
+        output.writeInt(patterns.length);
+        for (int i = 0; i < patterns.length; i++) {
+            output.writeBoolean(allows[i]);
+            output.writeUTF(patterns[i]);
+        }
+    }
+
+    public static RobotsRules read(final DataInput input) throws IOException {
+        final boolean temporary = input.readBoolean();
+        final long crawlDelay = input.readLong();
+        final int count = input.readInt();
+        final String[] patterns = new String[count];
+        final boolean[] allows = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            allows[i] = input.readBoolean();
+            patterns[i] = input.readUTF();
+        }
+        return new RobotsRules(patterns, allows, crawlDelay, temporary);
+    }
+
+    /**
+     * The path and query of a url, which is what robots.txt patterns are matched against.
+     */
+    static String path(final String url) {
+        final int scheme = url.indexOf("://");
+        final int start = url.indexOf('/', scheme == -1 ? 0 : scheme + 3);
+        if (start == -1) return "/";
+        final int fragment = url.indexOf('#', start);
+        return fragment == -1 ? url.substring(start) : url.substring(start, fragment);
+    }
+
+    private static boolean matches(final String pattern, final String path) {
+        final boolean anchored = pattern.endsWith("$");
+        final int patternEnd = anchored ? pattern.length() - 1 : pattern.length();
+        if (pattern.indexOf('*') == -1)
+            return anchored ? path.length() == patternEnd && path.startsWith(pattern.substring(0, patternEnd)) : path.startsWith(pattern);
+
+        // greedy glob with backtracking to the last '*'
+        int p = 0, s = 0, star = -1, mark = 0;
+        while (true) {
+            if (p == patternEnd && (!anchored || s == path.length())) return true;
+            if (p < patternEnd && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = s;
+            } else if (p < patternEnd && s < path.length() && pattern.charAt(p) == path.charAt(s)) {
+                p++;
+                s++;
+            } else if (star != -1 && mark < path.length()) {
+                p = star + 1;
+                s = ++mark;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private static long parseDelay(final String value) {
+        try {
+            return (long) (Double.parseDouble(value) * 1000);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
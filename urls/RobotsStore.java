@@ -0,0 +1,413 @@
+package urls;
+
+import utils.Fingerprint;
+import utils.Metrics;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Fetches each host's robots.txt once per {@code ttl} and keeps the compiled {@link RobotsRules}.
+ * <p>
+ * Recently used hosts live in an in-memory LRU. Every fetched set of rules is also appended to
+ * {@code robots.log}, with its offset in a {@link FingerprintTable} keyed by host, so the cache
+ * survives restarts and hosts evicted from memory do not have to be fetched again. The log is
+ * rewritten with only each host's latest record once superseded records outweigh the live ones,
+ * and a record torn by a crash is cut off when it is opened. Fetches are asynchronous, so any
+ * number of new hosts can be waiting on theirs, and concurrent requests for the same host share
+ * one fetch.
+ * <p>
+ * Following RFC 9309, a 4xx means there are no rules, while a 5xx or a failed connection means
+ * the host must not be crawled for now; the latter is retried after {@link #RETRY_TTL}. Each
+ * successful fetch also hands the host's sitemaps to the {@link SitemapReader}.
+ */
+public class RobotsStore {
+
+    private static final int MAX_ROBOTS_BYTES = 512 * 1024;
+    private static final long RETRY_TTL = 60 * 60_000;
+    private static final long MAX_CRAWL_DELAY = 60_000;
+    private static final long FETCH_TIMEOUT = 30_000;
+    private static final long MIN_COMPACT_BYTES = 16 << 20;
+    private static final int OFFSET = 0, EXPIRES = 1;
+
+    private static final LongAdder DROPPED = Metrics.counter("robots_disallowed");
+
+    private static RobotsStore ourInstance = new RobotsStore();
+
+    private static int cacheSize;
+    private static long ttl;
+    private static Map<String, Cached> cache;
+    private static final Map<String, CompletableFuture<RobotsRules>> PENDING = new ConcurrentHashMap<>();
+
+    private static FingerprintTable index;
+    private static File logFile;
+    private static FileChannel log;
+    private static long liveBytes;
+    private static HttpClient client;
+
+    private RobotsStore() {
+    }
+
+    public static synchronized void init(final File dir, final int cacheSize, final long ttl, final long expectedHosts) throws IOException {
+        RobotsStore.cacheSize = cacheSize;
+        RobotsStore.ttl = ttl;
+        cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Cached> eldest) {
+                return size() > RobotsStore.cacheSize;
+            }
+        };
+
+        index = new FingerprintTable(new File(dir, "robots.tbl"), expectedHosts, 2);
+        logFile = new File(dir, "robots.log");
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (RobotsStore.class) {
+            liveBytes = scan(null, null);
+            compactIfWasteful();
+        }
+
+        client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        Metrics.gauge("robots_cached_hosts", index::size);
+    }
+
+    public static RobotsStore getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * True only if the host's rules are already known and forbid the url; urls of hosts we have
+     * no rules for yet are let through and checked again before they are fetched.
+     */
+    public boolean isDisallowed(final String url) {
+        if (cache == null) return false;
+        final Cached entry = lookup(authority(url));
+        if (entry == null || entry.rules.isTemporary() || entry.rules.isAllowed(url)) return false;
+        DROPPED.increment();
+        return true;
+    }
+
+    /**
+     * The rules for the url's host. Cached rules are returned at once, and refreshed in the
+     * background once they expire.
+     */
+    public CompletableFuture<RobotsRules> rules(final String url) {
+        if (cache == null) return CompletableFuture.completedFuture(RobotsRules.ALLOW_ALL);
+
+        final String host = authority(url);
+        final Cached entry = lookup(host);
+        if (entry != null && entry.expires > System.currentTimeMillis())
+            return CompletableFuture.completedFuture(entry.rules);
+
+        final CompletableFuture<RobotsRules> fetch = new CompletableFuture<>();
+        final CompletableFuture<RobotsRules> pending = PENDING.putIfAbsent(host, fetch);
+        if (pending == null) {
+            fetch(url, host).whenComplete((rules, throwable) -> {
+                PENDING.remove(host);
+                fetch.complete(throwable == null ? rules : RobotsRules.UNREACHABLE);
+            });
+        }
+
+        if (entry != null && !entry.rules.isTemporary()) return CompletableFuture.completedFuture(entry.rules);
+        return pending == null ? fetch : pending;
+    }
+
+    private static CompletableFuture<RobotsRules> fetch(final String url, final String host) {
+        final int scheme = url.indexOf("://");
+        final String robotsUrl = (scheme == -1 ? "http" : url.substring(0, scheme).toLowerCase(Locale.ROOT)) + "://" + host + "/robots.txt";
+
+        final CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            response = client.sendAsync(HttpRequest.newBuilder(URI.create(robotsUrl))
+                    .header("User-Agent", CurlStore.USER_AGENT)
+                    .timeout(Duration.ofSeconds(20))
+                    .GET().build(), info -> info.statusCode() / 100 == 2
+                    ? new CappedBody(MAX_ROBOTS_BYTES) : HttpResponse.BodySubscribers.replacing(null));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(fetched(host, "error", RobotsRules.UNREACHABLE));
+        }
+
+        return response.orTimeout(FETCH_TIMEOUT, TimeUnit.MILLISECONDS).handle((fetched, throwable) -> {
+            if (throwable != null) return fetched(host, "error", RobotsRules.UNREACHABLE);
+
+            final int code = fetched.statusCode();
+            final RobotsRules rules;
+            if (code / 100 == 2) {
+                final String robots = new String(fetched.body(), StandardCharsets.UTF_8);
+                rules = RobotsRules.parse(robots, CurlStore.AGENT_TOKEN);
+                SitemapReader.getInstance().read(robotsUrl, RobotsRules.sitemaps(robots));
+            } else if (code / 100 == 4) {
+                rules = RobotsRules.ALLOW_ALL;
+                SitemapReader.getInstance().read(robotsUrl, Collections.emptyList());
+            } else {
+                rules = RobotsRules.UNREACHABLE;
+            }
+            return fetched(host, String.valueOf(code), rules);
+        });
+    }
+
+    private static RobotsRules fetched(final String host, final String status, final RobotsRules rules) {
+        Metrics.counter("robots_fetches", "status", status).increment();
+        store(host, rules, System.currentTimeMillis() + (rules.isTemporary() ? RETRY_TTL : ttl));
+        return rules;
+    }
+
+    /**
+     * Crawl-delay clamped to something we are willing to honour.
+     */
+    public static long crawlDelay(final RobotsRules rules) {
+        return Math.min(MAX_CRAWL_DELAY, rules.getCrawlDelay());
+    }
+
+    /**
+     * Host and port of the url, which is what a robots.txt applies to.
+     */
+    private static String authority(final String url) {
+        final int scheme = url.indexOf("://");
+        int start = scheme == -1 ? 0 : scheme + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) end++;
+        final int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) start = at + 1;
+        return url.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static Cached lookup(final String host) {
+        synchronized (cache) {
+            final Cached entry = cache.get(host);
+            if (entry != null) return entry;
+        }
+
+        final Cached entry;
+        synchronized (RobotsStore.class) {
+            final long slot = index.find(Fingerprint.of(host));
+            if (slot == -1) return null;
+            final long offset = index.get(slot, OFFSET) - 1;
+            if (offset < 0) return null;
+
+            try {
+                final byte[] record = record(offset);
+                if (record == null) return null;
+                final DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+                if (!input.readUTF().equals(host)) return null;
+                entry = new Cached(RobotsRules.read(input), index.get(slot, EXPIRES));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        synchronized (cache) {
+            cache.put(host, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * The record at the offset, or null if there is no whole record there.
+     */
+    private static byte[] record(final long offset) throws IOException {
+        final long size = log.size();
+        if (offset + 4 > size) return null;
+        final int length = read(ByteBuffer.allocate(4), offset).getInt(0);
+        if (length <= 0 || offset + 4 + length > size) return null;
+        return read(ByteBuffer.allocate(length), offset + 4).array();
+    }
+
+    private static ByteBuffer read(final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining())
+            if (log.read(buffer, offset + buffer.position()) == -1) throw new EOFException();
+        return buffer;
+    }
+
+    private static void store(final String host, final RobotsRules rules, final long expires) {
+        synchronized (cache) {
+            cache.put(host, new Cached(rules, expires));
+        }
+
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(0);
+            output.writeUTF(host);
+            rules.write(output);
+            final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(0, record.capacity() - 4);
+
+            synchronized (RobotsStore.class) {
+                final long slot = index.insert(Fingerprint.of(host));
+                if (slot == -1) return;
+                final long offset = log.size();
+                while (record.hasRemaining()) log.write(record, offset + record.position());
+
+                final long previous = index.get(slot, OFFSET) - 1;
+                if (previous >= 0) {
+                    final byte[] superseded = record(previous);
+                    if (superseded != null) liveBytes -= 4 + superseded.length;
+                }
+                index.set(slot, EXPIRES, expires);
+                index.set(slot, OFFSET, offset + 1);
+                liveBytes += record.capacity();
+                compactIfWasteful();
+            }
+        } catch (IOException e) {
+            System.err.print("\nCould not cache robots.txt of " + host + ": " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Rewrites the log once it is mostly superseded records. Called holding the log's lock.
+     */
+    private static void compactIfWasteful() {
+        try {
+            final long size = log.size();
+            if (size < MIN_COMPACT_BYTES || size < 2 * liveBytes) return;
+
+            final File temporary = new File(logFile.getPath() + ".tmp");
+            final List<long[]> moved = new ArrayList<>();
+            try (FileChannel output = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                liveBytes = scan(output, moved);
+                output.force(false);
+            }
+            Files.move(temporary.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.close();
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // a crash before these land leaves offsets that fail the host check in lookup
+            for (long[] record : moved) index.set(record[0], OFFSET, record[1] + 1);
+            System.out.println("Compacted " + logFile + " from " + size + " to " + log.size() + " bytes");
+        } catch (IOException e) {
+            System.err.print("\nCould not compact " + logFile + ": " + e.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Walks the log, cutting off a record torn by a crash, and returns the bytes of the records
+     * the index still points at. With an output those records are copied to it, and the new
+     * offset of each is added to {@code moved} as {slot, offset}.
+     */
+    private static long scan(final FileChannel output, final List<long[]> moved) throws IOException {
+        long offset = 0, live = 0;
+        final long size = log.size();
+        while (offset < size) {
+            final byte[] record = record(offset);
+            String host = null;
+            if (record != null) {
+                try {
+                    host = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+                } catch (IOException e) {
+                    // torn
+                }
+            }
+            if (host == null) {
+                System.err.print("\nTruncating " + logFile + " at a torn record, offset " + offset + "\n");
+                log.truncate(offset);
+                break;
+            }
+
+            final long slot = index.find(Fingerprint.of(host));
+            if (slot != -1 && index.get(slot, OFFSET) - 1 == offset) {
+                live += 4 + record.length;
+                if (output != null) {
+                    final ByteBuffer copy = ByteBuffer.allocate(4 + record.length).putInt(record.length).put(record);
+                    copy.flip();
+                    final long to = output.size();
+                    while (copy.hasRemaining()) output.write(copy, to + copy.position());
+                    moved.add(new long[]{slot, to});
+                }
+            }
+            offset += 4 + record.length;
+        }
+        return live;
+    }
+
+    /**
+     * Collects a body of up to {@code limit} bytes and stops receiving the rest.
+     */
+    private static class CappedBody implements HttpResponse.BodySubscriber<byte[]> {
+        private final CompletableFuture<byte[]> body = new CompletableFuture<>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+        private Flow.Subscription subscription;
+
+        private CappedBody(final int limit) {
+            this.limit = limit;
+        }
+
+        public CompletionStage<byte[]> getBody() {
+            return body;
+        }
+
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        public void onNext(final List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                final int n = Math.min(buffer.remaining(), limit - bytes.size());
+                final byte[] chunk = new byte[n];
+                buffer.get(chunk);
+                bytes.write(chunk, 0, n);
+            }
+            if (bytes.size() < limit) {
+                subscription.request(1);
+                return;
+            }
+            subscription.cancel();
+            body.complete(bytes.toByteArray());
+        }
+
+        public void onError(final Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        public void onComplete() {
+            body.complete(bytes.toByteArray());
+        }
+    }
+
+    private static class Cached {
+        private final RobotsRules rules;
+        private final long expires;
+
+        private Cached(final RobotsRules rules, final long expires) {
+            this.rules = rules;
+            this.expires = expires;
+        }
+    }
+}
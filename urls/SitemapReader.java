@@ -0,0 +1,311 @@
+package urls;
+
+import utils.LimitedInputStream;
+import utils.Metrics;
+import utils.Watchdog;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Reads a host's sitemaps, so the urls it lists reach the frontier without crawling its pages
+ * for links first. {@link RobotsStore} hands over the sitemaps of every robots.txt it fetches,
+ * or none, in which case {@code /sitemap.xml} is tried.
+ * <p>
+ * Sitemaps and sitemap indexes are parsed as they stream in with StAX, gzipped or not, so memory
+ * stays bounded by one batch of urls whatever their size. Following the sitemap protocol, a
+ * sitemap is read up to {@link #MAX_URLS} urls and {@link #MAX_BYTES} uncompressed, and only urls
+ * on the sitemap's own host are taken. A url never fetched before is admitted like a link. A url
+ * already fetched is queued again at once if its {@code <lastmod>} is newer than the last fetch,
+ * and otherwise left to the scheduler, with its {@code <changefreq>} as the
+ * {@link RecrawlScheduler}'s hint.
+ * <p>
+ * A host's sitemaps are read one after another on a small pool of their own, each taking a slot
+ * from the {@link HostScheduler} like any fetch, so they keep to the host's concurrency and
+ * crawl-delay, and each cut off after {@link #MAX_READ_TIME}. Hosts beyond
+ * {@link #MAX_PENDING_HOSTS} waiting are dropped until their robots.txt is next fetched.
+ */
+public class SitemapReader {
+
+    private static final int MAX_URLS = 50_000;
+    private static final long MAX_BYTES = 50L << 20;
+    private static final int MAX_SITEMAPS_PER_HOST = 1000;
+    private static final int MAX_PENDING_HOSTS = 10_000;
+    private static final int BATCH = 1000;
+    private static final int FETCH_THREADS = 4;
+    private static final long MAX_READ_TIME = 5 * 60_000;
+
+    private static final LongAdder DROPPED = Metrics.counter("sitemap_hosts_dropped");
+
+    private static SitemapReader ourInstance = new SitemapReader();
+
+    private static HttpClient client;
+    private static XMLInputFactory factory;
+    private static ThreadPoolExecutor readers;
+
+    private SitemapReader() {
+    }
+
+    public static synchronized void init() {
+        client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        readers = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_HOSTS), runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Sitemap Reader");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> DROPPED.increment());
+
+        Metrics.gauge("sitemap_hosts_pending", () -> readers.getQueue().size());
+    }
+
+    public static SitemapReader getInstance() {
+        return ourInstance;
+    }
+
+    public boolean isEnabled() {
+        return readers != null;
+    }
+
+    /**
+     * Reads the sitemaps in the background.
+     *
+     * @param robotsUrl the robots.txt that listed them, which they are resolved against
+     * @param sitemaps  their urls, or none to try {@code /sitemap.xml}
+     */
+    public void read(final String robotsUrl, final List<String> sitemaps) {
+        if (readers == null) return;
+        final URI robots = URI.create(robotsUrl);
+        final Deque<URI> pending = new ArrayDeque<>();
+        if (sitemaps.isEmpty()) pending.add(robots.resolve("/sitemap.xml"));
+        for (String sitemap : sitemaps) {
+            try {
+                pending.add(robots.resolve(sitemap));
+            } catch (IllegalArgumentException e) {
+                Metrics.counter("sitemap_fetches", "status", "error").increment();
+            }
+        }
+        readers.execute(() -> readAll(pending));
+    }
+
+    /**
+     * Reads the sitemaps, and the ones they list, depth first.
+     */
+    private static void readAll(final Deque<URI> pending) {
+        final Set<URI> read = new HashSet<>();
+        while (!pending.isEmpty() && read.size() < MAX_SITEMAPS_PER_HOST && !Thread.currentThread().isInterrupted()) {
+            final URI sitemap = pending.pop();
+            if (read.add(sitemap)) readOne(sitemap, pending);
+        }
+    }
+
+    private static void readOne(final URI sitemap, final Deque<URI> pending) {
+        final String url = sitemap.toString();
+        final HostScheduler scheduler = HostScheduler.getInstance();
+        String status;
+        try {
+            scheduler.acquire(url);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            final HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(sitemap)
+                    .header("User-Agent", CurlStore.USER_AGENT)
+                    .timeout(Duration.ofSeconds(60))
+                    .GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+            status = String.valueOf(response.statusCode());
+
+            final InputStream body = response.body();
+            final ScheduledFuture<?> deadline = Watchdog.closeAfter(body, MAX_READ_TIME);
+            try (InputStream input = body) {
+                if (response.statusCode() / 100 == 2) parse(sitemap, decompress(input), pending);
+            } finally {
+                deadline.cancel(false);
+            }
+        } catch (IOException | XMLStreamException | IllegalArgumentException e) {
+            status = "error";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = "error";
+        } finally {
+            scheduler.release(url);
+        }
+        Metrics.counter("sitemap_fetches", "status", status).increment();
+    }
+
+    /**
+     * The body unzipped if it is gzipped, whether as a .gz file or by Content-Encoding, and cut off
+     * at {@link #MAX_BYTES}.
+     */
+    private static InputStream decompress(final InputStream body) throws IOException {
+        final BufferedInputStream input = new BufferedInputStream(body, 64 * 1024);
+        input.mark(2);
+        final boolean gzipped = input.read() == 0x1f && input.read() == 0x8b;
+        input.reset();
+        return new LimitedInputStream(gzipped ? new GZIPInputStream(input, 64 * 1024) : input, MAX_BYTES);
+    }
+
+    private static void parse(final URI sitemap, final InputStream input, final Deque<URI> pending) throws XMLStreamException {
+        final String host = HostScheduler.hostOf(sitemap.toString());
+        final List<String> fresh = new ArrayList<>(BATCH), due = new ArrayList<>();
+        final List<URI> children = new ArrayList<>();
+        final XMLStreamReader reader = factory.createXMLStreamReader(input);
+        int urls = 0;
+        try {
+            String loc = null, lastmod = null, changefreq = null;
+            while (reader.hasNext() && urls < MAX_URLS) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    // extensions such as <image:loc> have a prefix; the protocol's own elements do not
+                    final String prefix = reader.getPrefix();
+                    if (prefix != null && !prefix.isEmpty()) continue;
+                    switch (reader.getLocalName()) {
+                        case "loc":
+                            loc = reader.getElementText().trim();
+                            break;
+                        case "lastmod":
+                            lastmod = reader.getElementText().trim();
+                            break;
+                        case "changefreq":
+                            changefreq = reader.getElementText().trim();
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && loc != null) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("url")) {
+                        offer(host, loc, lastmod, changefreq, fresh, due);
+                        urls++;
+                    } else if (name.equals("sitemap")) {
+                        try {
+                            children.add(sitemap.resolve(loc));
+                        } catch (IllegalArgumentException e) {
+                            // not a url
+                        }
+                    } else {
+                        continue;
+                    }
+                    loc = lastmod = changefreq = null;
+                    if (fresh.size() + due.size() >= BATCH) flush(fresh, due);
+                }
+            }
+        } finally {
+            reader.close();
+            flush(fresh, due);
+            Metrics.counter("sitemap_urls", "result", "listed").add(urls);
+            // keep the listed order, which is often newest first
+            for (int i = children.size() - 1; i >= 0; i--) pending.push(children.get(i));
+        }
+    }
+
+    private static void offer(final String host, final String loc, final String lastmod, final String changefreq,
+                              final List<String> fresh, final List<String> due) {
+        final String url = UrlCanonicalizer.canonicalize(loc);
+        if (url == null || !HostScheduler.hostOf(url).equals(host)) {
+            Metrics.counter("sitemap_urls", "result", "foreign").increment();
+            return;
+        }
+
+        final long interval = changefreq == null ? 0 : interval(changefreq);
+        if (interval != 0) RecrawlScheduler.getInstance().hint(url, interval);
+
+        final long verified = RecrawlStore.getInstance().lastVerified(url);
+        if (verified == 0) fresh.add(url);
+        else if (lastmod != null && parseDate(lastmod) > verified) due.add(url);
+        else Metrics.counter("sitemap_urls", "result", "unchanged").increment();
+    }
+
+    private static void flush(final List<String> fresh, final List<String> due) {
+        final UrlStore urlStore = UrlStore.getInstance();
+        if (!fresh.isEmpty()) {
+            Metrics.counter("sitemap_urls", "result", "new").add(fresh.size());
+            urlStore.acceptAll(fresh);
+            fresh.clear();
+        }
+        if (!due.isEmpty()) {
+            Metrics.counter("sitemap_urls", "result", "modified").add(due.size());
+            urlStore.recrawl(due);
+            due.clear();
+        }
+    }
+
+    /**
+     * The interval a {@code <changefreq>} stands for, or 0 for none we know.
+     */
+    static long interval(final String changefreq) {
+        switch (changefreq.toLowerCase(Locale.ROOT)) {
+            case "always":
+            case "hourly":
+                return TimeUnit.HOURS.toMillis(1);
+            case "daily":
+                return TimeUnit.DAYS.toMillis(1);
+            case "weekly":
+                return TimeUnit.DAYS.toMillis(7);
+            case "monthly":
+                return TimeUnit.DAYS.toMillis(30);
+            case "yearly":
+            case "never":
+                return TimeUnit.DAYS.toMillis(365);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * A W3C datetime as sitemaps write it, either a date or a date and time with a zone, or 0.
+     */
+    static long parseDate(final String date) {
+        try {
+            if (date.length() == 10) return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
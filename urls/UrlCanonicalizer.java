@@ -0,0 +1,299 @@
+package urls;
+
+import utils.Fingerprint;
+
+import java.io.UnsupportedEncodingException;
+import java.net.IDN;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Brings a url into the one form the crawler stores and fetches, in a single pass over the url
+ * into a per-thread buffer:
+ * <ul>
+ * <li>only http and https are kept; the scheme and host are lowercased, user info, a trailing dot
+ * on the host and the default port are dropped</li>
+ * <li>"." and ".." path segments are resolved and an empty path becomes "/"</li>
+ * <li>percent-escapes of unreserved characters are decoded, the rest are uppercased, and
+ * characters that may not appear in a url are escaped as UTF-8</li>
+ * <li>session ids in path parameters (";jsessionid=...") are removed</li>
+ * <li>the fragment and every query parameter not on the keep list are dropped; kept parameters
+ * are sorted so their order does not matter. A keep list of "*" keeps everything except
+ * session ids.</li>
+ * </ul>
+ * A url that is already canonical comes back as the same instance, so nothing is allocated for it.
+ */
+public class UrlCanonicalizer {
+
+    private static final String[] DEFAULT_SESSION_PARAMS = {"jsessionid", "phpsessid", "aspsessionid", "sessionid", "sid", "cfid", "cftoken"};
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final ThreadLocal<int[]> PARAMS = ThreadLocal.withInitial(() -> new int[32]);
+
+    private static volatile String[] keepParams = new String[0];
+    private static volatile String[] sessionParams = DEFAULT_SESSION_PARAMS;
+
+    private UrlCanonicalizer() {
+    }
+
+    /**
+     * @param keepParams     query parameters to keep, or "*" for all but session ids
+     * @param sessionParams  parameter names that carry a session id, or null for the defaults
+     */
+    public static synchronized void init(final Collection<String> keepParams, final Collection<String> sessionParams) {
+        UrlCanonicalizer.keepParams = lowerCase(keepParams);
+        UrlCanonicalizer.sessionParams = sessionParams == null ? DEFAULT_SESSION_PARAMS : lowerCase(sessionParams);
+    }
+
+    /**
+     * The canonical form of the url, or null if it is not an http(s) url we could fetch.
+     */
+    public static String canonicalize(final String url) {
+        int start = 0, end = url.length();
+        while (start < end && url.charAt(start) <= ' ') start++;
+        while (end > start && url.charAt(end - 1) <= ' ') end--;
+
+        final String scheme;
+        if (url.regionMatches(true, start, "http://", 0, 7)) scheme = "http";
+        else if (url.regionMatches(true, start, "https://", 0, 8)) scheme = "https";
+        else return null;
+
+        final int authority = start + scheme.length() + 3;
+        int authorityEnd = authority;
+        while (authorityEnd < end && "/?#".indexOf(url.charAt(authorityEnd)) == -1) authorityEnd++;
+
+        int host = authority;
+        for (int i = authorityEnd - 1; i >= authority; i--)
+            if (url.charAt(i) == '@') {
+                host = i + 1;
+                break;
+            }
+
+        int hostEnd;
+        if (host < authorityEnd && url.charAt(host) == '[') {
+            hostEnd = url.indexOf(']', host);
+            if (hostEnd == -1 || hostEnd >= authorityEnd) return null;
+            hostEnd++;
+        } else {
+            hostEnd = host;
+            while (hostEnd < authorityEnd && url.charAt(hostEnd) != ':') hostEnd++;
+        }
+
+        int port = -1;
+        if (hostEnd < authorityEnd) {
+            if (url.charAt(hostEnd) != ':') return null;
+            for (int i = hostEnd + 1; i < authorityEnd; i++) {
+                final char c = url.charAt(i);
+                if (c < '0' || c > '9' || port > 65535) return null;
+                port = Math.max(port, 0) * 10 + c - '0';
+            }
+            if (port > 65535) return null;
+        }
+
+        int hostTrim = hostEnd;
+        while (hostTrim > host && url.charAt(hostTrim - 1) == '.') hostTrim--;
+        if (hostTrim == host) return null;
+
+        final StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        out.append(scheme).append("://");
+        if (!appendHost(out, url, host, hostTrim)) return null;
+        if (port != -1 && port != (scheme.equals("http") ? 80 : 443)) out.append(':').append(port);
+
+        int pathEnd = authorityEnd;
+        while (pathEnd < end && url.charAt(pathEnd) != '?' && url.charAt(pathEnd) != '#') pathEnd++;
+        appendPath(out, url, authorityEnd, pathEnd);
+
+        if (pathEnd < end && url.charAt(pathEnd) == '?') {
+            int queryEnd = pathEnd + 1;
+            while (queryEnd < end && url.charAt(queryEnd) != '#') queryEnd++;
+            appendQuery(out, url, pathEnd + 1, queryEnd);
+        }
+
+        return out.length() == url.length() && url.contentEquals(out) ? url : out.toString();
+    }
+
+    /**
+     * The 64-bit key of a canonical url: its fingerprint after the scheme, so the http and https
+     * versions of a page share one entry.
+     */
+    public static long key(final String canonical) {
+        final int schemeEnd = canonical.indexOf("://");
+        return Fingerprint.of(canonical, schemeEnd == -1 ? 0 : schemeEnd + 3, canonical.length());
+    }
+
+    private static boolean appendHost(final StringBuilder out, final String url, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            final char c = url.charAt(i);
+            if (c > 0x7f || c == '%') {
+                try {
+                    out.append(IDN.toASCII(URLDecoder.decode(url.substring(start, end), "UTF-8")).toLowerCase(Locale.ROOT));
+                    return true;
+                } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+                    return false;
+                }
+            }
+        }
+        for (int i = start; i < end; i++) {
+            final char c = url.charAt(i);
+            out.append(c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the path segment by segment, resolving "." and ".." against what has been written.
+     */
+    private static void appendPath(final StringBuilder out, final String url, final int start, final int end) {
+        final int root = out.length();
+        out.append('/');
+
+        int i = start < end && url.charAt(start) == '/' ? start + 1 : start;
+        while (true) {
+            final int segment = out.length();
+            while (i < end && url.charAt(i) != '/') {
+                if (url.charAt(i) == ';' && isSessionParam(url, i + 1, end)) {
+                    i++;
+                    while (i < end && url.charAt(i) != '/' && url.charAt(i) != ';') i++;
+                    continue;
+                }
+                i = appendEscaped(out, url, i, end);
+            }
+            final boolean last = i >= end;
+            i++;
+
+            final int length = out.length() - segment;
+            if (length == 1 && out.charAt(segment) == '.') {
+                out.setLength(segment);
+            } else if (length == 2 && out.charAt(segment) == '.' && out.charAt(segment + 1) == '.') {
+                out.setLength(segment);
+                if (segment - 1 > root) {
+                    int previous = segment - 2;
+                    while (out.charAt(previous) != '/') previous--;
+                    out.setLength(previous + 1);
+                }
+            } else if (!last) {
+                out.append('/');
+            }
+            if (last) return;
+        }
+    }
+
+    private static void appendQuery(final StringBuilder out, final String url, final int start, final int end) {
+        final String[] keep = keepParams;
+        if (keep.length == 0) return;
+        final boolean keepAll = keep.length == 1 && keep[0].equals("*");
+
+        int[] params = PARAMS.get();
+        int count = 0;
+        for (int i = start; i <= end; ) {
+            int paramEnd = i;
+            while (paramEnd < end && url.charAt(paramEnd) != '&') paramEnd++;
+            if (paramEnd > i && (keepAll ? !isSessionParam(url, i, paramEnd) : isListed(keep, url, i, paramEnd))) {
+                if (count * 2 + 2 > params.length) {
+                    params = Arrays.copyOf(params, params.length * 2);
+                    PARAMS.set(params);
+                }
+                // insertion sort by raw text; there are seldom more than a handful
+                int at = count++;
+                while (at > 0 && compare(url, params[at * 2 - 2], params[at * 2 - 1], i, paramEnd) > 0) {
+                    params[at * 2] = params[at * 2 - 2];
+                    params[at * 2 + 1] = params[at * 2 - 1];
+                    at--;
+                }
+                params[at * 2] = i;
+                params[at * 2 + 1] = paramEnd;
+            }
+            i = paramEnd + 1;
+        }
+
+        for (int p = 0; p < count; p++) {
+            out.append(p == 0 ? '?' : '&');
+            for (int i = params[p * 2]; i < params[p * 2 + 1]; ) i = appendEscaped(out, url, i, params[p * 2 + 1]);
+        }
+    }
+
+    /**
+     * Appends the character at {@code i} in its canonical escaping and returns the index after it.
+     */
+    private static int appendEscaped(final StringBuilder out, final String url, final int i, final int end) {
+        final char c = url.charAt(i);
+        if (c == '%') {
+            if (i + 2 < end && hex(url.charAt(i + 1)) != -1 && hex(url.charAt(i + 2)) != -1) {
+                final int value = hex(url.charAt(i + 1)) << 4 | hex(url.charAt(i + 2));
+                if (isUnreserved(value)) out.append((char) value);
+                else out.append('%').append(HEX[value >> 4]).append(HEX[value & 0xf]);
+                return i + 3;
+            }
+            out.append("%25");
+            return i + 1;
+        }
+        if (c > ' ' && c < 0x7f && "\"<>\\^`{|}".indexOf(c) == -1) {
+            out.append(c);
+            return i + 1;
+        }
+
+        final int next = Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(url.charAt(i + 1)) ? i + 2 : i + 1;
+        for (byte b : url.substring(i, next).getBytes(StandardCharsets.UTF_8))
+            out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        return next;
+    }
+
+    private static boolean isUnreserved(final int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    private static int hex(final char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * True if the parameter starting at {@code start} is named like a session id.
+     */
+    private static boolean isSessionParam(final String url, final int start, final int end) {
+        return isListed(sessionParams, url, start, end);
+    }
+
+    private static boolean isListed(final String[] names, final String url, final int start, final int end) {
+        int nameEnd = start;
+        while (nameEnd < end && url.charAt(nameEnd) != '=' && url.charAt(nameEnd) != ';' && url.charAt(nameEnd) != '/') nameEnd++;
+        for (String name : names)
+            if (name.length() == nameEnd - start && url.regionMatches(true, start, name, 0, name.length())) return true;
+        return false;
+    }
+
+    private static int compare(final String url, final int aStart, final int aEnd, final int bStart, final int bEnd) {
+        final int length = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int i = 0; i < length; i++) {
+            final int diff = url.charAt(aStart + i) - url.charAt(bStart + i);
+            if (diff != 0) return diff;
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    private static String[] lowerCase(final Collection<String> names) {
+        return names.stream().map(String::trim).filter(name -> !name.isEmpty()).map(name -> name.toLowerCase(Locale.ROOT)).toArray(String[]::new);
+    }
+}
@@ -1,14 +1,16 @@
 package urls;
 
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
-import org.mapdb.HTreeMap;
-import org.mapdb.Serializer;
+import utils.Histogram;
+import utils.Metrics;
+import utils.Sleeper;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.NotDirectoryException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
@@ -29,139 +31,313 @@ import java.util.stream.Stream;
  * limitations under the License.
  */
 
+/**
+ * Everything the crawler knows about urls: which ones it has seen (and when), and the frontier
+ * of those still to be fetched.
+ * <p>
+ * Every {@link #CHECKPOINT_INTERVAL} the seen table and frontier are forced to disk and a
+ * checkpoint records how far each frontier segment has been read, where the log of admissions
+ * (the frontier's open segment) ended, and which urls had been handed out but not yet fetched. On
+ * start-up the checkpoint is restored instead of replaying the seed: read positions are put back,
+ * admissions logged after the checkpoint are re-applied to the seen table, and the in-flight urls
+ * go back into the frontier.
+ */
 public class UrlStore implements Supplier<String>, Consumer<String> {
 
     private static File dir;
 
+    public static final int FLAG_QUEUED = 1, FLAG_FETCHED = 2;
+    private static final int FLAG_BITS = 4, FLAG_MASK = (1 << FLAG_BITS) - 1;
+    private static final int TIME = 0;
+    private static final int MAX_FORWARDS_PER_GET = 1000;
+    private static final int CHECKPOINT_MAGIC = 0x434b5054, CHECKPOINT_VERSION = 1;
+    private static final long CHECKPOINT_INTERVAL = 30_000;
+    private static final long IN_FLIGHT_EXPIRY = 60 * 60_000;
+
     private static UrlStore ourInstance = new UrlStore();
-    private static DB database;
-    private static HTreeMap<String, Long> map;
+    private static FingerprintTable seen;
     private static long reindexTime;
 
-    private static final Object READ_LOCK = new Object(), WRITE_LOCK = new Object();
+    private static Frontier frontier;
 
-    private static File postQueue;
-    private static File preQueue;
-    private static BufferedReader reader;
-    private static PrintWriter writer;
-    private static Map<String, String> env = new HashMap<>();
-    private static File scriptFile;
-    private static String script;
+    private static final LongAdder OFFERED = Metrics.counter("links_offered");
+    private static final LongAdder ADMITTED = Metrics.counter("links_admitted");
+    private static final LongAdder SKIPPED = Metrics.counter("links_skipped_extension");
+    private static final Histogram CHECKPOINT_TIME = Metrics.histogram("checkpoint_micros");
 
-    public static void init(final Stream<String> seed, final File dir, final long allocatedSize, final long allocateIncrement, final long reindexTime) throws IOException {
+    /**
+     * Urls handed out by {@link #get()} that have not been fetched yet, with the time they left.
+     */
+    private static final Map<String, Long> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    public static void init(final Stream<String> seed, final File dir, final long expectedUrls, final long reindexTime) throws IOException {
         if (dir.exists() && !dir.isDirectory()) throw new NotDirectoryException(dir.getAbsolutePath());
         else if (!dir.exists()) dir.mkdirs();
         UrlStore.dir = dir;
 
-        postQueue = new File(dir + "/post.q");
-        preQueue = new File(dir + "/pre.q");
-        postQueue.createNewFile();
-        preQueue.createNewFile();
-        writer = new PrintWriter(new FileWriter(preQueue));
-        reader = new BufferedReader(new FileReader(postQueue));
-
-        script = "shuf ${pre} > ${post}\n" +
-                "> ${pre}";
+        UrlStore.reindexTime = reindexTime;
 
-        scriptFile = new File(dir + "/cycle.sh");
-        OutputStream os = new FileOutputStream(scriptFile);
-        os.write(script.getBytes());
-        os.flush();
-        os.close();
-        env.put("pre", preQueue.getName());
-        env.put("post", postQueue.getName());
+        seen = new FingerprintTable(new File(dir + "/seen.tbl"), expectedUrls, 1);
 
-        UrlStore.reindexTime = reindexTime;
+        final File frontierDir = new File(dir + "/frontier");
+        frontierDir.mkdirs();
+        frontier = new Frontier(frontierDir, 64 << 20, 8, 1000);
 
-        database = DBMaker
-                .fileDB(dir + "/map.db")
-                .allocateStartSize(allocatedSize)
-                .allocateIncrement(allocateIncrement)
-                .fileMmapEnable()
-                .fileMmapPreclearDisable()
-                .make();
+        Metrics.gauge("seen_size", seen::size);
+        Metrics.gauge("frontier_pending_bytes", frontier::pendingBytes);
+        Metrics.gauge("frontier_segments", frontier::segments);
+        Metrics.gauge("urls_in_flight", IN_FLIGHT::size);
 
-        map = database.hashMap("map")
-                .layout(8, 16, 7)
-                .keySerializer(Serializer.STRING_ASCII)
-                .valueSerializer(Serializer.LONG)
-                .createOrOpen();
+        if (!restore() && seed != null) seed.forEach(getInstance());
+        if (seed != null) seed.close();
 
-        seed.forEach(getInstance());
+        final Thread checkpointer = new Thread(() -> {
+            while (true) {
+                Sleeper.sleep(CHECKPOINT_INTERVAL);
+                checkpoint();
+            }
+        });
+        checkpointer.setName("Url Store Checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
     }
 
-    private static synchronized void cycle() {
+    /**
+     * Forces the seen table and frontier to disk and atomically replaces the checkpoint file.
+     */
+    public static synchronized void checkpoint() {
+        final long start = System.nanoTime();
+        final Frontier.Checkpoint position = frontier.checkpoint();
+        seen.force();
+
+        final long now = System.currentTimeMillis();
+        IN_FLIGHT.values().removeIf(time -> now - time > IN_FLIGHT_EXPIRY);
+        final List<String> inFlight = new ArrayList<>(IN_FLIGHT.keySet());
+
+        final File file = new File(dir, "checkpoint");
+        final File temporary = new File(dir, "checkpoint.tmp");
+        try (FileOutputStream stream = new FileOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream))) {
+            output.writeInt(CHECKPOINT_MAGIC);
+            output.writeInt(CHECKPOINT_VERSION);
+            output.writeLong(now);
+            position.write(output);
+            output.writeInt(inFlight.size());
+            for (String url : inFlight) output.writeUTF(url);
+            output.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            System.err.print("\nCheckpoint failed: " + e.getMessage() + "\n");
+            return;
+        }
+
         try {
-            synchronized (READ_LOCK) {
-                reader.lines().forEach(writer::println);
-                reader.close();
-
-                synchronized (WRITE_LOCK) {
-                    writer.flush();
-                    writer.close();
-
-                    ProcessBuilder pb = new ProcessBuilder()
-                            .command("/bin/bash", scriptFile.getName())
-                            .directory(dir)
-                            .inheritIO();
-                    pb.environment().putAll(env);
-                    pb.start().waitFor();
-
-                    writer = new PrintWriter(new FileWriter(preQueue));
-                }
-                reader = new BufferedReader(new FileReader(postQueue));
-            }
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.print("\nCheckpoint failed: " + e.getMessage() + "\n");
+            return;
+        }
+        frontier.commit(position);
+        CHECKPOINT_TIME.recordSince(start);
+    }
+
+    private static boolean restore() throws IOException {
+        final File file = new File(dir, "checkpoint");
+        if (!file.exists()) return false;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != CHECKPOINT_MAGIC || input.readInt() != CHECKPOINT_VERSION)
+                throw new IOException("Unrecognized checkpoint " + file);
+            final long time = input.readLong();
+            final Frontier.Checkpoint position = Frontier.Checkpoint.read(input);
+            final int count = input.readInt();
+            final List<String> inFlight = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) inFlight.add(input.readUTF());
+
+            frontier.restore(position);
+            final long[] replayed = {0};
+            frontier.replay(position, url -> {
+                readmit(url, time);
+                replayed[0]++;
+            });
+            frontier.appendAll(inFlight);
+
+            System.out.println("Restored checkpoint from " + new Date(time) + ": " + replayed[0] +
+                    " admissions replayed, " + inFlight.size() + " in-flight urls re-queued");
+            return true;
         }
     }
 
+    /**
+     * Re-applies an admission from the frontier log to the seen table, in case the table's pages
+     * did not make it to disk.
+     */
+    private static void readmit(final String url, final long time) {
+        final long slot = seen.insert(UrlCanonicalizer.key(url));
+        if (slot != -1) seen.compareAndSet(slot, TIME, 0, time << FLAG_BITS | FLAG_QUEUED);
+    }
+
     public static UrlStore getInstance() {
         return ourInstance;
     }
 
     public void accept(final String s) {
-        final int octothorpeIndex = s.lastIndexOf('#');
-        final int questionMarkIndex = s.lastIndexOf('?');
-
-        if (octothorpeIndex != -1 || questionMarkIndex != -1) {
-            if (octothorpeIndex != -1 && questionMarkIndex == -1)
-                accept(s.substring(0, octothorpeIndex));
-            else if (octothorpeIndex == -1 && questionMarkIndex != -1)
-                accept(s.substring(0, questionMarkIndex));
-            else if (octothorpeIndex != -1 && questionMarkIndex != -1)
-                accept(s.substring(0, Math.min(octothorpeIndex, questionMarkIndex)));
+        OFFERED.increment();
+        final String url = UrlCanonicalizer.canonicalize(s);
+        if (url == null || !fetchable(url) || forwarded(url)) return;
+        if (RobotsStore.getInstance().isDisallowed(url)) return;
+        if (!admit(url, System.currentTimeMillis())) return;
+        ADMITTED.increment();
+        frontier.append(url);
+    }
 
+    /**
+     * Admits the urls this node owns and forwards the rest to their owners in the {@link Cluster}.
+     */
+    public void acceptAll(final Collection<String> urls) {
+        if (!Cluster.getInstance().isEnabled()) {
+            acceptOwned(urls);
             return;
         }
 
-        final String key = s.replaceFirst("(https|http|ftp)://", "");
-        final Long time = map.get(key);
+        final List<String> owned = new ArrayList<>(urls.size());
+        for (String s : urls) {
+            final String url = UrlCanonicalizer.canonicalize(s);
+            if (url != null && fetchable(url) && !forwarded(url)) owned.add(url);
+        }
+        OFFERED.add(urls.size() - owned.size());
+        acceptOwned(owned);
+    }
 
-        if (time == null) {
-            map.put(key, System.currentTimeMillis());
-            synchronized (WRITE_LOCK) {
-                writer.println(s);
-            }
-        } else if (System.currentTimeMillis() - time > reindexTime) {
-            map.replace(key, System.currentTimeMillis());
-            synchronized (WRITE_LOCK) {
-                writer.println(s);
+    /**
+     * Admits the urls without asking the cluster who owns them; used for urls other nodes forward here.
+     */
+    public void acceptOwned(final Collection<String> urls) {
+        final long now = System.currentTimeMillis();
+        final long[] keys = new long[urls.size()];
+        final String[] canonical = new String[urls.size()];
+
+        final RobotsStore robots = RobotsStore.getInstance();
+        int n = 0;
+        for (String s : urls) {
+            canonical[n] = UrlCanonicalizer.canonicalize(s);
+            if (canonical[n] == null || !fetchable(canonical[n]) || robots.isDisallowed(canonical[n])) continue;
+            keys[n] = UrlCanonicalizer.key(canonical[n]);
+            n++;
+        }
+
+        final List<String> admitted = new ArrayList<>(n);
+        final Set<Long> batch = new HashSet<>(n * 2);
+        for (int i = 0; i < n; i++)
+            if (batch.add(keys[i]) && admit(keys[i], now)) admitted.add(canonical[i]);
+
+        OFFERED.add(urls.size());
+        ADMITTED.add(admitted.size());
+        if (!admitted.isEmpty()) frontier.appendAll(admitted);
+    }
+
+    public void mark(final String s, final int flag) {
+        final long slot = seen.find(key(s));
+        if (slot == -1) return;
+
+        long entry;
+        do entry = seen.get(slot, TIME);
+        while (!seen.compareAndSet(slot, TIME, entry, entry | flag));
+    }
+
+    public long size() {
+        return seen.size();
+    }
+
+    private static boolean admit(final String url, final long now) {
+        return admit(UrlCanonicalizer.key(url), now);
+    }
+
+    /**
+     * Most links on a page have been seen before; the Bloom filter sends the ones that certainly
+     * have not straight to the insert, and the rest get a read-only lookup first so a url
+     * admitted recently is turned away without claiming anything.
+     */
+    private static boolean admit(final long key, final long now) {
+        if (seen.mightContain(key)) {
+            final long known = seen.find(key);
+            if (known != -1) {
+                final long entry = seen.get(known, TIME);
+                if (entry != 0 && now - (entry >>> FLAG_BITS) <= reindexTime) return false;
             }
         }
+
+        final long slot = seen.insert(key);
+        if (slot == -1) return false;
+        while (true) {
+            final long entry = seen.get(slot, TIME);
+            if (entry != 0 && now - (entry >>> FLAG_BITS) <= reindexTime) return false;
+            if (entry != 0 && RecrawlScheduler.getInstance().isScheduled(key)) return false;
+            if (seen.compareAndSet(slot, TIME, entry, now << FLAG_BITS | (entry & FLAG_MASK) | FLAG_QUEUED)) return true;
+        }
+    }
+
+    private static boolean fetchable(final String url) {
+        if (ContentFilter.isFetchable(url)) return true;
+        SKIPPED.increment();
+        return false;
+    }
+
+    static long key(final String s) {
+        final String url = UrlCanonicalizer.canonicalize(s);
+        return UrlCanonicalizer.key(url == null ? s : url);
+    }
+
+    /**
+     * Queues pages the {@link RecrawlScheduler} says are due, whenever they were last admitted.
+     */
+    public void recrawl(final Collection<String> urls) {
+        final long now = System.currentTimeMillis();
+        for (String url : urls) {
+            final long slot = seen.insert(UrlCanonicalizer.key(url));
+            if (slot == -1) continue;
+            long entry;
+            do entry = seen.get(slot, TIME);
+            while (!seen.compareAndSet(slot, TIME, entry, now << FLAG_BITS | (entry & FLAG_MASK) | FLAG_QUEUED));
+        }
+        frontier.appendAll(urls);
+    }
+
+    public void defer(final String s) {
+        IN_FLIGHT.remove(s);
+        frontier.append(s);
+    }
+
+    /**
+     * Forgets a url handed out by {@link #get()} once its fetch is over, however it ended. Takes
+     * the url as it was handed out, not where it redirected to.
+     */
+    public void done(final String s) {
+        IN_FLIGHT.remove(s);
     }
 
+    /**
+     * The next url to crawl. Urls that belong to another node since the cluster last changed are
+     * forwarded on the way out instead of being returned.
+     */
     public String get() {
-        final String url;
-        try {
-            synchronized (READ_LOCK) {
-                url = reader.readLine();
-                if (url == null) cycle();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+        for (int i = 0; i < MAX_FORWARDS_PER_GET; i++) {
+            final String url = frontier.poll();
+            if (url == null) return null;
+            if (forwarded(url)) continue;
+            IN_FLIGHT.put(url, System.currentTimeMillis());
+            return url;
         }
-        return url;
+        return null;
+    }
+
+    private static boolean forwarded(final String url) {
+        final Cluster cluster = Cluster.getInstance();
+        final String owner = cluster.owner(url);
+        return owner != null && cluster.forward(owner, url);
+    }
+
+    public long pendingBytes() {
+        return frontier.pendingBytes();
     }
-}
\ No newline at end of file
+}
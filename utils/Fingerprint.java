@@ -0,0 +1,55 @@
+package utils;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * 64-bit FNV-1a with a murmur finalizer, so that nearby keys still spread over every bit.
+ */
+public class Fingerprint {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    public static long of(final CharSequence s) {
+        return of(s, 0, s.length());
+    }
+
+    public static long of(final CharSequence s, final int start, final int end) {
+        long hash = OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            hash = (hash ^ (c & 0xff)) * PRIME;
+            if (c > 0xff) hash = (hash ^ (c >>> 8)) * PRIME;
+        }
+        return mix(hash);
+    }
+
+    public static long of(final byte[] bytes, final int start, final int end) {
+        long hash = OFFSET_BASIS;
+        for (int i = start; i < end; i++) hash = (hash ^ (bytes[i] & 0xff)) * PRIME;
+        return mix(hash);
+    }
+
+    public static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
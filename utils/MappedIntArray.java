@@ -0,0 +1,87 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A file-backed array of ints larger than a single {@link MappedByteBuffer} can address.
+ * Unlike {@link MappedLongArray} accesses are plain, for batch jobs where each element has a
+ * single writer and threads are joined before the results are read.
+ */
+public class MappedIntArray implements Closeable {
+
+    private static final int SEGMENT_SHIFT = 28;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] buffers;
+    private final IntBuffer[] segments;
+    private final long length;
+
+    public MappedIntArray(final File file, final long length) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.length = length;
+        if (this.file.length() < length << 2) this.file.setLength(length << 2);
+
+        final FileChannel channel = this.file.getChannel();
+        final int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        buffers = new MappedByteBuffer[count];
+        segments = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = (long) i << SEGMENT_SHIFT;
+            buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, start << 2, Math.min(SEGMENT_MASK + 1, length - start) << 2);
+            segments[i] = buffers[i].order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+    public int get(final long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    public void set(final long index, final int value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+    }
+
+    public float getFloat(final long index) {
+        return Float.intBitsToFloat(get(index));
+    }
+
+    public void setFloat(final long index, final float value) {
+        set(index, Float.floatToRawIntBits(value));
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void force() {
+        for (MappedByteBuffer buffer : buffers) buffer.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        file.close();
+    }
+}
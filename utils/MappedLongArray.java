@@ -0,0 +1,89 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A file-backed array of longs larger than a single {@link MappedByteBuffer} can address.
+ * All accesses go through a {@link VarHandle}, so reads and writes are atomic and CAS is
+ * available without any locking.
+ */
+public class MappedLongArray implements Closeable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long length;
+
+    public MappedLongArray(final File file, final long length) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.length = length;
+        if (this.file.length() < length << 3) this.file.setLength(length << 3);
+
+        final FileChannel channel = this.file.getChannel();
+        segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            final long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start << 3, Math.min(SEGMENT_MASK + 1, length - start) << 3);
+        }
+    }
+
+    public long get(final long index) {
+        return (long) LONGS.getVolatile(segments[(int) (index >>> SEGMENT_SHIFT)], (int) (index & SEGMENT_MASK) << 3);
+    }
+
+    public void set(final long index, final long value) {
+        LONGS.setVolatile(segments[(int) (index >>> SEGMENT_SHIFT)], (int) (index & SEGMENT_MASK) << 3, value);
+    }
+
+    public boolean compareAndSet(final long index, final long expected, final long value) {
+        return LONGS.compareAndSet(segments[(int) (index >>> SEGMENT_SHIFT)], (int) (index & SEGMENT_MASK) << 3, expected, value);
+    }
+
+    public long getAndAdd(final long index, final long delta) {
+        return (long) LONGS.getAndAdd(segments[(int) (index >>> SEGMENT_SHIFT)], (int) (index & SEGMENT_MASK) << 3, delta);
+    }
+
+    public long getAndBitwiseOr(final long index, final long mask) {
+        return (long) LONGS.getAndBitwiseOr(segments[(int) (index >>> SEGMENT_SHIFT)], (int) (index & SEGMENT_MASK) << 3, mask);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public void force() {
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    public void close() throws IOException {
+        force();
+        file.close();
+    }
+}
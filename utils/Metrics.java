@@ -0,0 +1,259 @@
+package utils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Process-wide counters, histograms and gauges, addressed by a name plus optional label pairs
+ * (e.g. {@code counter("fetch_status", "code", "404")}).
+ * <p>
+ * Counters are {@link LongAdder}s, so hot paths on many threads do not fight over one cache line;
+ * callers with fixed labels should look a series up once and keep it. Each metric keeps at most
+ * {@link #MAX_SERIES} label sets; anything past that (an unbounded host label, say) is folded into
+ * an {@code other} series. Everything can be scraped in Prometheus text format from
+ * {@link #serve(int)} and browsed over JMX once {@link #registerMBean()} has been called.
+ */
+public class Metrics {
+
+    private static final int MAX_SERIES = 256;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AtomicInteger> SERIES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String> OVERFLOW = new ConcurrentHashMap<>();
+
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(final String name, final String... labels) {
+        return series(COUNTERS, LongAdder::new, name, labels);
+    }
+
+    public static Histogram histogram(final String name, final String... labels) {
+        return series(HISTOGRAMS, Histogram::new, name, labels);
+    }
+
+    /**
+     * The series for the labels, created if the metric has room for it and its overflow series
+     * otherwise. Only series actually created count towards {@link #MAX_SERIES}.
+     */
+    private static <T> T series(final ConcurrentMap<String, T> metric, final Supplier<T> create, final String name, final String... labels) {
+        final String key = key(name, labels);
+        final T existing = metric.get(key);
+        if (existing != null) return existing;
+        if (labels.length == 0) return metric.computeIfAbsent(key, k -> create.get());
+
+        final T created = metric.computeIfAbsent(key, k -> reserve(name) ? create.get() : null);
+        if (created != null) return created;
+        return metric.computeIfAbsent(OVERFLOW.computeIfAbsent(name, n -> overflowKey(n, labels)), k -> create.get());
+    }
+
+    private static boolean reserve(final String name) {
+        final AtomicInteger series = SERIES.computeIfAbsent(name, n -> new AtomicInteger());
+        for (int count = series.get(); count < MAX_SERIES; count = series.get())
+            if (series.compareAndSet(count, count + 1)) return true;
+        return false;
+    }
+
+    /**
+     * Registers (or replaces) a value that is read whenever the metrics are scraped.
+     */
+    public static void gauge(final String name, final LongSupplier value, final String... labels) {
+        GAUGES.put(key(name, labels), value);
+    }
+
+    /**
+     * The current value of every series of a counter, keyed by the value of its one label.
+     */
+    public static Map<String, Long> counters(final String name) {
+        final Map<String, Long> values = new TreeMap<>();
+        final String prefix = name + "{";
+        COUNTERS.forEach((key, counter) -> {
+            if (!key.startsWith(prefix)) return;
+            final int open = key.indexOf('"');
+            values.put(key.substring(open + 1, key.indexOf('"', open + 1)), counter.sum());
+        });
+        return values;
+    }
+
+    /**
+     * Starts a scrape endpoint on {@code http://127.0.0.1:<port>/metrics}.
+     */
+    public static synchronized void serve(final int port) throws IOException {
+        if (server != null) return;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setName("Metrics Endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    public static void registerMBean() {
+        try {
+            final ObjectName name = new ObjectName("crawler:type=Metrics");
+            final MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            if (!beans.isRegistered(name)) beans.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Every series in Prometheus text exposition format; histograms are written as summaries.
+     */
+    public static String scrape() {
+        final StringBuilder out = new StringBuilder();
+        new TreeMap<>(COUNTERS).forEach((key, counter) -> out.append(key).append(' ').append(counter.sum()).append('\n'));
+        new TreeMap<>(GAUGES).forEach((key, gauge) -> out.append(key).append(' ').append(gauge.getAsLong()).append('\n'));
+        new TreeMap<>(HISTOGRAMS).forEach((key, histogram) -> {
+            for (double quantile : QUANTILES)
+                out.append(withLabel(key, "quantile", String.valueOf(quantile))).append(' ').append(histogram.percentile(quantile)).append('\n');
+            out.append(suffixed(key, "_max")).append(' ').append(histogram.max()).append('\n');
+            out.append(suffixed(key, "_sum")).append(' ').append(histogram.sum()).append('\n');
+            out.append(suffixed(key, "_count")).append(' ').append(histogram.count()).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static Map<String, Long> snapshot() {
+        final Map<String, Long> values = new TreeMap<>();
+        COUNTERS.forEach((key, counter) -> values.put(key, counter.sum()));
+        GAUGES.forEach((key, gauge) -> values.put(key, gauge.getAsLong()));
+        HISTOGRAMS.forEach((key, histogram) -> {
+            for (double quantile : QUANTILES) values.put(withLabel(key, "quantile", String.valueOf(quantile)), histogram.percentile(quantile));
+            values.put(suffixed(key, "_max"), histogram.max());
+            values.put(suffixed(key, "_count"), histogram.count());
+        });
+        return values;
+    }
+
+    private static String key(final String name, final String... labels) {
+        if (labels.length == 0) return name;
+
+        final StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) key.append(',');
+            key.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return key.append('}').toString();
+    }
+
+    /**
+     * The key every label set past {@link #MAX_SERIES} is folded into.
+     */
+    private static String overflowKey(final String name, final String... labels) {
+        final String[] other = labels.clone();
+        for (int i = 1; i < other.length; i += 2) other[i] = "other";
+        return key(name, other);
+    }
+
+    private static String withLabel(final String key, final String label, final String value) {
+        final String pair = label + "=\"" + value + "\"";
+        final int brace = key.indexOf('{');
+        return brace == -1 ? key + "{" + pair + "}" : key.substring(0, key.length() - 1) + "," + pair + "}";
+    }
+
+    private static String suffixed(final String key, final String suffix) {
+        final int brace = key.indexOf('{');
+        return brace == -1 ? key + suffix : key.substring(0, brace) + suffix + key.substring(brace);
+    }
+
+    private static String escape(final String value) {
+        if (value.indexOf('"') == -1 && value.indexOf('\\') == -1 && value.indexOf('\n') == -1) return value;
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Exposes every series as a read-only long attribute named after its key.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Long value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            final Map<String, Long> values = snapshot();
+            final AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+                if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final Map<String, Long> values = snapshot();
+            final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String key : values.keySet())
+                attributes[i++] = new MBeanAttributeInfo(key, "long", key, true, false, false);
+            return new MBeanInfo(Metrics.class.getName(), "Crawler metrics", attributes, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * One step of the crawl pipeline: a pool of workers that block on their input and hand each item
+ * to {@code work}, which in turn passes its result on to the next stage.
+ * <p>
+ * A stage either owns a bounded queue, in which case {@link #accept(Object)} blocks while it is
+ * full and back-pressure travels upstream, or pulls from a blocking {@link Source}. Workers only
+ * ever block, so an idle pipeline uses no CPU. I/O-bound stages can ask for virtual threads; on a
+ * JVM without them the stage falls back to platform threads.
+ * <p>
+ * Every stage reports its queue depth, busy workers and items processed to {@link Metrics}; the
+ * bottleneck is the stage whose workers are all busy while the queue in front of it is full.
+ */
+public class Stage<T> implements Consumer<T> {
+
+    @FunctionalInterface
+    public interface Source<T> {
+        /**
+         * Blocks until an item is available; may return null for an item that turned out to be nothing.
+         */
+        T take() throws InterruptedException;
+    }
+
+    private static final Object END = new Object();
+
+    private final String name;
+    private final BlockingQueue<Object> queue;
+    private final Source<? extends T> source;
+    private final Consumer<T> work;
+    private final Thread.UncaughtExceptionHandler handler;
+    private final int workers;
+    private final ExecutorService executor;
+    private final AtomicInteger busy = new AtomicInteger();
+    private final LongAdder processed;
+    private volatile boolean closed = false;
+
+    public Stage(final String name, final int capacity, final int workers, final boolean virtual,
+                 final Thread.UncaughtExceptionHandler handler, final Consumer<T> work) {
+        this(name, new ArrayBlockingQueue<>(capacity), null, workers, virtual, handler, work);
+    }
+
+    public Stage(final String name, final Source<? extends T> source, final int workers, final boolean virtual,
+                 final Thread.UncaughtExceptionHandler handler, final Consumer<T> work) {
+        this(name, null, source, workers, virtual, handler, work);
+    }
+
+    private Stage(final String name, final BlockingQueue<Object> queue, final Source<? extends T> source, final int workers,
+                  final boolean virtual, final Thread.UncaughtExceptionHandler handler, final Consumer<T> work) {
+        this.name = name;
+        this.queue = queue;
+        this.source = source;
+        this.work = work;
+        this.handler = handler;
+        this.workers = workers;
+        this.processed = Metrics.counter("stage_items", "stage", name);
+        Metrics.gauge("stage_queue_depth", this::size, "stage", name);
+        Metrics.gauge("stage_busy_workers", busy::get, "stage", name);
+        this.executor = virtual ? virtualExecutor(name, workers) : platformExecutor(name, workers);
+        for (int i = 0; i < workers; i++) executor.execute(this::run);
+    }
+
+    /**
+     * Queues an item for this stage, waiting for space if the queue is full.
+     */
+    public void accept(final T item) {
+        if (queue == null) throw new UnsupportedOperationException(name + " reads from its own source");
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Stops the stage: a queue-backed stage first works off everything already queued, a
+     * source-backed stage stops taking new items right away. Returns once every worker has exited
+     * or the timeout has passed.
+     */
+    public boolean close(final long timeout) throws InterruptedException {
+        closed = true;
+        if (queue == null) executor.shutdownNow();
+        else {
+            for (int i = 0; i < workers; i++) queue.put(END);
+            executor.shutdown();
+        }
+        return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run() {
+        while (true) {
+            final Object item;
+            try {
+                item = queue != null ? queue.take() : source.take();
+            } catch (InterruptedException e) {
+                if (closed) return;
+                continue;
+            }
+            if (item == END) return;
+
+            if (item != null) {
+                busy.incrementAndGet();
+                try {
+                    work.accept((T) item);
+                } catch (Throwable t) {
+                    // an Error from one item must not silently take a worker away from the stage
+                    if (handler != null) handler.uncaughtException(Thread.currentThread(), t);
+                    else t.printStackTrace();
+                } finally {
+                    busy.decrementAndGet();
+                    processed.increment();
+                }
+            }
+            if (closed && queue == null) return;
+        }
+    }
+
+    private static ExecutorService platformExecutor(final String name, final int workers) {
+        return Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable);
+                thread.setName(name + " " + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the crawler still
+     * builds and runs on JVMs that predate virtual threads.
+     */
+    private static ExecutorService virtualExecutor(final String name, final int workers) {
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return platformExecutor(name, workers);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2016 Kunal Sheth
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Puts a deadline on a whole transfer. HttpClient's request timeout only covers the wait for
+ * the response headers, so a body that trickles in would otherwise hold its reader for ever;
+ * closing the stream from here makes the blocked read fail instead.
+ */
+public class Watchdog {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable);
+        thread.setName("Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Watchdog() {
+    }
+
+    /**
+     * Closes the stream unless the returned future is cancelled within {@code millis}.
+     */
+    public static ScheduledFuture<?> closeAfter(final Closeable closeable, final long millis) {
+        return TIMER.schedule(() -> {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // it is being abandoned either way
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+}